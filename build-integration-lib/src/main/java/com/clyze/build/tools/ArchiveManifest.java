@@ -0,0 +1,205 @@
+package com.clyze.build.tools;
+
+import java.io.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A record of the files that were used to create an archive. It is
+ * kept next to the archive (as a sidecar file) and lets later runs
+ * detect which entries are unchanged, so that their compressed data
+ * can be copied from the existing archive, or the archive can be left
+ * untouched altogether.
+ */
+final class ArchiveManifest {
+    private static final int MAGIC = 0x435A4D46;
+    private static final int VERSION = 1;
+    /** The suffix of the manifest file name, appended to the archive name. */
+    static final String SUFFIX = ".manifest";
+
+    /** The archive settings that were used to create the archive. */
+    private final String settings;
+    /** The size of the archive, when the manifest was written. */
+    private long archiveSize;
+    /** The modification time of the archive, when the manifest was written. */
+    private long archiveModified;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    ArchiveManifest(String settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Returns the sidecar manifest file of an archive.
+     *
+     * @param archive  the archive
+     * @return         the manifest file
+     */
+    static File fileOf(File archive) {
+        return new File(archive.getPath() + SUFFIX);
+    }
+
+    /**
+     * Reads the manifest of an archive. A manifest is only returned if it
+     * was written with the same settings and still describes the archive
+     * as it exists on disk.
+     *
+     * @param archive   the archive
+     * @param settings  the current archive settings
+     * @return          the manifest, or null if there is no usable manifest
+     */
+    static ArchiveManifest load(File archive, String settings) {
+        File file = fileOf(archive);
+        if (!file.exists() || !archive.exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !settings.equals(in.readUTF()))
+                return null;
+            ArchiveManifest manifest = new ArchiveManifest(settings);
+            manifest.archiveSize = in.readLong();
+            manifest.archiveModified = in.readLong();
+            if (manifest.archiveSize != archive.length() || manifest.archiveModified != archive.lastModified())
+                return null;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                byte[] hash = new byte[in.readUnsignedByte()];
+                in.readFully(hash);
+                manifest.put(new Entry(name, size, modified, hash));
+            }
+            return manifest;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes this manifest next to an archive, recording the current
+     * size and modification time of the archive.
+     *
+     * @param archive       the archive that this manifest describes
+     * @throws IOException  on write error
+     */
+    void save(File archive) throws IOException {
+        archiveSize = archive.length();
+        archiveModified = archive.lastModified();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileOf(archive))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(settings);
+            out.writeLong(archiveSize);
+            out.writeLong(archiveModified);
+            out.writeInt(entries.size());
+            for (Entry e : entries.values()) {
+                out.writeUTF(e.name);
+                out.writeLong(e.size);
+                out.writeLong(e.modified);
+                out.writeByte(e.hash.length);
+                out.write(e.hash);
+            }
+        }
+    }
+
+    /**
+     * Deletes the manifest of an archive, if it exists.
+     *
+     * @param archive  the archive
+     */
+    static void delete(File archive) {
+        File file = fileOf(archive);
+        if (file.exists() && !file.delete())
+            file.deleteOnExit();
+    }
+
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    synchronized void put(Entry e) {
+        entries.put(e.name, e);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * Computes the content hash of a file.
+     *
+     * @param file          the file
+     * @return              the hash of the file contents
+     * @throws IOException  on read error
+     */
+    static byte[] hash(File file) throws IOException {
+        MessageDigest md = newDigest();
+        try (InputStream in = new DigestInputStream(new FileInputStream(file), md)) {
+            byte[] buf = new byte[64 * 1024];
+            //noinspection StatementWithEmptyBody
+            while (in.read(buf) >= 0) ;
+        }
+        return md.digest();
+    }
+
+    /**
+     * Computes the content hash of some data.
+     *
+     * @param data  the data
+     * @param off   the start offset in the data
+     * @param len   the number of bytes
+     * @return      the hash of the data
+     */
+    static byte[] hash(byte[] data, int off, int len) {
+        MessageDigest md = newDigest();
+        md.update(data, off, len);
+        return md.digest();
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("No MD5 algorithm found", ex);
+        }
+    }
+
+    /** The state of a file at the time it was added to the archive. */
+    static final class Entry {
+        final String name;
+        final long size;
+        final long modified;
+        final byte[] hash;
+
+        Entry(String name, long size, long modified, byte[] hash) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+
+        /**
+         * Checks if a file still has the size and timestamp recorded here.
+         *
+         * @param file  the file to check
+         * @return      true if the file appears to be unchanged
+         */
+        boolean isUnchanged(File file) {
+            return file.length() == size && file.lastModified() == modified;
+        }
+
+        boolean sameHash(byte[] otherHash) {
+            return Arrays.equals(hash, otherHash);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.clyze.build.tools;
+
+/**
+ * Options that control how archives are created.
+ */
+public class ArchiveOptions {
+    /**
+     * The number of threads to use for compressing archive entries. A
+     * value of 0 (the default) uses one thread per available processor.
+     */
+    public int threads = 0;
+
+    /**
+     * Reuse unchanged entries of existing archives. A manifest of the
+     * archived files is kept next to each archive: if no file has changed,
+     * the archive is not rewritten; otherwise, only the changed entries
+     * are compressed again. This is only worth it for archives that are
+     * re-created in place from the same files on every run (such as the
+     * sources archives of a snapshot directory); for other archives, the
+     * manifest would never be reused.
+     */
+    public boolean incremental = false;
+
+    /**
+     * The policy that decides how each entry is compressed (for
+     * example, {@link CompressionPolicy#FAST} or {@link CompressionPolicy#SMALL}).
+     */
+    public CompressionPolicy compression = CompressionPolicy.DEFAULT;
+
+    /**
+     * Create reproducible archives: entries are sorted and have a fixed
+     * timestamp, so that identical inputs give byte-identical archives.
+     */
+    public boolean reproducible = false;
+
+    /**
+     * Merge configuration files into a single configuration when creating
+     * configuration archives. Rules with the same meaning are kept once
+     * and each rule records the files that contained it.
+     */
+    public boolean mergeConfigurations = false;
+
+    /**
+     * The scanner used to walk directories. Sharing a scanner lets
+     * archives reuse the directory listings of the trees that other
+     * steps of the same run have asked the scanner to remember (archives
+     * do not remember the trees they walk). If null, each archive walks
+     * its directory with a scanner of its own.
+     */
+    public FileScanner scanner = null;
+
+    /** Creates the default archive options. */
+    public ArchiveOptions() { }
+
+    /**
+     * Creates a copy of some archive options.
+     *
+     * @param other  the options to copy
+     */
+    public ArchiveOptions(ArchiveOptions other) {
+        this.threads = other.threads;
+        this.incremental = other.incremental;
+        this.compression = other.compression;
+        this.reproducible = other.reproducible;
+        this.mergeConfigurations = other.mergeConfigurations;
+        this.scanner = other.scanner;
+    }
+
+    /**
+     * Returns the number of compression threads to use.
+     *
+     * @return a positive number of threads
+     */
+    public int getThreadCount() {
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Describes the options that affect the contents of archives. An
+     * archive manifest is only reused if it was written with the same
+     * settings.
+     *
+     * @return a settings description
+     */
+    String fingerprint() {
+        return "compression:" + compression.getName() + ",reproducible:" + reproducible;
+    }
+}
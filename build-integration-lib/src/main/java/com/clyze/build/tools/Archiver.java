@@ -4,15 +4,15 @@ import java.io.*;
 import java.math.BigInteger;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.*;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.zip.*;
 import com.clyze.client.Printer;
-import org.zeroturnaround.zip.*;
 
 import static com.clyze.build.tools.Conventions.msg;
 
@@ -31,11 +31,16 @@ public final class Archiver {
      * Configuration directives that are not yet supported and should
      * raise a warning.
      */
-    final static String[] UNSUPPORTED_DIRECTIVES = new String[] {"-printusage ", "-printseeds ", "-printconfiguration ", "-dump "};
+    final static List<String> UNSUPPORTED_DIRECTIVES = Arrays.asList("-printusage", "-printseeds", "-printconfiguration", "-dump");
 
     /** Filter out unsupported directives. */
     final static boolean FILTER_UNSUPPORTED_DIRECTIVES = false;
 
+    /** The comment that R8 writes before the contents of each configuration file. */
+    private static final String R8_SECTION_START = "# The proguard configuration file for the following section is";
+    /** The comment that R8 writes after the contents of each configuration file. */
+    private static final String R8_SECTION_END = "# End of content from";
+
     /**
      * Zips a directory as an archive, removing the directory prefix
      * from the entries.
@@ -46,34 +51,342 @@ public final class Archiver {
      * @throws IOException when a major error occurred
      */
     public static boolean zipTree(File dir, File archive) throws IOException {
-        Collection<ZipEntrySource> files = new LinkedList<>();
+        return zipTree(dir, archive, new ArchiveOptions());
+    }
 
-        boolean error = false;
-        String dirPath;
+    /**
+     * Zips a directory as an archive, removing the directory prefix
+     * from the entries. Entries are compressed in parallel.
+     *
+     * @param dir          the directory
+     * @param archive      the archive to create
+     * @param options      the archiving options
+     * @return             true if some individual file could not be added
+     * @throws IOException when a major error occurred
+     */
+    public static boolean zipTree(File dir, File archive, ArchiveOptions options) throws IOException {
+        int threads = options.getThreadCount();
+        ExecutorService pool = ParallelZipper.newPool(threads, "clyze-zip");
+        FileScanner scanner = options.scanner == null ? new FileScanner(threads) : null;
         try {
-            dirPath = dir.getCanonicalPath();
-        } catch (IOException ex) {
+            return zipTree(dir, archive, options, pool, threads, scanner == null ? options.scanner : scanner);
+        } finally {
+            if (pool != null)
+                pool.shutdownNow();
+            if (scanner != null)
+                scanner.close();
+        }
+    }
+
+    private static boolean zipTree(File dir, File archive, ArchiveOptions options,
+                                   ExecutorService pool, int threads, FileScanner scanner) throws IOException {
+        if (!dir.isDirectory()) {
             System.err.println(msg("Could not process directory: " + dir));
-            throw ex;
+            throw new FileNotFoundException(dir.toString());
         }
-        List<File> fs = Files.walk(dir.toPath()).filter(Files::isRegularFile).map(Path::toFile).collect(Collectors.toList());
-        for (File f : fs) {
-            try {
-                String fPath = f.getCanonicalPath();
-                if (fPath.startsWith(dirPath))
-                    fPath = fPath.substring(dirPath.length());
-                if (fPath.startsWith(File.separator))
-                    fPath = fPath.substring(File.separator.length());
-                files.add(new FileSource(fPath, f));
+        Path root = dir.toPath();
+        // The tree is streamed, not remembered, so that memory use does not
+        // depend on its size (incremental archiving walks it twice).
+        EntryWalker walker = options.reproducible ?
+                visitor -> walkTreeSorted(root, visitor) :
+                visitor -> scanner.scan(dir, null, visitor::visit);
+        return zipEntries(walker, archive, options, pool, threads);
+    }
+
+    /**
+     * Zips a number of files as an archive. Entries are compressed in
+     * parallel. When incremental archiving is enabled, unchanged entries
+     * of an existing archive are reused.
+     *
+     * @param entries      a map from entry names to the files to add
+     * @param archive      the archive to create
+     * @param options      the archiving options
+     * @return             true if some individual file could not be added
+     * @throws IOException when a major error occurred
+     */
+    public static boolean zipFiles(Map<String, File> entries, File archive, ArchiveOptions options) throws IOException {
+        int threads = options.getThreadCount();
+        ExecutorService pool = ParallelZipper.newPool(threads, "clyze-zip");
+        try {
+            Map<String, File> ordered = options.reproducible ? new TreeMap<>(entries) : entries;
+            return zipEntries(visitor -> visitAll(ordered, visitor), archive, options, pool, threads);
+        } finally {
+            if (pool != null)
+                pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Walks a directory tree, visiting the contents of each directory in
+     * name order, so that the order of the files does not depend on the
+     * file system. Entry names are the file paths relative to the root of
+     * the tree. Symbolic links are followed and link cycles are skipped.
+     *
+     * @param root         the root directory
+     * @param visitor      the visitor of the files found
+     * @return             true if some file or directory could not be visited
+     * @throws IOException if the root directory could not be read
+     */
+    private static boolean walkTreeSorted(Path root, EntryVisitor visitor) throws IOException {
+        SortedWalk walk = new SortedWalk(root, visitor);
+        walk.walk(root);
+        return walk.error;
+    }
+
+    /** The state of a sorted directory walk. */
+    private static final class SortedWalk {
+        final Path root;
+        final EntryVisitor visitor;
+        /** The keys of the directories being walked, to detect link cycles. */
+        final Set<Object> ancestors = new HashSet<>();
+        boolean error = false;
+        boolean stopped = false;
+
+        SortedWalk(Path root, EntryVisitor visitor) {
+            this.root = root;
+            this.visitor = visitor;
+        }
+
+        void walk(Path dir) throws IOException {
+            List<Path> children = new ArrayList<>();
+            Object key;
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                key = Files.readAttributes(dir, BasicFileAttributes.class).fileKey();
+                ds.forEach(children::add);
             } catch (IOException ex) {
-                System.err.println(msg("Could not process file " + f + ": " + ex.getMessage()));
+                if (dir.equals(root))
+                    throw ex;
+                System.err.println(msg("Could not process file " + dir + ": " + ex.getMessage()));
                 error = true;
+                return;
+            }
+            if (key != null && !ancestors.add(key)) {
+                System.err.println(msg("Skipping symbolic link cycle: " + dir));
+                return;
+            }
+            children.sort(Comparator.comparing(p -> p.getFileName().toString()));
+            for (Path child : children) {
+                if (stopped)
+                    break;
+                if (Files.isDirectory(child))
+                    walk(child);
+                else if (Files.isRegularFile(child)) {
+                    String name = root.relativize(child).toString();
+                    if (File.separatorChar != '/')
+                        name = name.replace(File.separatorChar, '/');
+                    stopped = !visitor.visit(name, child.toFile());
+                }
+            }
+            if (key != null)
+                ancestors.remove(key);
+        }
+    }
+
+    private static boolean visitAll(Map<String, File> entries, EntryVisitor visitor) throws IOException {
+        for (Map.Entry<String, File> entry : entries.entrySet())
+            if (!visitor.visit(entry.getKey(), entry.getValue()))
+                break;
+        return false;
+    }
+
+    private static EntryVisitor addTo(ParallelZipper zipper) {
+        return (name, file) -> {
+            zipper.add(name, file);
+            return true;
+        };
+    }
+
+    /** Produces the files to archive, one at a time. */
+    private interface EntryWalker {
+        /**
+         * Visits all files.
+         *
+         * @param visitor      the visitor of the files
+         * @return             true if some file could not be visited
+         * @throws IOException on major error
+         */
+        boolean walk(EntryVisitor visitor) throws IOException;
+    }
+
+    /** Receives the files to archive. */
+    private interface EntryVisitor {
+        /**
+         * Visits a file.
+         *
+         * @param name         the entry name
+         * @param file         the file
+         * @return             false if no more files should be visited
+         * @throws IOException on major error
+         */
+        boolean visit(String name, File file) throws IOException;
+    }
+
+    /**
+     * Creates an archive from the files produced by a walker. The files
+     * are streamed to the compression pool as they are found. When
+     * incremental archiving is enabled, the files are walked once more
+     * beforehand, to check whether the existing archive is up to date.
+     */
+    private static boolean zipEntries(EntryWalker walker, File archive, ArchiveOptions options,
+                                      ExecutorService pool, int threads) throws IOException {
+        if (!options.incremental) {
+            ArchiveManifest.delete(archive);
+            try (ParallelZipper zipper = new ParallelZipper(archive, pool, threads, options)) {
+                boolean error = walker.walk(addTo(zipper));
+                return zipper.finish() || error;
+            }
+        }
+
+        String settings = options.fingerprint();
+        ArchiveManifest previous = ArchiveManifest.load(archive, settings);
+        if (previous != null && isUpToDate(archive, previous, walker, pool)) {
+            System.out.println(msg("Archive is up to date: " + archive));
+            return false;
+        }
+        ArchiveManifest next = new ArchiveManifest(settings);
+        boolean error;
+        if (previous == null) {
+            ArchiveManifest.delete(archive);
+            try (ParallelZipper zipper = new ParallelZipper(archive, pool, threads, options, null, null, next)) {
+                error = walker.walk(addTo(zipper));
+                error |= zipper.finish();
+            }
+        } else {
+            // Write the new version next to the old one, copying unchanged entries.
+            File parent = archive.getAbsoluteFile().getParentFile();
+            File tmpArchive = File.createTempFile(archive.getName(), ".tmp", parent);
+            try {
+                try (ZipReader base = new ZipReader(archive);
+                     ParallelZipper zipper = new ParallelZipper(tmpArchive, pool, threads, options, base, previous, next)) {
+                    error = walker.walk(addTo(zipper));
+                    error |= zipper.finish();
+                }
+                ArchiveManifest.delete(archive);
+                Files.move(tmpArchive.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                if (tmpArchive.exists() && !tmpArchive.delete())
+                    tmpArchive.deleteOnExit();
+            }
+        }
+        // A partial archive must be rebuilt from scratch next time.
+        if (!error) {
+            try {
+                next.save(archive);
+            } catch (IOException ex) {
+                System.err.println(msg("Could not write archive manifest for " + archive + ": " + ex.getMessage()));
+                ArchiveManifest.delete(archive);
             }
         }
-        ZipUtil.pack(files.toArray(new ZipEntrySource[0]), archive);
         return error;
     }
 
+    /**
+     * Checks if the files to archive are the same as the ones recorded
+     * in the manifest of an archive. Files whose timestamp has changed
+     * but whose size is the same are compared by content hash; if they
+     * are unchanged, the manifest is updated with their new timestamps.
+     */
+    private static boolean isUpToDate(File archive, ArchiveManifest manifest,
+                                      EntryWalker walker, ExecutorService pool) throws IOException {
+        int[] count = new int[] { 0 };
+        boolean[] changed = new boolean[] { false };
+        List<Future<ArchiveManifest.Entry>> hashes = new ArrayList<>();
+        boolean error = walker.walk((name, f) -> {
+            ArchiveManifest.Entry e = manifest.get(name);
+            if (e == null || e.size != f.length() || ++count[0] > manifest.size()) {
+                changed[0] = true;
+                return false;
+            } else if (e.modified != f.lastModified())
+                hashes.add(ParallelZipper.submit(pool, () -> {
+                    long modified = f.lastModified();
+                    return new ArchiveManifest.Entry(name, f.length(), modified, ArchiveManifest.hash(f));
+                }));
+            return true;
+        });
+        if (error || changed[0] || count[0] != manifest.size()) {
+            hashes.forEach(h -> h.cancel(true));
+            return false;
+        }
+        List<ArchiveManifest.Entry> updated = new ArrayList<>();
+        for (Future<ArchiveManifest.Entry> f : hashes) {
+            try {
+                ArchiveManifest.Entry e = f.get();
+                if (!manifest.get(e.name).sameHash(e.hash))
+                    return false;
+                updated.add(e);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException ex) {
+                return false;
+            }
+        }
+        if (!updated.isEmpty()) {
+            updated.forEach(manifest::put);
+            try {
+                manifest.save(archive);
+            } catch (IOException ex) {
+                ArchiveManifest.delete(archive);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Updates an existing archive, given the entries that changed since
+     * it was created. The compressed data of the unchanged entries is
+     * copied as it is; only the added or changed entries are compressed.
+     * Unchanged entries keep their position, added entries are appended
+     * (in reproducible mode, all entries are sorted by name). The new
+     * version replaces the archive when it has been written completely.
+     *
+     * @param archive      the archive to update (if it does not exist, it is created)
+     * @param changed      a map from the names of added or changed entries to their files
+     * @param removed      the names of the entries to remove
+     * @param options      the archiving options
+     * @return             true if some individual file could not be added
+     * @throws IOException when a major error occurred
+     */
+    public static boolean updateArchive(File archive, Map<String, File> changed,
+                                        Collection<String> removed, ArchiveOptions options) throws IOException {
+        ArchiveManifest.delete(archive);
+        if (!archive.exists()) {
+            ArchiveOptions full = new ArchiveOptions(options);
+            full.incremental = false;
+            return zipFiles(changed, archive, full);
+        }
+        int threads = options.getThreadCount();
+        ExecutorService pool = ParallelZipper.newPool(threads, "clyze-zip");
+        File parent = archive.getAbsoluteFile().getParentFile();
+        File tmpArchive = File.createTempFile(archive.getName(), ".tmp", parent);
+        try {
+            boolean error;
+            try (ZipReader base = new ZipReader(archive);
+                 ParallelZipper zipper = new ParallelZipper(tmpArchive, pool, threads, options, base, null, null)) {
+                // Final entry order: a null value means "copy from the archive".
+                Map<String, File> entries = options.reproducible ? new TreeMap<>() : new LinkedHashMap<>();
+                for (ZipRecord rec : base.getRecords())
+                    if (!removed.contains(rec.name))
+                        entries.put(rec.name, null);
+                entries.putAll(changed);
+                for (Map.Entry<String, File> entry : entries.entrySet()) {
+                    if (entry.getValue() == null)
+                        zipper.copy(base.get(entry.getKey()));
+                    else
+                        zipper.add(entry.getKey(), entry.getValue());
+                }
+                error = zipper.finish();
+            }
+            Files.move(tmpArchive.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return error;
+        } finally {
+            if (pool != null)
+                pool.shutdownNow();
+            if (tmpArchive.exists() && !tmpArchive.delete())
+                tmpArchive.deleteOnExit();
+        }
+    }
+
     /**
      * Compresses a number of directories as archives under a target
      * directory. For every directory, its prefix is removed from the
@@ -84,21 +397,251 @@ public final class Archiver {
      * @return            a map from each source directory to its archive
      */
     public static Map<File, File> zipTrees(Collection<File> dirs, File targetDir) {
-        Map<File, File> archiveMap = new HashMap<>();
-        for (File dir : dirs) {
-            try {
-                String hash = md5(dir.getCanonicalPath());
-                File preTestCodeJar = new File(targetDir, hash + Conventions.TEST_CODE_PRE_JAR);
-                zipTree(dir, preTestCodeJar);
-                System.out.println(msg("Archiving code [" + dir + "] as [" + preTestCodeJar + "]"));
-                archiveMap.put(dir, preTestCodeJar);
+        return zipTrees(dirs, targetDir, new ArchiveOptions());
+    }
+
+    /**
+     * Compresses a number of directories as archives under a target
+     * directory. For every directory, its prefix is removed from the
+     * entries. Directories are archived concurrently and share a
+     * single pool of compression threads.
+     *
+     * @param dirs        a collection of directories
+     * @param targetDir   the target directory to use for creating the archives
+     * @param options     the archiving options
+     * @return            a map from each source directory to its archive
+     */
+    public static Map<File, File> zipTrees(Collection<File> dirs, File targetDir, ArchiveOptions options) {
+        int threads = options.getThreadCount();
+        ExecutorService pool = ParallelZipper.newPool(threads, "clyze-zip");
+        ExecutorService dirPool = ParallelZipper.newPool(Math.min(threads, dirs.size()), "clyze-zip-dir");
+        FileScanner scanner = options.scanner == null ? new FileScanner(threads) : options.scanner;
+        try {
+            Map<File, Future<File>> pending = new LinkedHashMap<>();
+            for (File dir : dirs) {
+                pending.put(dir, ParallelZipper.submit(dirPool, () -> {
+                    String hash = md5(dir.getCanonicalPath());
+                    File preTestCodeJar = new File(targetDir, hash + Conventions.TEST_CODE_PRE_JAR);
+                    zipTree(dir, preTestCodeJar, options, pool, threads, scanner);
+                    System.out.println(msg("Archiving code [" + dir + "] as [" + preTestCodeJar + "]"));
+                    return preTestCodeJar;
+                }));
+            }
+            Map<File, File> archiveMap = new HashMap<>();
+            for (Map.Entry<File, Future<File>> entry : pending.entrySet()) {
+                try {
+                    archiveMap.put(entry.getKey(), entry.getValue().get());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof NoSuchAlgorithmException)
+                        System.err.println(msg("Error: no MD5 algorithm found."));
+                    else
+                        ex.getCause().printStackTrace();
+                }
+            }
+            return archiveMap;
+        } finally {
+            if (dirPool != null)
+                dirPool.shutdownNow();
+            if (pool != null)
+                pool.shutdownNow();
+            if (scanner != options.scanner)
+                scanner.close();
+        }
+    }
+
+    /**
+     * Extracts an archive to a directory. The central directory is read
+     * once, all directories are created up front and the entries are
+     * then inflated concurrently, each one streamed to its file. Entries
+     * that would be extracted outside the target directory are ignored.
+     *
+     * @param archive      the archive to extract
+     * @param targetDir    the directory to extract the archive to
+     * @param options      the archiving options (only the number of threads is used)
+     * @return             true if some individual entry could not be extracted
+     * @throws IOException if the archive could not be read
+     */
+    public static boolean unzip(File archive, File targetDir, ArchiveOptions options) throws IOException {
+        Path root = targetDir.getCanonicalFile().toPath();
+        int threads = options.getThreadCount();
+        ExecutorService pool = ParallelZipper.newPool(threads, "clyze-unzip");
+        boolean error = false;
+        try (ZipReader reader = new ZipReader(archive)) {
+            Map<ZipRecord, Path> targets = new LinkedHashMap<>();
+            Set<Path> dirs = new TreeSet<>();
+            dirs.add(root);
+            for (ZipRecord rec : reader.getRecords()) {
+                Path target = root.resolve(rec.name).normalize();
+                if (!target.startsWith(root) || target.equals(root)) {
+                    System.err.println(msg("Ignoring entry that may escape to the filesystem: " + rec.name));
+                    continue;
+                }
+                if (rec.name.endsWith("/"))
+                    dirs.add(target);
+                else {
+                    dirs.add(target.getParent());
+                    targets.put(rec, target);
+                }
+            }
+            for (Path dir : dirs)
+                Files.createDirectories(dir);
+            Map<ZipRecord, Future<Void>> pending = new LinkedHashMap<>();
+            for (Map.Entry<ZipRecord, Path> entry : targets.entrySet()) {
+                ZipRecord rec = entry.getKey();
+                File f = entry.getValue().toFile();
+                pending.put(rec, ParallelZipper.submit(pool, () -> {
+                    extract(reader, rec, f);
+                    return null;
+                }));
+            }
+            for (Map.Entry<ZipRecord, Future<Void>> entry : pending.entrySet()) {
+                try {
+                    entry.getValue().get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while extracting " + archive);
+                } catch (ExecutionException ex) {
+                    System.err.println(msg("Could not extract entry " + entry.getKey().name + ": " + ex.getCause().getMessage()));
+                    error = true;
+                }
+            }
+        } finally {
+            if (pool != null)
+                pool.shutdownNow();
+        }
+        return error;
+    }
+
+    /**
+     * Extracts a single entry to a file. This runs on the worker threads.
+     */
+    private static void extract(ZipReader reader, ZipRecord rec, File f) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[64 * 1024];
+        Inflater inflater = rec.method == ZipRecord.DEFLATED ? new Inflater(true) : null;
+        if (inflater == null && rec.method != ZipRecord.STORED)
+            throw new ZipException("Unsupported compression method " + rec.method);
+        try (InputStream raw = reader.openRaw(rec);
+             InputStream in = inflater == null ? raw : new InflaterInputStream(raw, inflater, buf.length);
+             OutputStream out = new FileOutputStream(f)) {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                crc.update(buf, 0, n);
+                out.write(buf, 0, n);
+            }
+        } finally {
+            if (inflater != null)
+                inflater.end();
+        }
+        if (crc.getValue() != rec.crc)
+            throw new ZipException("CRC mismatch");
+        if (!f.setLastModified(ZipRecord.dosToJavaTime(rec.dosTime)))
+            System.err.println(msg("Could not set the timestamp of " + f));
+        // Keep the executable bit of entries created on Unix.
+        if (((rec.externalAttributes >>> 16) & 0100) != 0 && !f.setExecutable(true))
+            System.err.println(msg("Could not make executable: " + f));
+    }
+
+    /** How to handle entries that appear in more than one merged archive. */
+    public enum DuplicatePolicy {
+        /** Keep the entry of the first archive that contains it. */
+        FIRST_WINS,
+        /** Keep the entry of the last archive that contains it. */
+        LAST_WINS
+    }
+
+    /**
+     * Merges a number of archives (such as library JARs) into a single
+     * archive. The compressed data and CRCs of the entries are copied
+     * as they are, without being inflated and deflated again. Signature
+     * files are dropped, since they are not valid for the merged archive.
+     * An entry that appears more than once in the same archive is copied
+     * once, from its last occurrence (the one that
+     * {@link java.util.zip.ZipFile} reads). An index entry
+     * ({@link Conventions#LIBRARY_BUNDLE_INDEX}) records the path of the
+     * original archive of each entry.
+     *
+     * @param archives     the archives to merge (in order)
+     * @param target       the archive to create
+     * @param duplicates   the policy for entries found in more than one archive
+     * @param options      the archiving options (only reproducibility is used)
+     * @return             a map from each entry name to the archive it was copied from
+     * @throws IOException if an archive could not be read or written
+     */
+    public static Map<String, File> mergeArchives(List<File> archives, File target,
+                                                  DuplicatePolicy duplicates,
+                                                  ArchiveOptions options) throws IOException {
+        Collection<File> inputs = new LinkedHashSet<>(archives);
+        // Decide which archive provides each entry, by reading the
+        // central directories only.
+        Map<String, File> origins = new LinkedHashMap<>();
+        for (File archive : inputs) {
+            // The reader has a single record for each name.
+            try (ZipReader reader = new ZipReader(archive)) {
+                for (ZipRecord rec : reader.getRecords()) {
+                    if (isSignatureFile(rec.name) || rec.name.equals(Conventions.LIBRARY_BUNDLE_INDEX))
+                        continue;
+                    if (duplicates == DuplicatePolicy.LAST_WINS)
+                        origins.put(rec.name, archive);
+                    else
+                        origins.putIfAbsent(rec.name, archive);
+                }
             } catch (IOException ex) {
-                ex.printStackTrace();
-            } catch (NoSuchAlgorithmException ex) {
-                System.err.println(msg("Error: no MD5 algorithm found."));
+                System.err.println(msg("Could not read archive " + archive + ": " + ex.getMessage()));
+                throw ex;
+            }
+        }
+
+        ArchiveManifest.delete(target);
+        StringBuilder index = new StringBuilder();
+        try (ZipWriter writer = new ZipWriter(target)) {
+            for (File archive : inputs) {
+                try (ZipReader reader = new ZipReader(archive)) {
+                    for (ZipRecord rec : reader.getRecords()) {
+                        if (origins.get(rec.name) != archive)
+                            continue;
+                        ZipRecord copy = new ZipRecord(rec.name);
+                        copy.method = rec.method;
+                        copy.crc = rec.crc;
+                        copy.size = rec.size;
+                        copy.compressedSize = rec.compressedSize;
+                        copy.dosTime = options.reproducible ? ZipRecord.REPRODUCIBLE_DOS_TIME : rec.dosTime;
+                        copy.externalAttributes = options.reproducible ? 0 : rec.externalAttributes;
+                        try (InputStream raw = reader.openRaw(rec)) {
+                            writer.copyEntry(copy, raw);
+                        }
+                        index.append(rec.name).append('\t').append(archive.getPath()).append('\n');
+                    }
+                }
             }
+            byte[] indexData = index.toString().getBytes(StandardCharsets.UTF_8);
+            ZipRecord indexRec = new ZipRecord(Conventions.LIBRARY_BUNDLE_INDEX);
+            CRC32 crc = new CRC32();
+            crc.update(indexData, 0, indexData.length);
+            indexRec.method = ZipRecord.STORED;
+            indexRec.crc = crc.getValue();
+            indexRec.size = indexData.length;
+            indexRec.dosTime = options.reproducible ? ZipRecord.REPRODUCIBLE_DOS_TIME : ZipRecord.javaToDosTime(System.currentTimeMillis());
+            writer.writeEntry(indexRec, indexData, 0, indexData.length);
         }
-        return archiveMap;
+        return origins;
+    }
+
+    /**
+     * Recognizes the entries of JAR signatures.
+     *
+     * @param name   the entry name
+     * @return       true if the entry belongs to a JAR signature
+     */
+    private static boolean isSignatureFile(String name) {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) >= 0)
+            return false;
+        String upper = name.toUpperCase(Locale.ROOT);
+        return upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") ||
+                upper.endsWith(".EC") || upper.startsWith("META-INF/SIG-");
     }
 
     private static String md5(String text) throws NoSuchAlgorithmException {
@@ -117,32 +660,23 @@ public final class Archiver {
      * @throws         IOException if the new file could not be written
      */
     private static File deleteUnsupportedDirectives(File conf, Printer printer) throws IOException {
-        boolean allSupported = true;
-        LinkedList<String> lines = new LinkedList<>();
-        try (BufferedReader txtReader = new BufferedReader(new FileReader(conf))) {
-            String line;
-            while ((line = txtReader.readLine()) != null) {
-                boolean supportedLine = true;
-                for (String d : UNSUPPORTED_DIRECTIVES) {
-                    if (line.contains(d)) {
-                        printer.warn("WARNING: file " + conf.getCanonicalPath() + " contains unsupported directive: " + line);
-                        allSupported = false;
-                        supportedLine = false;
-                    }
-                }
-                if (supportedLine)
-                    lines.add(line + "\n");
+        String text = new String(Files.readAllBytes(conf.toPath()), StandardCharsets.UTF_8);
+        String path = conf.getCanonicalPath();
+        StringBuilder sb = new StringBuilder();
+        int last = 0;
+        for (ProguardRule rule : ProguardRule.parse(text, path)) {
+            if (rule.isOneOf(UNSUPPORTED_DIRECTIVES)) {
+                printer.warn("WARNING: file " + path + " contains unsupported directive: " + rule);
+                sb.append(text, last, rule.start);
+                last = rule.end;
             }
         }
-        if (!allSupported) {
-            File ret = File.createTempFile("rules", ".pro");
-            try (FileWriter fw = new FileWriter(ret)) {
-                for (String l : lines)
-                    fw.write(l);
-            }
-            return ret;
-        } else
+        if (last == 0)
             return conf;
+        sb.append(text, last, text.length());
+        File ret = File.createTempFile("rules", ".pro");
+        Files.write(ret.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        return ret;
     }
 
     /**
@@ -160,41 +694,78 @@ public final class Archiver {
     public static void zipConfigurations(List<File> configurationFiles, File confZip,
                                          Printer printer, String projectDir,
                                          String disablingConfPath, String printConfigPath) throws IOException {
+        zipConfigurations(configurationFiles, confZip, printer, projectDir, disablingConfPath, printConfigPath, new ArchiveOptions());
+    }
+
+    /**
+     * Zips a list of configuration files.
+     *
+     * @param configurationFiles  the input configuration files
+     * @param confZip             the output file
+     * @param printer             receiver of messages to display
+     * @param projectDir          the path of the project
+     * @param disablingConfPath   the path of the disabling configuration
+     * @param printConfigPath     a file (path) containing all configuration for sanity check
+     * @param options             the archiving options
+     *
+     * @throws                    IOException if unsupported directives could not be filtered out
+     */
+    public static void zipConfigurations(List<File> configurationFiles, File confZip,
+                                         Printer printer, String projectDir,
+                                         String disablingConfPath, String printConfigPath,
+                                         ArchiveOptions options) throws IOException {
         final String SEP = File.separator;
         final String GRADLE_CACHE = ".gradle" + SEP + "caches" + SEP + "transforms";
-        Set<String> entryNamesProcessed = new HashSet<>();
+        Map<String, File> entries = new LinkedHashMap<>();
+        for (File conf : configurationFiles) {
+            if (!conf.exists()) {
+                printer.debug("WARNING: file does not exist: " + conf);
+                continue;
+            }
+            String path = conf.getCanonicalPath();
+            // Massage entry names.
+            String entryName;
+            if (path.equals(disablingConfPath)) {
+                // Don't add our "disabling rules" file to the archive.
+                continue;
+                // entryName = "DISABLING_RULES";
+            } else if (projectDir != null && path.startsWith(projectDir))
+                entryName = stripRootPrefix(path.substring(projectDir.length()));
+            else if (path.contains(GRADLE_CACHE)) {
+                String[] parts = path.split(SEP.equals("\\") ? "\\\\" : "/");
+                entryName = path.contains("META-INF") ?
+                    parts[parts.length-3] + SEP + parts[parts.length-2] + SEP + parts[parts.length-1] :
+                    parts[parts.length-2] + SEP + parts[parts.length-1];
+            } else
+                entryName = stripRootPrefix(path);
+            // Avoid duplicate entry names by keeping the first one.
+            if (entries.containsKey(entryName))
+                printer.warn("WARNING: duplicate configuration entry: " + entryName);
+            else
+                entries.put(entryName, conf);
+        }
+        if (options.reproducible)
+            entries = new TreeMap<>(entries);
+        if (options.mergeConfigurations) {
+            Map<String, File> merged = entries;
+            mergeConfigurations(merged, confZip, printer, options);
+            if (printConfigPath != null)
+                checkConfigurations(new File(printConfigPath), disablingConfPath, printer, totalRules -> {
+                    for (Map.Entry<String, File> entry : merged.entrySet())
+                        removeRules(totalRules, new FileInputStream(entry.getValue()), entry.getKey(), printer);
+                });
+            return;
+        }
         try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(confZip))) {
-            for (File conf : configurationFiles) {
-                if (!conf.exists()) {
-                    printer.debug("WARNING: file does not exist: " + conf);
-                    continue;
-                }
-                String path = conf.getCanonicalPath();
-                // Massage entry names.
-                String entryName;
-                if (path.equals(disablingConfPath)) {
-                    // Don't add our "disabling rules" file to the archive.
-                    continue;
-                    // entryName = "DISABLING_RULES";
-                } else if (projectDir != null && path.startsWith(projectDir))
-                    entryName = stripRootPrefix(path.substring(projectDir.length()));
-                else if (path.contains(GRADLE_CACHE)) {
-                    String[] parts = path.split(SEP.equals("\\") ? "\\\\" : "/");
-                    entryName = path.contains("META-INF") ?
-                        parts[parts.length-3] + SEP + parts[parts.length-2] + SEP + parts[parts.length-1] :
-                        parts[parts.length-2] + SEP + parts[parts.length-1];
-                } else
-                    entryName = stripRootPrefix(path);
-                // Avoid duplicate entry names by keeping the first one.
-                if (entryNamesProcessed.contains(entryName)) {
-                    printer.warn("WARNING: duplicate configuration entry: " + entryName);
-                    continue;
-                } else
-                    entryNamesProcessed.add(entryName);
-                out.putNextEntry(new ZipEntry(entryName));
+            for (Map.Entry<String, File> entry : entries.entrySet()) {
+                File conf = entry.getValue();
                 if (FILTER_UNSUPPORTED_DIRECTIVES)
                     conf = deleteUnsupportedDirectives(conf, printer);
                 byte[] data = Files.readAllBytes(conf.toPath());
+                ZipEntry zipEntry = newEntry(entry.getKey(), data, options.compression, out);
+                if (options.reproducible)
+                    zipEntry.setTime(ZipRecord.reproducibleJavaTime());
+                out.putNextEntry(zipEntry);
                 out.write(data, 0, data.length);
                 out.closeEntry();
             }
@@ -205,6 +776,59 @@ public final class Archiver {
         }
     }
 
+    /**
+     * Writes a configurations archive that contains a single merged
+     * configuration, with duplicate rules and unsupported directives removed.
+     *
+     * @param entries       the configuration files, by entry name
+     * @param confZip       the output file
+     * @param printer       receiver of messages to display
+     * @param options       the archiving options
+     * @throws IOException  if a configuration could not be read or the archive could not be written
+     */
+    private static void mergeConfigurations(Map<String, File> entries, File confZip,
+                                            Printer printer, ArchiveOptions options) throws IOException {
+        ProguardRules rules = new ProguardRules(UNSUPPORTED_DIRECTIVES);
+        for (Map.Entry<String, File> entry : entries.entrySet()) {
+            String text = new String(Files.readAllBytes(entry.getValue().toPath()), StandardCharsets.UTF_8);
+            rules.add(entry.getKey(), text, printer);
+        }
+        printer.info("Merged " + entries.size() + " configuration files: " + rules.size() + " rules, " +
+                rules.getDuplicateCount() + " duplicates removed.");
+        StringWriter merged = new StringWriter();
+        rules.write(merged);
+        byte[] data = merged.toString().getBytes(StandardCharsets.UTF_8);
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(confZip))) {
+            ZipEntry zipEntry = newEntry(Conventions.MERGED_CONFIGURATION_ENTRY, data, options.compression, out);
+            if (options.reproducible)
+                zipEntry.setTime(ZipRecord.reproducibleJavaTime());
+            out.putNextEntry(zipEntry);
+            out.write(data, 0, data.length);
+            out.closeEntry();
+        }
+    }
+
+    /**
+     * Creates an entry for a ZIP output stream, following a compression
+     * policy. For deflated entries, the level of the stream is set.
+     */
+    private static ZipEntry newEntry(String name, byte[] data, CompressionPolicy policy, ZipOutputStream out) {
+        ZipEntry entry = new ZipEntry(name);
+        int level = policy.levelFor(name, data, data.length);
+        if (level == CompressionPolicy.STORE) {
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
+        } else {
+            entry.setMethod(ZipEntry.DEFLATED);
+            out.setLevel(level);
+        }
+        return entry;
+    }
+
     /**
      * Strip root directory prefix to make absolute paths relative.
      *
@@ -217,7 +841,10 @@ public final class Archiver {
 
     /**
      * Construct a list of file paths corresponding to the contents of
-     * a resource directory in the program JAR.
+     * a resource directory in the program JAR. The resources are
+     * extracted to a persistent cache in the user cache directory (see
+     * {@link Settings#getUserCacheDir()}), which is shared by all runs
+     * (and concurrent builds) that use the same version of the resources.
      *
      * @param cl           the class loader to use for loading the resource
      * @param resourceDir  the resource directory
@@ -228,52 +855,40 @@ public final class Archiver {
         if (dirURL == null)
             return null;
 
-        List<String> ret = new LinkedList<>();
         try {
-            JarURLConnection jarConnection = (JarURLConnection) dirURL.openConnection();
-            ZipFile jar = jarConnection.getJarFile();
-            File tmpDir = Files.createTempDirectory("resources").toFile();
-            for (ZipEntry entry : Collections.list(jar.entries())) {
-                String name = entry.getName();
-                if (name.equals(resourceDir) || !name.startsWith(resourceDir))
-                    continue;
-                else if (name.contains("..")) {
-                    System.out.println("Ignoring entry that may escape to the filesystem: " + name);
-                    continue;
-                }
-                name = name.substring(resourceDir.length());
-                File outFile = new File(tmpDir, name);
-                copyZipEntryToFile(jar, entry, outFile);
-                ret.add(outFile.getCanonicalPath());
+            URLConnection connection = dirURL.openConnection();
+            if (!(connection instanceof JarURLConnection)) {
+                // Resources are not packaged (e.g., when running from a
+                // build directory), so there is nothing to extract.
+                File[] files = new File(dirURL.toURI()).listFiles(File::isFile);
+                List<String> ret = new LinkedList<>();
+                if (files != null)
+                    for (File f : files)
+                        ret.add(f.getCanonicalPath());
+                return ret;
+            }
+            ZipFile jar = ((JarURLConnection) connection).getJarFile();
+            try {
+                return ResourceCache.getResources(jar, resourceDir, new File(Settings.getUserCacheDir(), "resources"));
+            } catch (IOException ex) {
+                System.err.println(msg("Could not use resource cache, extracting to a temporary directory: " + ex.getMessage()));
+                return ResourceCache.extractToTempDir(jar, resourceDir);
             }
-            return ret;
         } catch (Exception ex) {
             ex.printStackTrace();
             return null;
         }
     }
 
-    /**
-     * Extracts a ZIP entry and writes it to a file.
-     *
-     * @param zip   the ZIP file
-     * @param entry the ZIP entry
-     * @param f     the output file
-     */
-    private static void copyZipEntryToFile(ZipFile zip, ZipEntry entry, File f) throws IOException {
-        // System.out.println(zip + ":" + entry + " -> " + f);
-        try (InputStream is = zip.getInputStream(entry);
-             OutputStream os = new BufferedOutputStream(new FileOutputStream(f))){
-            byte[] buffer = new byte[4096];
-            int readCount;
-            while ((readCount = is.read(buffer)) > 0) {
-                os.write(buffer, 0, readCount);
-            }
-        }
-    }
-
     /**
      * Check the completeness of the configurations archive to be uploaded.
+     * The check compares lines: every rule line of the archived files
+     * (and of the disabling configuration) must appear in the reference
+     * configuration and every rule line of the reference configuration
+     * must come from some archived file. Blank lines and comments are
+     * ignored. Differences are reported together with the file they
+     * come from; for the reference configuration, this is the section
+     * that R8 recorded for the line (if any).
      *
      * @param confZip            the configurations archive
      * @param printConfigFile    the file containing the reference configuration
@@ -283,46 +898,116 @@ public final class Archiver {
     public static void checkConfigurationsArchive(File confZip, File printConfigFile,
                                                   String disablingConfPath,
                                                   Printer printer) {
+        checkConfigurations(printConfigFile, disablingConfPath, printer, totalRules -> {
+            try (ZipFile zipFile = new ZipFile(confZip)) {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (!entry.isDirectory())
+                        removeRules(totalRules, zipFile.getInputStream(entry), entry.getName(), printer);
+                }
+            }
+        });
+    }
+
+    /** The configurations to check against the reference configuration. */
+    private interface ConfigurationSource {
+        /**
+         * Removes the rules of the configurations from the reference rules.
+         *
+         * @param totalRules    the lines of the reference configuration
+         * @throws IOException  on read error
+         */
+        void removeFrom(Map<String, Deque<String>> totalRules) throws IOException;
+    }
+
+    private static void checkConfigurations(File printConfigFile, String disablingConfPath,
+                                            Printer printer, ConfigurationSource configurations) {
         if (!printConfigFile.exists()) {
             printer.warn("Cannot check configuration completeness, file missing: " + printConfigFile);
             return;
         }
         try {
             printer.debug("Checking configuration completeness...");
-            ZipFile zipFile = new ZipFile(confZip);
-            List<String> rules = new LinkedList<>();
-            Enumeration<? extends ZipEntry> entries = zipFile.entries();
-            while (entries.hasMoreElements()) {
-                ZipEntry entry = entries.nextElement();
-                rules.add(fromInputStreamToString(zipFile.getInputStream(entry)));
+            // Map each rule line of the reference configuration to the
+            // sections that contain it, one element per occurrence.
+            Map<String, Deque<String>> totalRules = new LinkedHashMap<>();
+            try (BufferedReader reader = newReader(new FileInputStream(printConfigFile))) {
+                String section = null;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.startsWith(R8_SECTION_START))
+                        section = line.substring(R8_SECTION_START.length()).trim();
+                    else if (line.startsWith(R8_SECTION_END))
+                        section = null;
+                    else if (isRuleLine(line))
+                        totalRules.computeIfAbsent(line, k -> new ArrayDeque<>()).add(section == null ? "" : section);
+                }
             }
+            configurations.removeFrom(totalRules);
             if (disablingConfPath != null) {
                 File dc = new File(disablingConfPath);
                 if (dc.exists())
-                    rules.add(fromInputStreamToString(new FileInputStream(dc)));
+                    removeRules(totalRules, new FileInputStream(dc), disablingConfPath, printer);
             }
-            // Sort by longest-string-first, to avoid mishandling
-            // rules being subset of each other.
-            rules.sort(((String s1, String s2) -> s2.length() - s1.length()));
-            String totalRules = fromInputStreamToString(new FileInputStream(printConfigFile));
-            for (String r : rules) {
-                int idx = totalRules.indexOf(r);
-                if (idx < 0)
-                    printer.warn("Included rules not found in total configuration: " + r);
+            Map<String, StringBuilder> notUploaded = new LinkedHashMap<>();
+            for (Map.Entry<String, Deque<String>> entry : totalRules.entrySet())
+                for (String section : entry.getValue())
+                    notUploaded.computeIfAbsent(section, k -> new StringBuilder())
+                            .append(System.lineSeparator()).append(entry.getKey());
+            for (Map.Entry<String, StringBuilder> entry : notUploaded.entrySet()) {
+                String section = entry.getKey();
+                String diff = entry.getValue().toString().trim();
+                if (section.isEmpty())
+                    printer.warn("Configurations check, rules not uploaded: '" + diff + "'");
                 else
-                    totalRules = totalRules.substring(0, idx) + totalRules.substring(idx + r.length());
+                    printer.warn("Configurations check, rules not uploaded (from " + section + "): '" + diff + "'");
             }
-            String diff = totalRules.trim();
-            if (diff.length() != 0)
-                printer.warn("Configurations check, rules not uploaded: '" + diff + "'");
         } catch (Throwable t) {
             t.printStackTrace();
         }
     }
 
-    private static String fromInputStreamToString(InputStream is) throws IOException {
-        Path tmpFile = File.createTempFile("rules", ".tmp").toPath();
-        Files.copy(is, tmpFile, StandardCopyOption.REPLACE_EXISTING);
-        return new String(Files.readAllBytes(tmpFile));
+    /**
+     * Removes one occurrence of each rule line of a configuration from
+     * the lines of the reference configuration. Lines that are not found
+     * are reported as missing from the reference configuration.
+     *
+     * @param totalRules    the lines of the reference configuration
+     * @param is            the configuration to read (closed by this method)
+     * @param name          the name of the configuration (for messages)
+     * @param printer       receiver of messages to display
+     * @throws IOException  on read error
+     */
+    private static void removeRules(Map<String, Deque<String>> totalRules, InputStream is,
+                                    String name, Printer printer) throws IOException {
+        StringBuilder missing = new StringBuilder();
+        try (BufferedReader reader = newReader(is)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!isRuleLine(line))
+                    continue;
+                Deque<String> sections = totalRules.get(line);
+                if (sections == null)
+                    missing.append(System.lineSeparator()).append(line);
+                else {
+                    sections.poll();
+                    if (sections.isEmpty())
+                        totalRules.remove(line);
+                }
+            }
+        }
+        if (missing.length() > 0)
+            printer.warn("Included rules not found in total configuration (from " + name + "): " + missing.toString().trim());
+    }
+
+    private static boolean isRuleLine(String line) {
+        return !line.isEmpty() && !line.startsWith("#");
+    }
+
+    private static BufferedReader newReader(InputStream is) {
+        return new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
     }
 }
@@ -0,0 +1,168 @@
+package com.clyze.build.tools;
+
+import java.util.*;
+import java.util.zip.Deflater;
+
+/**
+ * Decides how each archive entry is compressed. Entries that are
+ * already compressed (such as nested archives, images and native
+ * libraries) are stored as-is, since deflating them again costs time
+ * for no gain. Entries of unknown type are sampled and stored if their
+ * contents look random. All other entries are deflated with the level
+ * of the policy.
+ *
+ * Subclasses may override {@link #levelFor(String, byte[], int)} to
+ * implement other policies; they must then use a name that is
+ * different from the names of the presets.
+ */
+public class CompressionPolicy {
+    /** The compression level that means "store the entry, do not deflate it". */
+    public static final int STORE = Deflater.NO_COMPRESSION;
+
+    /** The default policy: normal deflate level, already compressed entries are stored. */
+    public static final CompressionPolicy DEFAULT = new CompressionPolicy("default", Deflater.DEFAULT_COMPRESSION, true);
+    /** A policy for fast archiving (e.g., on CI machines). */
+    public static final CompressionPolicy FAST = new CompressionPolicy("fast", Deflater.BEST_SPEED, true);
+    /** A policy for small archives (e.g., for slow uplinks). */
+    public static final CompressionPolicy SMALL = new CompressionPolicy("small", Deflater.BEST_COMPRESSION, true);
+
+    /** The extensions of file types that are already compressed. */
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jar", "apk", "aar", "zip", "war", "ear", "jmod", "aab", "apex",
+            "gz", "tgz", "bz2", "xz", "7z", "zst", "lz4",
+            "png", "jpg", "jpeg", "gif", "webp", "ico",
+            "mp3", "mp4", "ogg", "m4a", "webm",
+            "woff", "woff2", "so"));
+
+    /** The number of bytes to look at when sampling an entry of unknown type. */
+    private static final int SAMPLE_SIZE = 4096;
+    /** Entries smaller than this are always deflated (sampling is unreliable). */
+    private static final int MIN_SAMPLE_SIZE = 512;
+    /** Samples with more entropy (in bits per byte) are considered already compressed. */
+    private static final double ENTROPY_THRESHOLD = 7.5;
+
+    private final String name;
+    private final int level;
+    private final boolean sample;
+
+    /**
+     * Creates a compression policy.
+     *
+     * @param name    the name of the policy
+     * @param level   the deflate level to use for compressible entries
+     * @param sample  if true, entries of unknown type are sampled
+     */
+    public CompressionPolicy(String name, int level, boolean sample) {
+        this.name = name;
+        this.level = level;
+        this.sample = sample;
+    }
+
+    /**
+     * Returns a policy preset.
+     *
+     * @param name  the preset name (one of {@link #presetNames()})
+     * @return      the policy
+     * @throws IllegalArgumentException if there is no such preset
+     */
+    public static CompressionPolicy forName(String name) {
+        for (CompressionPolicy p : presets())
+            if (p.name.equals(name))
+                return p;
+        throw new IllegalArgumentException("Unknown compression policy: " + name + ", valid values: " + presetNames());
+    }
+
+    /**
+     * Returns the names of the policy presets.
+     *
+     * @return a list of names
+     */
+    public static List<String> presetNames() {
+        List<String> names = new ArrayList<>();
+        for (CompressionPolicy p : presets())
+            names.add(p.name);
+        return names;
+    }
+
+    private static List<CompressionPolicy> presets() {
+        return Arrays.asList(DEFAULT, FAST, SMALL);
+    }
+
+    /**
+     * Returns the name of this policy.
+     *
+     * @return the preset name (see {@link #forName(String)})
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Decides how to compress an entry.
+     *
+     * @param entryName  the entry name
+     * @param data       the first bytes of the entry (or all of them)
+     * @param len        the number of bytes available in the data
+     * @return           a deflate level, or {@link #STORE} if the entry
+     *                   should be stored
+     */
+    public int levelFor(String entryName, byte[] data, int len) {
+        if (isCompressedType(entryName))
+            return STORE;
+        if (sample && len >= MIN_SAMPLE_SIZE && !hasExtension(entryName, "class") &&
+                entropy(data, Math.min(len, SAMPLE_SIZE)) > ENTROPY_THRESHOLD)
+            return STORE;
+        return level;
+    }
+
+    /**
+     * Returns the number of leading bytes of an entry that
+     * {@link #levelFor(String, byte[], int)} needs to see.
+     *
+     * @return a number of bytes
+     */
+    public int getSampleSize() {
+        return sample ? SAMPLE_SIZE : 0;
+    }
+
+    /**
+     * Checks if an entry has a file type that is already compressed.
+     *
+     * @param entryName  the entry name
+     * @return           true if the entry should not be compressed again
+     */
+    public static boolean isCompressedType(String entryName) {
+        int dot = entryName.lastIndexOf('.');
+        return dot >= 0 && dot > entryName.lastIndexOf('/') &&
+                COMPRESSED_EXTENSIONS.contains(entryName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private static boolean hasExtension(String entryName, String ext) {
+        return entryName.regionMatches(true, entryName.length() - ext.length() - 1, "." + ext, 0, ext.length() + 1);
+    }
+
+    /**
+     * Computes the Shannon entropy of some bytes.
+     *
+     * @param data  the data
+     * @param len   the number of bytes to look at
+     * @return      the entropy in bits per byte (between 0 and 8)
+     */
+    static double entropy(byte[] data, int len) {
+        int[] counts = new int[256];
+        for (int i = 0; i < len; i++)
+            counts[data[i] & 0xFF]++;
+        double h = 0;
+        for (int c : counts)
+            if (c > 0) {
+                double p = (double) c / len;
+                h -= p * Math.log(p);
+            }
+        return h / Math.log(2);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -12,10 +12,18 @@ public class Conventions {
     public static final String CLYZE_SNAPSHOT_DIR = ".clyze-snapshot";
     /** The name of the metadata archive to post. */
     public static final String METADATA_FILE       = "metadata.zip";
+    /** The name of the metadata file to post, when metadata compaction is enabled (see {@link MetadataCodec}). */
+    public static final String COMPACT_METADATA_FILE = "metadata.czm";
     /** The name of the configurations archive to post. */
     public static final String CONFIGURATIONS_FILE = "configurations.zip";
     /** The name of the sources archive to post. */
     public static final String SOURCES_FILE        = "sources.jar";
+    /** The name of the archive that bundles all libraries, when bundling is enabled. */
+    public static final String LIBRARY_BUNDLE_FILE = "libraries.jar";
+    /** The entry of a library bundle that records the original library of each entry. */
+    public static final String LIBRARY_BUNDLE_INDEX = "META-INF/clyze-bundle-index.txt";
+    /** The entry of a configurations archive that holds the merged rules, when merging is enabled. */
+    public static final String MERGED_CONFIGURATION_ENTRY = "merged-rules.pro";
     /** The tag of "application" binary inputs expected by the server. */
     public static final String BINARY_INPUT_TAG    = "app";
     /** The tag of "library" binary inputs expected by the server. */
@@ -0,0 +1,426 @@
+package com.clyze.build.tools;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import static com.clyze.build.tools.Conventions.msg;
+
+/**
+ * Walks directory trees in parallel. Subdirectories are listed by the
+ * tasks of a fork-join pool, while the files found are streamed to the
+ * visitor on the calling thread, so visitors do not have to be thread
+ * safe. Symbolic links are followed and link cycles are skipped. The
+ * files found are handed over through a bounded queue, so a walk uses
+ * a bounded amount of memory, whatever the size of the tree; the walk
+ * is stopped as soon as the visitor stops (or fails).
+ *
+ * A scan can also ask the scanner to remember the tree: scanning that
+ * tree again (or a directory inside it) replays the files found the
+ * first time, and a walk that reaches a remembered tree reuses its
+ * files instead of listing it again. Remembered trees are kept until
+ * the scanner is closed, so this should only be asked for trees that
+ * are scanned more than once and by code that does not expect the
+ * trees to change between scans (such as the steps of a single run of
+ * the tools).
+ *
+ * Canonical paths are memoized per directory, so that canonicalizing
+ * the files of the same directory does not resolve the whole path of
+ * each file again.
+ */
+public final class FileScanner implements Closeable {
+    /** Marks the end of the files of a walk. */
+    private static final Object END = new Object();
+    /** The maximum number of files found but not yet visited. */
+    private static final int QUEUE_CAPACITY = 4096;
+
+    private final ForkJoinPool pool;
+    private final Predicate<Path> skipDirectory;
+    /** The canonical paths of directories, by absolute path. */
+    private final ConcurrentMap<String, String> canonicalDirs = new ConcurrentHashMap<>();
+    /** The remembered trees, by canonical path. */
+    private final ConcurrentMap<String, Tree> trees = new ConcurrentHashMap<>();
+
+    /**
+     * Create a scanner.
+     *
+     * @param threads   the number of threads to list directories with
+     */
+    public FileScanner(int threads) {
+        this(threads, p -> false);
+    }
+
+    /**
+     * Create a scanner that does not enter some directories.
+     *
+     * @param threads         the number of threads to list directories with
+     * @param skipDirectory   returns true for the directories that should not be walked
+     */
+    public FileScanner(int threads, Predicate<Path> skipDirectory) {
+        this.pool = new ForkJoinPool(Math.max(1, threads), p -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            t.setName("clyze-scan-" + t.getPoolIndex());
+            t.setDaemon(true);
+            return t;
+        }, null, false);
+        this.skipDirectory = skipDirectory;
+    }
+
+    /** Receives the files found by a scan. */
+    public interface Visitor {
+        /**
+         * Visits a file.
+         *
+         * @param name         the path of the file relative to the scanned
+         *                     directory, using '/' as the separator
+         * @param file         the file
+         * @return             false if no more files should be visited
+         * @throws IOException on major error
+         */
+        boolean visit(String name, File file) throws IOException;
+    }
+
+    /** A file found by a walk. */
+    private static final class Entry {
+        final String name;
+        final File file;
+
+        Entry(String name, File file) {
+            this.name = name;
+            this.file = file;
+        }
+    }
+
+    /** The regular files of a walked tree. */
+    private static final class Tree {
+        final List<Entry> entries;
+        /** True if some part of the tree could not be read. */
+        final boolean error;
+
+        Tree(List<Entry> entries, boolean error) {
+            this.entries = entries;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Visits the regular files of a directory tree, in no particular
+     * order. The tree is not remembered.
+     *
+     * @param root         the root directory
+     * @param include      returns true for the files to visit (null to visit all files)
+     * @param visitor      the visitor of the files
+     * @return             true if some file or directory could not be visited
+     * @throws IOException if the root directory could not be read
+     */
+    public boolean scan(File root, Predicate<File> include, Visitor visitor) throws IOException {
+        return scan(root, include, visitor, false);
+    }
+
+    /**
+     * Visits the regular files of a directory tree, in no particular
+     * order.
+     *
+     * @param root         the root directory
+     * @param include      returns true for the files to visit (null to visit all files)
+     * @param visitor      the visitor of the files
+     * @param remember     if true, the files of the tree are kept, so that
+     *                     later scans replay them instead of walking the
+     *                     tree again (the tree is then walked to the end,
+     *                     even if the visitor stops)
+     * @return             true if some file or directory could not be visited
+     * @throws IOException if the root directory could not be read
+     */
+    public boolean scan(File root, Predicate<File> include, Visitor visitor, boolean remember) throws IOException {
+        return scan(root, include, visitor, remember, null);
+    }
+
+    /**
+     * Visits the regular files of a directory tree, in no particular
+     * order, without entering some more directories than the ones this
+     * scanner skips. The tree is not remembered and remembered trees
+     * are not replayed (as they may contain such directories), but the
+     * memoized canonical paths are still reused.
+     *
+     * @param root            the root directory
+     * @param include         returns true for the files to visit (null to visit all files)
+     * @param visitor         the visitor of the files
+     * @param skipDirectory   returns true for the directories that should not be walked
+     * @return                true if some file or directory could not be visited
+     * @throws IOException    if the root directory could not be read
+     */
+    public boolean scan(File root, Predicate<File> include, Visitor visitor, Predicate<Path> skipDirectory) throws IOException {
+        return scan(root, include, visitor, false, skipDirectory);
+    }
+
+    private boolean scan(File root, Predicate<File> include, Visitor visitor, boolean remember,
+                         Predicate<Path> skip) throws IOException {
+        if (!root.isDirectory())
+            throw new FileNotFoundException(root.toString());
+        String key = getCanonicalPath(root);
+        Tree tree = skip == null ? findTree(key) : null;
+        if (tree != null) {
+            replay(tree, root, include, visitor);
+            return tree.error;
+        }
+
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        List<Entry> entries = remember ? new ArrayList<>() : null;
+        Walk walk = new Walk(root.toPath(), queue, skip);
+        pool.execute(() -> {
+            try {
+                walk.invoke();
+            } finally {
+                walk.put(END);
+            }
+        });
+        boolean visiting = true;
+        boolean complete = false;
+        try {
+            while (true) {
+                Object o = queue.take();
+                if (o == END) {
+                    complete = true;
+                    break;
+                }
+                Entry e = (Entry) o;
+                if (remember)
+                    entries.add(e);
+                if (visiting && (include == null || include.test(e.file)))
+                    visiting = visitor.visit(e.name, e.file);
+                // A remembered tree is still collected after the visitor stops.
+                if (!visiting && !remember)
+                    break;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while scanning " + root);
+        } finally {
+            if (!complete)
+                walk.cancelled = true;
+        }
+        if (!complete)
+            return walk.error.get();
+        if (walk.rootError != null)
+            throw walk.rootError;
+        if (remember)
+            trees.put(key, new Tree(entries, walk.error.get()));
+        return walk.error.get();
+    }
+
+    /**
+     * Returns the walked tree that contains a directory.
+     *
+     * @param key   the canonical path of the directory
+     * @return      the tree (with the same root as the directory), or null
+     */
+    private Tree findTree(String key) {
+        Tree tree = trees.get(key);
+        if (tree != null)
+            return tree;
+        for (String parent = parentOf(key); parent != null; parent = parentOf(parent)) {
+            Tree parentTree = trees.get(parent);
+            if (parentTree != null) {
+                String prefix = key.substring(parent.length()).replace(File.separatorChar, '/');
+                prefix = (prefix.startsWith("/") ? prefix.substring(1) : prefix) + "/";
+                List<Entry> entries = new ArrayList<>();
+                for (Entry e : parentTree.entries)
+                    if (e.name.startsWith(prefix))
+                        entries.add(new Entry(e.name.substring(prefix.length()), e.file));
+                return new Tree(entries, parentTree.error);
+            }
+        }
+        return null;
+    }
+
+    private static String parentOf(String path) {
+        return new File(path).getParent();
+    }
+
+    /** Visits the files of a walked tree, as files of a (possibly differently named) root. */
+    private static void replay(Tree tree, File root, Predicate<File> include, Visitor visitor) throws IOException {
+        for (Entry e : tree.entries) {
+            File f = new File(root, e.name);
+            if ((include == null || include.test(f)) && !visitor.visit(e.name, f))
+                break;
+        }
+    }
+
+    /**
+     * Returns the canonical path of a file. The canonical paths of
+     * directories are memoized, so a file only costs a check for a
+     * symbolic link.
+     *
+     * @param f             the file
+     * @return              the canonical path
+     * @throws IOException  if the path could not be resolved
+     */
+    public String getCanonicalPath(File f) throws IOException {
+        File abs = f.getAbsoluteFile();
+        if (!isPlain(abs))
+            return abs.getCanonicalPath();
+        String parent = getCanonicalDir(abs.getParentFile());
+        return parent.endsWith(File.separator) ? parent + abs.getName() : parent + File.separator + abs.getName();
+    }
+
+    private String getCanonicalDir(File dir) throws IOException {
+        String path = dir.getPath();
+        String canonical = canonicalDirs.get(path);
+        if (canonical == null) {
+            canonical = getCanonicalPath(dir);
+            canonicalDirs.putIfAbsent(path, canonical);
+        }
+        return canonical;
+    }
+
+    /**
+     * Checks if the canonical path of a file can be computed from the
+     * canonical path of its parent directory.
+     */
+    private static boolean isPlain(File abs) {
+        String name = abs.getName();
+        return abs.getParentFile() != null && !name.isEmpty() && !name.equals(".") && !name.equals("..") &&
+                !Files.isSymbolicLink(abs.toPath());
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /** The directories being walked, from the innermost one. */
+    private static final class Ancestors {
+        final String key;
+        final Ancestors parent;
+
+        Ancestors(String key, Ancestors parent) {
+            this.key = key;
+            this.parent = parent;
+        }
+
+        boolean contains(String k) {
+            for (Ancestors a = this; a != null; a = a.parent)
+                if (a.key.equals(k))
+                    return true;
+            return false;
+        }
+    }
+
+    /** The state of a parallel walk. */
+    private final class Walk extends RecursiveAction {
+        final Path root;
+        final BlockingQueue<Object> queue;
+        /** The directories skipped by this walk only (or null). */
+        final Predicate<Path> skip;
+        final AtomicBoolean error = new AtomicBoolean(false);
+        volatile IOException rootError = null;
+        /** Set when the files are no longer needed, to stop the walk. */
+        volatile boolean cancelled = false;
+
+        Walk(Path root, BlockingQueue<Object> queue, Predicate<Path> skip) {
+            this.root = root;
+            this.queue = queue;
+            this.skip = skip;
+        }
+
+        @Override
+        protected void compute() {
+            new DirTask(root, "", null).compute();
+        }
+
+        /**
+         * Hands a file (or the end marker) to the visitor, waiting while
+         * the queue is full, unless the walk has been cancelled.
+         */
+        void put(Object o) {
+            try {
+                while (!cancelled && !queue.offer(o, 50, TimeUnit.MILLISECONDS))
+                    ;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                cancelled = true;
+            }
+        }
+
+        /** Lists a directory and forks the walks of its subdirectories. */
+        final class DirTask extends RecursiveAction {
+            final Path dir;
+            final String prefix;
+            final Ancestors ancestors;
+
+            DirTask(Path dir, String prefix, Ancestors ancestors) {
+                this.dir = dir;
+                this.prefix = prefix;
+                this.ancestors = ancestors;
+            }
+
+            @Override
+            protected void compute() {
+                if (cancelled)
+                    return;
+                String key;
+                List<Path> children = new ArrayList<>();
+                try {
+                    key = getCanonicalDir(dir.toFile().getAbsoluteFile());
+                    if (ancestors != null && ancestors.contains(key)) {
+                        System.err.println(msg("Skipping symbolic link cycle: " + dir));
+                        return;
+                    }
+                    // Reuse the files of a tree that has already been walked.
+                    Tree tree = ancestors == null || skip != null ? null : trees.get(key);
+                    if (tree != null) {
+                        for (Entry e : tree.entries) {
+                            if (cancelled)
+                                return;
+                            put(new Entry(prefix + e.name, new File(dir.toFile(), e.name)));
+                        }
+                        if (tree.error)
+                            error.set(true);
+                        return;
+                    }
+                    try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                        ds.forEach(children::add);
+                    }
+                } catch (IOException | DirectoryIteratorException ex) {
+                    IOException ioe = ex instanceof DirectoryIteratorException ? ((DirectoryIteratorException) ex).getCause() : (IOException) ex;
+                    if (ancestors == null)
+                        rootError = ioe;
+                    else {
+                        System.err.println(msg("Could not process file " + dir + ": " + ioe.getMessage()));
+                        error.set(true);
+                    }
+                    return;
+                }
+                Ancestors inner = new Ancestors(key, ancestors);
+                List<DirTask> subtasks = new ArrayList<>();
+                for (Path child : children) {
+                    if (cancelled)
+                        return;
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(child, BasicFileAttributes.class);
+                    } catch (IOException ex) {
+                        // Broken symbolic links are ignored.
+                        if (!Files.isSymbolicLink(child)) {
+                            System.err.println(msg("Could not process file " + child + ": " + ex.getMessage()));
+                            error.set(true);
+                        }
+                        continue;
+                    }
+                    String name = prefix + child.getFileName().toString();
+                    if (attrs.isDirectory()) {
+                        if (!skipDirectory.test(child) && (skip == null || !skip.test(child)))
+                            subtasks.add(new DirTask(child, name + "/", inner));
+                    } else if (attrs.isRegularFile())
+                        put(new Entry(name, child.toFile()));
+                }
+                invokeAll(subtasks);
+            }
+        }
+    }
+}
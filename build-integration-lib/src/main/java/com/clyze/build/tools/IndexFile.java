@@ -0,0 +1,214 @@
+package com.clyze.build.tools;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Reads and writes the index files that the tools keep in the user
+ * cache directory (such as the indexes of local repositories and of
+ * source trees). An index file starts with a magic number and a
+ * version, so that files of other formats are ignored, and it is
+ * replaced atomically, so that concurrent processes can share it.
+ * Sorted strings can be front-coded: each string only stores the
+ * suffix that differs from the previous string.
+ */
+public final class IndexFile {
+    private IndexFile() {}
+
+    /** Writes the contents of a file. */
+    public interface Contents {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Returns the file of an index in the user cache directory. The
+     * file name is derived from the path that the index describes.
+     *
+     * @param dir    the name of the cache subdirectory
+     * @param name   a readable prefix for the file name
+     * @param path   the path that the index describes
+     * @return       the index file (which may not exist yet)
+     */
+    public static File inCacheDir(String dir, String name, String path) {
+        return new File(new File(Settings.getUserCacheDir(), dir), name + "-" + key(path) + ".idx");
+    }
+
+    /**
+     * Returns a short key for a string, to be used in file names.
+     *
+     * @param s   the string
+     * @return    the first 8 bytes of the SHA-256 digest of the string, in hex
+     */
+    public static String key(String s) {
+        return hex(sha256().digest(s.getBytes(StandardCharsets.UTF_8)), 8);
+    }
+
+    /**
+     * Creates a SHA-256 digest.
+     *
+     * @return the digest
+     */
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("No SHA-256 algorithm found", ex);
+        }
+    }
+
+    /**
+     * Returns the first bytes of an array in (lowercase) hex.
+     *
+     * @param bytes    the bytes
+     * @param length   the number of bytes to use
+     * @return         the hex string
+     */
+    public static String hex(byte[] bytes, int length) {
+        char[] chars = new char[2 * length];
+        for (int i = 0; i < length; i++) {
+            chars[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            chars[2 * i + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Reads an index file with a single bulk read.
+     *
+     * @param file          the index file
+     * @param magic         the magic number of the format
+     * @param version       the version of the format
+     * @return              the contents after the header, or null if the
+     *                      file does not exist or has another format
+     * @throws IOException  on read error
+     */
+    public static ByteBuffer load(File file, int magic, int version) throws IOException {
+        if (!file.exists())
+            return null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+            while (buf.hasRemaining() && channel.read(buf) >= 0) ;
+            buf.flip();
+            if (buf.remaining() < 8 || buf.getInt() != magic || buf.getInt() != version)
+                return null;
+            return buf;
+        }
+    }
+
+    /**
+     * Writes an index file (see {@link #replace(File, Contents)}).
+     *
+     * @param file          the index file
+     * @param magic         the magic number of the format
+     * @param version       the version of the format
+     * @param contents      writes the contents after the header
+     * @throws IOException  on write error
+     */
+    public static void save(File file, int magic, int version, Contents contents) throws IOException {
+        replace(file, out -> {
+            out.writeInt(magic);
+            out.writeInt(version);
+            contents.write(out);
+        });
+    }
+
+    /**
+     * Replaces a file. The file is written next to its final location
+     * and then moved, so that readers never see a partial file.
+     *
+     * @param file          the file
+     * @param contents      writes the contents of the file
+     * @throws IOException  on write error
+     */
+    public static void replace(File file, Contents contents) throws IOException {
+        File parent = file.getParentFile();
+        Files.createDirectories(parent.toPath());
+        File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                contents.write(out);
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Writes a string as the length of its common prefix with the
+     * previous string and the rest.
+     *
+     * @param out           the output
+     * @param previous      the previous string ("" for the first string)
+     * @param s             the string
+     * @throws IOException  on write error
+     */
+    public static void writeString(DataOutputStream out, String previous, String s) throws IOException {
+        int common = 0;
+        int max = Math.min(previous.length(), s.length());
+        while (common < max && previous.charAt(common) == s.charAt(common))
+            common++;
+        // Do not split a surrogate pair.
+        if (common > 0 && Character.isHighSurrogate(s.charAt(common - 1)))
+            common--;
+        byte[] suffix = s.substring(common).getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, common);
+        writeVarInt(out, suffix.length);
+        out.write(suffix);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutputStream, String, String)}.
+     *
+     * @param buf        the input
+     * @param previous   the previous string ("" for the first string)
+     * @return           the string
+     */
+    public static String readString(ByteBuffer buf, String previous) {
+        int common = readVarInt(buf);
+        byte[] suffix = new byte[readVarInt(buf)];
+        buf.get(suffix);
+        return previous.substring(0, common) + new String(suffix, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a non-negative integer in 1 to 5 bytes (7 bits per byte).
+     *
+     * @param out           the output
+     * @param value         the value
+     * @throws IOException  on write error
+     */
+    public static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Reads an integer written by {@link #writeVarInt(DataOutputStream, int)}.
+     *
+     * @param buf   the input
+     * @return      the value
+     */
+    public static int readVarInt(ByteBuffer buf) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalStateException("Malformed index");
+    }
+}
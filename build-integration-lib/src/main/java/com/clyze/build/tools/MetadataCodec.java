@@ -0,0 +1,439 @@
+package com.clyze.build.tools;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A compact binary form for the JSON metadata of the javac plugin
+ * ("jcplugin"). The metadata files repeat the same type names, paths
+ * and member names many times, so each string is only written the first
+ * time it appears and is later referenced by its index in a string
+ * table shared by all files. Integers (such as positions) are written as
+ * variable-length numbers. The result is deflated.
+ *
+ * Files are encoded and decoded as streams of JSON tokens, so the memory
+ * used only grows with the number of distinct strings (and the string
+ * table is capped, after which new strings are written in place).
+ *
+ * The encoding is lossless: decoding gives back the same files, with
+ * JSON documents that have the same values (without insignificant
+ * whitespace). Files that are not JSON are kept as they are.
+ *
+ * Format (after inflating): the magic number, the version, then a
+ * sequence of entries, each one being a tag, the entry name and its
+ * contents, and finally an end tag.
+ */
+public final class MetadataCodec {
+
+    /**
+     * This is a utility class, no public constructor is needed (or
+     * should appear in documentation).
+     */
+    private MetadataCodec() {}
+
+    private static final int MAGIC = 0x435A4D44;
+    private static final int VERSION = 1;
+    /** The maximum number of strings in the string table. */
+    private static final int MAX_STRINGS = 1 << 20;
+    /** Integer literals that decode to the same literal. */
+    private static final Pattern CANONICAL_INTEGER = Pattern.compile("0|-?[1-9][0-9]{0,17}");
+
+    // Entry tags.
+    private static final int END = 0;
+    private static final int JSON_ENTRY = 1;
+    private static final int RAW_ENTRY = 2;
+
+    // Token tags of JSON entries.
+    private static final int T_END_OF_ENTRY = 0;
+    private static final int T_BEGIN_OBJECT = 1;
+    private static final int T_END_OBJECT = 2;
+    private static final int T_BEGIN_ARRAY = 3;
+    private static final int T_END_ARRAY = 4;
+    private static final int T_NAME = 5;
+    private static final int T_STRING = 6;
+    private static final int T_INTEGER = 7;
+    private static final int T_NUMBER = 8;
+    private static final int T_TRUE = 9;
+    private static final int T_FALSE = 10;
+    private static final int T_NULL = 11;
+    /** Separates the top-level values of a file that holds many of them. */
+    private static final int T_NEXT_VALUE = 12;
+
+    // String references: a new string (added to the table), a string
+    // that is not added to the table, or an index in the table (+2).
+    private static final int NEW_STRING = 0;
+    private static final int LITERAL_STRING = 1;
+
+    /** Receives the files of decoded metadata. */
+    public interface EntryWriter {
+        /**
+         * Opens a decoded file for writing. The stream is closed by the decoder.
+         *
+         * @param name          the entry name of the file
+         * @return              the stream to write the contents of the file to
+         * @throws IOException  if the file could not be created
+         */
+        OutputStream open(String name) throws IOException;
+    }
+
+    /**
+     * Encodes metadata files.
+     *
+     * @param entries       the metadata files, by entry name
+     * @param target        the file to write
+     * @param options       the archive options (for the compression level)
+     * @throws IOException  if a file could not be read or is not valid JSON
+     *                      (the target is then deleted)
+     */
+    public static void encode(Map<String, File> entries, File target, ArchiveOptions options) throws IOException {
+        try {
+            encodeEntries(entries, target, options);
+        } catch (IOException ex) {
+            Files.deleteIfExists(target.toPath());
+            throw ex;
+        }
+    }
+
+    private static void encodeEntries(Map<String, File> entries, File target, ArchiveOptions options) throws IOException {
+        // The level is decided by the name, since the encoded data cannot be sampled up front.
+        Deflater deflater = new Deflater(options.compression.levelFor(target.getName(), new byte[0], 0));
+        try (Output out = new Output(new BufferedOutputStream(new DeflaterOutputStream(new FileOutputStream(target), deflater, 1 << 16), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeVarInt(VERSION);
+            for (Map.Entry<String, File> entry : entries.entrySet()) {
+                String name = entry.getKey();
+                File file = entry.getValue();
+                if (name.endsWith(".json")) {
+                    out.writeVarInt(JSON_ENTRY);
+                    out.writeString(name);
+                    encodeJson(file, out);
+                } else {
+                    out.writeVarInt(RAW_ENTRY);
+                    out.writeString(name);
+                    out.writeVarLong(file.length());
+                    Files.copy(file.toPath(), out.stream);
+                }
+            }
+            out.writeVarInt(END);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void encodeJson(File file, Output out) throws IOException {
+        try (JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16))) {
+            // Lenient, to accept files with many top-level values.
+            reader.setLenient(true);
+            boolean first = true;
+            while (reader.peek() != JsonToken.END_DOCUMENT) {
+                if (!first)
+                    out.writeVarInt(T_NEXT_VALUE);
+                first = false;
+                encodeValue(reader, out);
+            }
+        } catch (IOException ex) {
+            throw new IOException("Could not encode metadata file " + file + ": " + ex.getMessage(), ex);
+        }
+        out.writeVarInt(T_END_OF_ENTRY);
+    }
+
+    /** Encodes a value, using a counter of open structures instead of recursion. */
+    private static void encodeValue(JsonReader reader, Output out) throws IOException {
+        int depth = 0;
+        do {
+            switch (reader.peek()) {
+                case BEGIN_OBJECT:
+                    reader.beginObject();
+                    out.writeVarInt(T_BEGIN_OBJECT);
+                    depth++;
+                    break;
+                case END_OBJECT:
+                    reader.endObject();
+                    out.writeVarInt(T_END_OBJECT);
+                    depth--;
+                    break;
+                case BEGIN_ARRAY:
+                    reader.beginArray();
+                    out.writeVarInt(T_BEGIN_ARRAY);
+                    depth++;
+                    break;
+                case END_ARRAY:
+                    reader.endArray();
+                    out.writeVarInt(T_END_ARRAY);
+                    depth--;
+                    break;
+                case NAME:
+                    out.writeVarInt(T_NAME);
+                    out.writeString(reader.nextName());
+                    break;
+                case STRING:
+                    out.writeVarInt(T_STRING);
+                    out.writeString(reader.nextString());
+                    break;
+                case NUMBER:
+                    String literal = reader.nextString();
+                    if (CANONICAL_INTEGER.matcher(literal).matches()) {
+                        out.writeVarInt(T_INTEGER);
+                        long n = Long.parseLong(literal);
+                        out.writeVarLong((n << 1) ^ (n >> 63));
+                    } else {
+                        out.writeVarInt(T_NUMBER);
+                        out.writeString(literal);
+                    }
+                    break;
+                case BOOLEAN:
+                    out.writeVarInt(reader.nextBoolean() ? T_TRUE : T_FALSE);
+                    break;
+                case NULL:
+                    reader.nextNull();
+                    out.writeVarInt(T_NULL);
+                    break;
+                default:
+                    throw new IOException("Unexpected end of JSON data");
+            }
+        } while (depth > 0);
+    }
+
+    /**
+     * Decodes metadata.
+     *
+     * @param in            the encoded metadata
+     * @param writer        receives the decoded files
+     * @throws IOException  if the metadata is malformed or a file could not be written
+     */
+    public static void decode(InputStream in, EntryWriter writer) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            decode(new Input(new BufferedInputStream(new InflaterInputStream(in, inflater, 1 << 16), 1 << 16)), writer);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void decode(Input input, EntryWriter writer) throws IOException {
+        if (input.readInt() != MAGIC)
+            throw new IOException("Not compact metadata");
+        int version = input.readVarInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported compact metadata version: " + version);
+        for (int tag = input.readVarInt(); tag != END; tag = input.readVarInt()) {
+            String name = input.readString();
+            try (OutputStream os = writer.open(name)) {
+                if (tag == JSON_ENTRY) {
+                    Writer w = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 1 << 16);
+                    decodeJson(input, w);
+                    w.flush();
+                } else if (tag == RAW_ENTRY) {
+                    long size = input.readVarLong();
+                    byte[] buf = new byte[8192];
+                    while (size > 0) {
+                        int n = input.stream.read(buf, 0, (int) Math.min(buf.length, size));
+                        if (n < 0)
+                            throw new EOFException("Truncated entry: " + name);
+                        os.write(buf, 0, n);
+                        size -= n;
+                    }
+                } else
+                    throw new IOException("Malformed compact metadata, unknown entry tag: " + tag);
+            }
+        }
+    }
+
+    /**
+     * Decodes metadata to a directory.
+     *
+     * @param compact       the encoded metadata
+     * @param targetDir     the directory to write the files to
+     * @throws IOException  if the metadata is malformed or a file could not be written
+     */
+    public static void decode(File compact, File targetDir) throws IOException {
+        String targetPath = targetDir.getCanonicalPath() + File.separator;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(compact))) {
+            decode(in, (String name) -> {
+                File f = new File(targetDir, name);
+                // Do not write outside the target directory.
+                if (!f.getCanonicalPath().startsWith(targetPath))
+                    throw new IOException("Invalid entry name: " + name);
+                Files.createDirectories(f.getParentFile().toPath());
+                return new FileOutputStream(f);
+            });
+        }
+    }
+
+    private static void decodeJson(Input in, Writer w) throws IOException {
+        JsonWriter writer = newWriter(w);
+        for (int tag = in.readVarInt(); tag != T_END_OF_ENTRY; tag = in.readVarInt()) {
+            switch (tag) {
+                case T_BEGIN_OBJECT:
+                    writer.beginObject();
+                    break;
+                case T_END_OBJECT:
+                    writer.endObject();
+                    break;
+                case T_BEGIN_ARRAY:
+                    writer.beginArray();
+                    break;
+                case T_END_ARRAY:
+                    writer.endArray();
+                    break;
+                case T_NAME:
+                    writer.name(in.readString());
+                    break;
+                case T_STRING:
+                    writer.value(in.readString());
+                    break;
+                case T_INTEGER:
+                    long n = in.readVarLong();
+                    writer.value((n >>> 1) ^ -(n & 1));
+                    break;
+                case T_NUMBER:
+                    writer.jsonValue(in.readString());
+                    break;
+                case T_TRUE:
+                    writer.value(true);
+                    break;
+                case T_FALSE:
+                    writer.value(false);
+                    break;
+                case T_NULL:
+                    writer.nullValue();
+                    break;
+                case T_NEXT_VALUE:
+                    writer.flush();
+                    w.write('\n');
+                    writer = newWriter(w);
+                    break;
+                default:
+                    throw new IOException("Malformed compact metadata, unknown token tag: " + tag);
+            }
+        }
+        writer.flush();
+    }
+
+    private static JsonWriter newWriter(Writer w) {
+        JsonWriter writer = new JsonWriter(w);
+        // Top-level values that are not objects or arrays are allowed.
+        writer.setLenient(true);
+        return writer;
+    }
+
+    /** The encoder output, with the string table. */
+    private static final class Output implements Closeable {
+        final OutputStream stream;
+        final Map<String, Integer> strings = new HashMap<>();
+
+        Output(OutputStream stream) {
+            this.stream = stream;
+        }
+
+        void writeInt(int value) throws IOException {
+            stream.write(value >>> 24);
+            stream.write(value >>> 16);
+            stream.write(value >>> 8);
+            stream.write(value);
+        }
+
+        void writeVarInt(int value) throws IOException {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                stream.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            stream.write((int) value);
+        }
+
+        void writeString(String s) throws IOException {
+            Integer index = strings.get(s);
+            if (index != null) {
+                writeVarInt(index + 2);
+                return;
+            }
+            if (strings.size() < MAX_STRINGS) {
+                strings.put(s, strings.size());
+                writeVarInt(NEW_STRING);
+            } else
+                writeVarInt(LITERAL_STRING);
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length);
+            stream.write(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+
+    /** The decoder input, with the string table. */
+    private static final class Input {
+        final InputStream stream;
+        final List<String> strings = new ArrayList<>();
+
+        Input(InputStream stream) {
+            this.stream = stream;
+        }
+
+        private int readByte() throws IOException {
+            int b = stream.read();
+            if (b < 0)
+                throw new EOFException("Truncated compact metadata");
+            return b;
+        }
+
+        int readInt() throws IOException {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        int readVarInt() throws IOException {
+            long value = readVarLong();
+            if (value > Integer.MAX_VALUE)
+                throw new IOException("Malformed compact metadata, number too large: " + value);
+            return (int) value;
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Malformed compact metadata, number too long");
+        }
+
+        String readString() throws IOException {
+            int ref = readVarInt();
+            if (ref >= 2) {
+                if (ref - 2 >= strings.size())
+                    throw new IOException("Malformed compact metadata, unknown string: " + ref);
+                return strings.get(ref - 2);
+            }
+            byte[] bytes = new byte[readVarInt()];
+            int off = 0;
+            while (off < bytes.length) {
+                int n = stream.read(bytes, off, bytes.length - off);
+                if (n < 0)
+                    throw new EOFException("Truncated compact metadata");
+                off += n;
+            }
+            String s = new String(bytes, StandardCharsets.UTF_8);
+            if (ref == NEW_STRING)
+                strings.add(s);
+            return s;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package com.clyze.build.tools;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static com.clyze.build.tools.Conventions.msg;
+
+/**
+ * Creates an archive by compressing entries on a pool of worker threads.
+ * Compressed entries are handed to a single writer in the order they
+ * were added, so the layout of the archive does not depend on thread
+ * scheduling. The amount of data waiting to be written is bounded.
+ * When the previous version of the archive is available, unchanged
+ * entries are copied from it without being compressed again. The
+ * compression of each entry is decided by a {@link CompressionPolicy}.
+ */
+final class ParallelZipper implements Closeable {
+    /** Files at least this large are compressed by the writer, in a streaming fashion. */
+    static final long STREAMING_THRESHOLD = 8L * 1024 * 1024;
+    /** Maximum number of (uncompressed) bytes in flight. */
+    private static final long MAX_PENDING_BYTES = 64L * 1024 * 1024;
+
+    private final File archive;
+    private final ZipWriter writer;
+    private final ExecutorService pool;
+    private final int maxPending;
+    private final CompressionPolicy policy;
+    private final boolean reproducible;
+    private final ZipReader base;
+    private final ArchiveManifest previous;
+    private final ArchiveManifest next;
+    private final Deque<Future<Compressed>> pending = new ArrayDeque<>();
+    private final Deque<Long> pendingSizes = new ArrayDeque<>();
+    private long pendingBytes = 0;
+    private boolean error = false;
+    private boolean finished = false;
+
+    /**
+     * Create a new archive.
+     *
+     * @param archive       the archive to create
+     * @param pool          the compression pool (null to compress on the calling thread)
+     * @param threads       the number of threads in the pool
+     * @param options       the archiving options
+     * @throws IOException  if the archive could not be created
+     */
+    ParallelZipper(File archive, ExecutorService pool, int threads, ArchiveOptions options) throws IOException {
+        this(archive, pool, threads, options, null, null, null);
+    }
+
+    /**
+     * Create a new archive, reusing the entries of a previous version of
+     * the archive and recording the added files in a manifest.
+     *
+     * @param archive       the archive to create
+     * @param pool          the compression pool (null to compress on the calling thread)
+     * @param threads       the number of threads in the pool
+     * @param options       the archiving options
+     * @param base          the previous version of the archive (may be null)
+     * @param previous      the manifest of the previous version (may be null)
+     * @param next          the manifest to fill in for the new archive (may be null)
+     * @throws IOException  if the archive could not be created
+     */
+    ParallelZipper(File archive, ExecutorService pool, int threads, ArchiveOptions options,
+                   ZipReader base, ArchiveManifest previous, ArchiveManifest next) throws IOException {
+        this.archive = archive;
+        this.writer = new ZipWriter(archive);
+        this.pool = pool;
+        this.maxPending = Math.max(1, threads) * 4;
+        this.policy = options.compression;
+        this.reproducible = options.reproducible;
+        this.base = base;
+        this.previous = previous;
+        this.next = next;
+    }
+
+    /**
+     * Schedules a file to be added to the archive.
+     *
+     * @param name          the entry name
+     * @param file          the file to add
+     * @throws IOException  on archive write error
+     */
+    void add(String name, File file) throws IOException {
+        long size = file.length();
+        ArchiveManifest.Entry prev = previous == null ? null : previous.get(name);
+        ZipRecord baseRec = base == null || prev == null ? null : base.get(name);
+        if (baseRec != null && prev.isUnchanged(file)) {
+            // Same size and timestamp: trust the manifest and copy the entry.
+            Compressed c = new Compressed(name, file);
+            c.copyFrom = baseRec;
+            c.hash = prev.hash;
+            enqueue(completed(c), 0);
+        } else if (size >= STREAMING_THRESHOLD) {
+            // Large files are not loaded in memory: they are only scanned
+            // by the pool and then compressed by the writer.
+            boolean hash = next != null;
+            enqueue(submit(pool, () -> scanLarge(name, file, policy, hash)), 0);
+        } else {
+            while (pendingBytes + size > MAX_PENDING_BYTES && !pending.isEmpty())
+                writeNext();
+            boolean hash = next != null || baseRec != null;
+            enqueue(submit(pool, () -> compress(name, file, policy, hash, prev, baseRec)), size);
+        }
+    }
+
+    /**
+     * Schedules an entry of the previous version of the archive to be
+     * copied as it is (including its timestamp).
+     *
+     * @param baseRec       an entry of the previous archive
+     * @throws IOException  on archive write error
+     */
+    void copy(ZipRecord baseRec) throws IOException {
+        Compressed c = new Compressed(baseRec);
+        c.copyFrom = baseRec;
+        enqueue(completed(c), 0);
+    }
+
+    private void enqueue(Future<Compressed> f, long size) throws IOException {
+        pending.addLast(f);
+        pendingSizes.addLast(size);
+        pendingBytes += size;
+        if (pending.size() >= maxPending)
+            writeNext();
+    }
+
+    private void writeNext() throws IOException {
+        Future<Compressed> f = pending.removeFirst();
+        pendingBytes -= pendingSizes.removeFirst();
+        Compressed c;
+        try {
+            c = f.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while archiving");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            System.err.println(msg("Could not compress entry: " + cause.getMessage()));
+            error = true;
+            return;
+        }
+        try {
+            if (c.error != null) {
+                System.err.println(msg("Could not process file " + c.file + ": " + c.error.getMessage()));
+                error = true;
+                return;
+            }
+            if (reproducible)
+                c.record.dosTime = ZipRecord.REPRODUCIBLE_DOS_TIME;
+            if (c.copyFrom != null) {
+                c.record.method = c.copyFrom.method;
+                c.record.crc = c.copyFrom.crc;
+                c.record.size = c.copyFrom.size;
+                c.record.compressedSize = c.copyFrom.compressedSize;
+                c.record.externalAttributes = c.copyFrom.externalAttributes;
+                try (InputStream raw = base.openRaw(c.copyFrom)) {
+                    writer.copyEntry(c.record, raw);
+                }
+            } else if (c.data == null && c.record.method == ZipRecord.STORED) {
+                try (InputStream in = new FileInputStream(c.file)) {
+                    writer.copyEntry(c.record, in);
+                }
+            } else if (c.data == null) {
+                MessageDigest md = ArchiveManifest.newDigest();
+                try (InputStream in = new DigestInputStream(new FileInputStream(c.file), md)) {
+                    writer.writeDeflated(c.record, in, c.level, c.file.length());
+                }
+                c.hash = md.digest();
+            } else
+                writer.writeEntry(c.record, c.data, 0, c.dataLength);
+        } catch (FileNotFoundException ex) {
+            System.err.println(msg("Could not process file " + c.file + ": " + ex.getMessage()));
+            error = true;
+            return;
+        }
+        if (next != null)
+            next.put(new ArchiveManifest.Entry(c.record.name, c.record.size, c.modified, c.hash));
+    }
+
+    /**
+     * Writes all pending entries and the central directory.
+     *
+     * @return              true if some individual file could not be added
+     * @throws IOException  on archive write error
+     */
+    boolean finish() throws IOException {
+        while (!pending.isEmpty())
+            writeNext();
+        writer.close();
+        finished = true;
+        return error;
+    }
+
+    /**
+     * Cancels any pending entries. If {@link #finish()} did not complete,
+     * the archive is deleted instead of being left truncated in place.
+     *
+     * @throws IOException  on archive close error
+     */
+    @Override
+    public void close() throws IOException {
+        for (Future<Compressed> f : pending)
+            f.cancel(true);
+        pending.clear();
+        if (finished)
+            return;
+        try {
+            writer.abort();
+        } finally {
+            if (archive.exists() && !archive.delete())
+                archive.deleteOnExit();
+        }
+    }
+
+    /**
+     * Reads and compresses a file. This runs on the worker threads. If the
+     * contents of the file match the previous version of the entry, the
+     * entry is copied instead.
+     */
+    private static Compressed compress(String name, File file, CompressionPolicy policy, boolean hash,
+                                       ArchiveManifest.Entry prev, ZipRecord baseRec) {
+        Compressed c = new Compressed(name, file);
+        try {
+            byte[] data = Files.readAllBytes(file.toPath());
+            if (hash) {
+                c.hash = ArchiveManifest.hash(data, 0, data.length);
+                if (baseRec != null && prev.sameHash(c.hash)) {
+                    c.copyFrom = baseRec;
+                    return c;
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            c.record.crc = crc.getValue();
+            c.record.size = data.length;
+            int level = policy.levelFor(name, data, data.length);
+            if (level == CompressionPolicy.STORE) {
+                c.record.method = ZipRecord.STORED;
+                c.record.compressedSize = data.length;
+                c.data = data;
+                c.dataLength = data.length;
+            } else {
+                Buffer out = deflate(data, level);
+                c.data = out.array();
+                c.dataLength = out.size();
+            }
+        } catch (IOException ex) {
+            c.error = ex;
+        }
+        return c;
+    }
+
+    /**
+     * Decides how to compress a large file. This runs on the worker
+     * threads. Files to be stored are read once, to compute their CRC
+     * (which must precede the data of stored entries); files to be
+     * deflated are only sampled.
+     */
+    private static Compressed scanLarge(String name, File file, CompressionPolicy policy, boolean hash) {
+        Compressed c = new Compressed(name, file);
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buf = new byte[64 * 1024];
+            int len = 0;
+            int sampleSize = Math.min(policy.getSampleSize(), buf.length);
+            while (len < sampleSize) {
+                int n = in.read(buf, len, sampleSize - len);
+                if (n < 0)
+                    break;
+                len += n;
+            }
+            c.level = policy.levelFor(name, buf, len);
+            if (c.level != CompressionPolicy.STORE)
+                return c;
+            CRC32 crc = new CRC32();
+            MessageDigest md = hash ? ArchiveManifest.newDigest() : null;
+            long size = 0;
+            int n = len;
+            do {
+                crc.update(buf, 0, n);
+                if (md != null)
+                    md.update(buf, 0, n);
+                size += n;
+            } while ((n = in.read(buf)) >= 0);
+            c.record.method = ZipRecord.STORED;
+            c.record.crc = crc.getValue();
+            c.record.size = size;
+            c.record.compressedSize = size;
+            if (md != null)
+                c.hash = md.digest();
+        } catch (IOException ex) {
+            c.error = ex;
+        }
+        return c;
+    }
+
+    private static Buffer deflate(byte[] data, int level) {
+        Deflater def = new Deflater(level, true);
+        try {
+            def.setInput(data);
+            def.finish();
+            Buffer out = new Buffer(data.length / 2 + 64);
+            byte[] chunk = new byte[16 * 1024];
+            while (!def.finished()) {
+                int n = def.deflate(chunk);
+                out.write(chunk, 0, n);
+            }
+            return out;
+        } finally {
+            def.end();
+        }
+    }
+
+    /**
+     * Creates a pool of daemon threads for archiving work.
+     *
+     * @param threads   the number of threads
+     * @param name      the prefix of the thread names
+     * @return          the pool, or null if work should happen on the calling thread
+     */
+    static ExecutorService newPool(int threads, String name) {
+        if (threads <= 1)
+            return null;
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Submits a task to a pool, or runs it on the calling thread if there
+     * is no pool.
+     *
+     * @param pool   the pool to use (may be null)
+     * @param task   the task to run
+     * @param <T>    the type of the task result
+     * @return       the future result of the task
+     */
+    static <T> Future<T> submit(ExecutorService pool, Callable<T> task) {
+        if (pool != null)
+            return pool.submit(task);
+        FutureTask<T> f = new FutureTask<>(task);
+        f.run();
+        return f;
+    }
+
+    private static <T> Future<T> completed(T value) {
+        return submit(null, () -> value);
+    }
+
+    /** An entry in the queue of the writer. */
+    private static final class Compressed {
+        final ZipRecord record;
+        final File file;
+        /** The modification time of the file, before it was read. */
+        final long modified;
+        /** The compressed data (null if the writer should compress the file). */
+        byte[] data = null;
+        /** The number of bytes in the compressed data. */
+        int dataLength = 0;
+        /** The deflate level, if the writer should compress the file. */
+        int level = Deflater.DEFAULT_COMPRESSION;
+        /** The entry of the previous archive to copy (null if the entry changed). */
+        ZipRecord copyFrom = null;
+        /** The content hash of the file (null if not computed). */
+        byte[] hash = null;
+        /** An error that occurred while reading the file. */
+        IOException error = null;
+
+        Compressed(String name, File file) {
+            this.modified = file.lastModified();
+            this.record = new ZipRecord(name);
+            this.record.dosTime = ZipRecord.javaToDosTime(modified);
+            this.file = file;
+        }
+
+        /** An entry that is copied from the previous archive, without a file. */
+        Compressed(ZipRecord baseRec) {
+            this.modified = 0;
+            this.record = new ZipRecord(baseRec.name);
+            this.record.dosTime = baseRec.dosTime;
+            this.file = null;
+        }
+    }
+
+    /** A byte array output stream that exposes its buffer. */
+    private static final class Buffer extends ByteArrayOutputStream {
+        Buffer(int size) {
+            super(size);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
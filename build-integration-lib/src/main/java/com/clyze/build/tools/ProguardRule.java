@@ -0,0 +1,248 @@
+package com.clyze.build.tools;
+
+import java.util.*;
+
+/**
+ * A single ProGuard/R8 configuration directive, such as a keep rule
+ * together with its class specification. Rules are kept in a normalized
+ * form (whitespace, modifier order and member order do not matter), so
+ * that rules with the same meaning have the same {@link #getKey() key}.
+ */
+final class ProguardRule {
+    /** Directives that need a class specification (the ones that may start with an annotation). */
+    private static final Set<String> CLASS_SPEC_DIRECTIVES = new HashSet<>(Arrays.asList(
+            "-keep", "-keepclassmembers", "-keepclasseswithmembers", "-keepnames",
+            "-keepclassmembernames", "-keepclasseswithmembernames", "-if",
+            "-assumenosideeffects", "-assumenoexternalsideeffects", "-assumenoescapingparameters",
+            "-assumenoexternalreturnvalues", "-assumevalues", "-whyareyoukeeping",
+            "-checkdiscard", "-identifiernamestring"));
+    private static final Set<String> CLASS_KEYWORDS = new HashSet<>(Arrays.asList(
+            "class", "interface", "enum", "@interface", "!class", "!interface", "!enum", "!@interface"));
+
+    /** The directive (such as "-keep"), or "@" for a file included with '@'. */
+    final String directive;
+    /** The directive modifiers (such as "allowobfuscation"), sorted. */
+    final SortedSet<String> modifiers = new TreeSet<>();
+    /** The tokens of the directive arguments (such as a class specification). */
+    final List<String> arguments = new ArrayList<>();
+    /** The normalized class members, or null if the rule has no member body. */
+    SortedSet<String> members;
+    /** The rule that follows an "-if" rule. */
+    ProguardRule subsequent;
+    /** The configuration that the rule was read from. */
+    final String source;
+    /** The line of the rule in its configuration. */
+    final int line;
+    /** The offsets of the rule text in its configuration. */
+    int start, end;
+    /** True if the last modifiers ended with a comma (so more modifiers follow). */
+    private boolean lastModifierComma;
+
+    ProguardRule(String directive, String source, int line, int start) {
+        this.directive = directive;
+        this.source = source;
+        this.line = line;
+        this.start = start;
+        this.end = start + directive.length();
+    }
+
+    /**
+     * Parses the rules of a configuration.
+     *
+     * @param text    the configuration text
+     * @param source  the name of the configuration (for provenance)
+     * @return        the rules, in order of appearance
+     */
+    static List<ProguardRule> parse(String text, String source) {
+        List<ProguardRule> rules = new ArrayList<>();
+        ProguardRule rule = null;
+        // The rule that receives arguments: the rule itself or, for
+        // "-if", the rule that follows it.
+        ProguardRule tail = null;
+        int n = text.length();
+        int line = 1;
+        boolean lineStart = true;
+        int i = 0;
+        while (i < n) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                line++;
+                lineStart = true;
+                i++;
+            } else if (Character.isWhitespace(c))
+                i++;
+            else if (c == '#')
+                i = skipComment(text, i);
+            else if (c == '{') {
+                int close = i + 1;
+                StringBuilder member = new StringBuilder();
+                SortedSet<String> members = new TreeSet<>();
+                for (; close < n && text.charAt(close) != '}'; close++) {
+                    char m = text.charAt(close);
+                    if (m == '#') {
+                        close = skipComment(text, close) - 1;
+                    } else if (m == ';') {
+                        addMember(members, member);
+                        member.setLength(0);
+                    } else {
+                        if (m == '\n')
+                            line++;
+                        member.append(m);
+                    }
+                }
+                addMember(members, member);
+                i = Math.min(close + 1, n);
+                if (tail != null) {
+                    if (!members.isEmpty()) {
+                        if (tail.members == null)
+                            tail.members = new TreeSet<>();
+                        tail.members.addAll(members);
+                    }
+                    rule.end = i;
+                }
+                lineStart = false;
+            } else {
+                int tokenEnd = tokenEnd(text, i);
+                String token = text.substring(i, tokenEnd);
+                boolean newRule = token.startsWith("-") && token.length() > 1 && !token.startsWith("-,");
+                boolean include = token.startsWith("@") && lineStart && (tail == null || !tail.expectsClassSpec());
+                if (newRule || include) {
+                    String directive = include ? "@" : token.split(",", 2)[0];
+                    ProguardRule r = new ProguardRule(directive, source, line, i);
+                    if (include)
+                        r.arguments.add(token.substring(1));
+                    else
+                        r.addModifiers(token.substring(directive.length()));
+                    if (rule != null && "-if".equals(rule.directive) && rule.subsequent == null && !include) {
+                        rule.subsequent = r;
+                    } else {
+                        rule = r;
+                        rules.add(r);
+                    }
+                    tail = r;
+                } else if (tail == null) {
+                    // Text before the first directive: keep it, so that
+                    // nothing is lost when the rules are written back.
+                    rule = tail = new ProguardRule("", source, line, i);
+                    rules.add(rule);
+                    tail.arguments.add(token);
+                } else if (tail.arguments.isEmpty() && (token.startsWith(",") || tail.endsWithComma()))
+                    tail.addModifiers(token);
+                else
+                    tail.arguments.add(token);
+                rule.end = tokenEnd;
+                i = tokenEnd;
+                lineStart = false;
+            }
+        }
+        return rules;
+    }
+
+    private static int skipComment(String text, int i) {
+        int eol = text.indexOf('\n', i);
+        return eol < 0 ? text.length() : eol;
+    }
+
+    private static int tokenEnd(String text, int i) {
+        int n = text.length();
+        char quote = text.charAt(i);
+        if (quote == '\'' || quote == '"') {
+            int close = text.indexOf(quote, i + 1);
+            if (close >= 0)
+                return close + 1;
+        }
+        int j = i + 1;
+        while (j < n) {
+            char c = text.charAt(j);
+            if (Character.isWhitespace(c) || c == '{' || c == '#')
+                break;
+            j++;
+        }
+        return j;
+    }
+
+    private static void addMember(Set<String> members, CharSequence member) {
+        String m = normalize(member.toString());
+        if (!m.isEmpty())
+            members.add(m);
+    }
+
+    /**
+     * Collapses whitespace and removes it around punctuation.
+     */
+    private static String normalize(String s) {
+        return s.trim().replaceAll("\\s+", " ").replaceAll(" ?([,()]) ?", "$1");
+    }
+
+    private void addModifiers(String s) {
+        for (String m : s.split(","))
+            if (!m.trim().isEmpty())
+                modifiers.add(m.trim());
+        lastModifierComma = s.endsWith(",");
+    }
+
+    private boolean endsWithComma() {
+        return lastModifierComma;
+    }
+
+    private boolean expectsClassSpec() {
+        if (!CLASS_SPEC_DIRECTIVES.contains(directive))
+            return false;
+        for (String arg : arguments)
+            if (CLASS_KEYWORDS.contains(arg))
+                return false;
+        return true;
+    }
+
+    /**
+     * Checks if this rule is one of the given directives.
+     *
+     * @param directives  the directive names (such as "-dump")
+     * @return            true if this rule has one of the directives
+     */
+    boolean isOneOf(Collection<String> directives) {
+        return directives.contains(directive);
+    }
+
+    /**
+     * Returns the normalized text of the rule, which identifies rules
+     * with the same meaning.
+     *
+     * @return the rule key
+     */
+    String getKey() {
+        StringBuilder sb = new StringBuilder();
+        appendTo(sb);
+        return sb.toString();
+    }
+
+    private void appendTo(StringBuilder sb) {
+        if ("@".equals(directive))
+            sb.append('@');
+        else {
+            sb.append(directive);
+            for (String m : modifiers)
+                sb.append(',').append(m);
+        }
+        if (!arguments.isEmpty()) {
+            if (!"@".equals(directive))
+                sb.append(' ');
+            sb.append(normalize(String.join(" ", arguments)));
+        }
+        if (members != null) {
+            sb.append(" {");
+            for (String m : members)
+                sb.append("\n    ").append(m).append(';');
+            sb.append("\n}");
+        }
+        if (subsequent != null) {
+            sb.append('\n');
+            subsequent.appendTo(sb);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getKey();
+    }
+}
@@ -0,0 +1,104 @@
+package com.clyze.build.tools;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+import com.clyze.client.Printer;
+
+/**
+ * A merged ProGuard/R8 configuration. Rules are added from several
+ * configuration files; rules with the same meaning are kept once and
+ * unsupported directives are dropped. The merged configuration records
+ * where each rule came from.
+ */
+final class ProguardRules {
+    /** The rules, by key, in order of first appearance. */
+    private final Map<String, ProguardRule> rules = new LinkedHashMap<>();
+    /** The other configurations that contain each rule (by rule key). */
+    private final Map<String, Set<String>> duplicateSources = new HashMap<>();
+    private final Set<String> unsupported;
+    private final Set<String> sources = new LinkedHashSet<>();
+    private int duplicates = 0;
+
+    /**
+     * Creates an empty configuration.
+     *
+     * @param unsupported  the directives to drop (such as "-dump")
+     */
+    ProguardRules(Collection<String> unsupported) {
+        this.unsupported = new HashSet<>(unsupported);
+    }
+
+    /**
+     * Adds the rules of a configuration.
+     *
+     * @param source   the name of the configuration
+     * @param text     the configuration text
+     * @param printer  receiver of messages to display
+     */
+    void add(String source, String text, Printer printer) {
+        sources.add(source);
+        for (ProguardRule rule : ProguardRule.parse(text, source)) {
+            if (rule.isOneOf(unsupported)) {
+                printer.warn("WARNING: file " + source + " contains unsupported directive: " + rule);
+                continue;
+            }
+            String key = rule.getKey();
+            ProguardRule existing = rules.putIfAbsent(key, rule);
+            if (existing != null) {
+                duplicates++;
+                if (!existing.source.equals(source))
+                    duplicateSources.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(source);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of rules that were dropped as duplicates.
+     *
+     * @return a number of rules
+     */
+    int getDuplicateCount() {
+        return duplicates;
+    }
+
+    /**
+     * Returns the number of rules in the merged configuration.
+     *
+     * @return a number of rules
+     */
+    int size() {
+        return rules.size();
+    }
+
+    /**
+     * Writes the merged configuration. Rules are grouped by the
+     * configuration that first contained them, in sections delimited
+     * the same way as in R8 -printconfiguration output.
+     *
+     * @param out           the output
+     * @throws IOException  on write error
+     */
+    void write(Writer out) throws IOException {
+        String nl = "\n";
+        Map<String, List<ProguardRule>> bySource = new LinkedHashMap<>();
+        for (String source : sources)
+            bySource.put(source, new ArrayList<>());
+        for (ProguardRule rule : rules.values())
+            bySource.get(rule.source).add(rule);
+        out.write("# Merged from " + sources.size() + " configuration files, " + duplicates + " duplicate rules removed." + nl);
+        for (Map.Entry<String, List<ProguardRule>> entry : bySource.entrySet()) {
+            if (entry.getValue().isEmpty())
+                continue;
+            out.write("# The proguard configuration file for the following section is " + entry.getKey() + nl);
+            for (ProguardRule rule : entry.getValue()) {
+                String key = rule.getKey();
+                Set<String> others = duplicateSources.get(key);
+                if (others != null)
+                    out.write("# Also in: " + String.join(", ", others) + nl);
+                out.write(key + nl);
+            }
+            out.write("# End of content from " + entry.getKey() + nl);
+        }
+    }
+}
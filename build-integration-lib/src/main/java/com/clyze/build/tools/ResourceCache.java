@@ -0,0 +1,247 @@
+package com.clyze.build.tools;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import static com.clyze.build.tools.Conventions.msg;
+
+/**
+ * A persistent cache of resources that are bundled in an archive (such
+ * as the javac metadata plugin in the JAR of the tools). Each version
+ * of the resources is extracted once, to a directory named after a hash
+ * of its contents, and is then shared by all later runs. Reused files
+ * are verified against the checksums of the archive, concurrent builds
+ * coordinate through file locks while they extract or verify a version,
+ * and versions that have not been used for a while are deleted.
+ */
+final class ResourceCache {
+    /** The file that marks a complete extraction; its timestamp is the time of last use. */
+    private static final String COMPLETE_MARKER = ".complete";
+    /** The suffix of the lock file of each cached version. */
+    private static final String LOCK_SUFFIX = ".lock";
+    /** Versions that have not been used for this long are deleted. */
+    private static final long EVICTION_AGE = TimeUnit.DAYS.toMillis(30);
+
+    /**
+     * This is a utility class, no public constructor is needed (or
+     * should appear in documentation).
+     */
+    private ResourceCache() {}
+
+    /**
+     * Returns the resources of a directory in an archive, extracting
+     * them to the cache if needed.
+     *
+     * @param zip           the archive
+     * @param resourceDir   the resource directory (such as "jcplugin/")
+     * @param cacheRoot     the cache directory
+     * @return              the paths of the cached resources, in archive order
+     * @throws IOException  if the cache could not be used
+     */
+    static List<String> getResources(ZipFile zip, String resourceDir, File cacheRoot) throws IOException {
+        List<ZipEntry> entries = getEntries(zip, resourceDir);
+        String prefix = resourceDir.replaceAll("[^A-Za-z0-9_.]+", "_").replaceAll("_$", "");
+        String version = prefix + "-" + hash(entries);
+        File dir = new File(cacheRoot, version);
+        File marker = new File(dir, COMPLETE_MARKER);
+        Files.createDirectories(cacheRoot.toPath());
+        // File locks are held by the whole JVM, so threads of the same
+        // JVM (such as concurrent builds in a Gradle daemon) must also
+        // be kept apart.
+        synchronized (ResourceCache.class) {
+            try (FileChannel ignored = lock(cacheRoot, version)) {
+                if (!marker.exists() || !verify(dir, entries, resourceDir)) {
+                    if (marker.exists())
+                        System.err.println(msg("Cached resources are damaged, extracting again: " + dir));
+                    delete(dir);
+                    extract(zip, entries, resourceDir, dir);
+                    Files.write(marker.toPath(), new byte[0]);
+                }
+                if (!marker.setLastModified(System.currentTimeMillis()))
+                    System.err.println(msg("Could not update timestamp of " + marker));
+            }
+            evict(cacheRoot, prefix, version);
+        }
+        return getPaths(dir, entries, resourceDir);
+    }
+
+    /**
+     * Extracts the resources of a directory in an archive to a new
+     * temporary directory, without caching them.
+     *
+     * @param zip           the archive
+     * @param resourceDir   the resource directory (such as "jcplugin/")
+     * @return              the paths of the extracted resources, in archive order
+     * @throws IOException  if the resources could not be extracted
+     */
+    static List<String> extractToTempDir(ZipFile zip, String resourceDir) throws IOException {
+        List<ZipEntry> entries = getEntries(zip, resourceDir);
+        File dir = Files.createTempDirectory("resources").toFile();
+        extract(zip, entries, resourceDir, dir);
+        return getPaths(dir, entries, resourceDir);
+    }
+
+    private static List<ZipEntry> getEntries(ZipFile zip, String resourceDir) {
+        List<ZipEntry> entries = new ArrayList<>();
+        for (ZipEntry entry : Collections.list(zip.entries())) {
+            String name = entry.getName();
+            if (entry.isDirectory() || !name.startsWith(resourceDir) || name.equals(resourceDir))
+                continue;
+            else if (name.contains("..")) {
+                System.err.println(msg("Ignoring entry that may escape to the filesystem: " + name));
+                continue;
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static List<String> getPaths(File dir, List<ZipEntry> entries, String resourceDir) throws IOException {
+        List<String> ret = new ArrayList<>(entries.size());
+        for (ZipEntry entry : entries)
+            ret.add(new File(dir, entry.getName().substring(resourceDir.length())).getCanonicalPath());
+        return ret;
+    }
+
+    /**
+     * Computes a hash that identifies a version of the resources. It
+     * only uses the metadata of the archive (entry names, sizes and
+     * checksums), so no entry has to be decompressed.
+     */
+    private static String hash(List<ZipEntry> entries) {
+        List<ZipEntry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparing(ZipEntry::getName));
+        MessageDigest md = IndexFile.sha256();
+        for (ZipEntry entry : sorted)
+            md.update((entry.getName() + '\t' + entry.getSize() + '\t' + entry.getCrc() + '\n').getBytes(StandardCharsets.UTF_8));
+        return IndexFile.hex(md.digest(), 12);
+    }
+
+    private static File getLockFile(File cacheRoot, String version) {
+        return new File(cacheRoot, version + LOCK_SUFFIX);
+    }
+
+    private static FileChannel openLock(File cacheRoot, String version) throws IOException {
+        return FileChannel.open(getLockFile(cacheRoot, version).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Locks a version of the resources. A lock file that is not empty
+     * has been deleted by {@link #evict(File, String, String)} while
+     * this process was waiting on it, so a new lock file is locked.
+     *
+     * @return the locked lock file (closing it releases the lock)
+     */
+    private static FileChannel lock(File cacheRoot, String version) throws IOException {
+        while (true) {
+            FileChannel channel = openLock(cacheRoot, version);
+            try {
+                channel.lock();
+                if (channel.size() == 0)
+                    return channel;
+            } catch (IOException | RuntimeException ex) {
+                channel.close();
+                throw ex;
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * Checks that all resources exist in the cache and have the
+     * checksums recorded in the archive.
+     */
+    private static boolean verify(File dir, List<ZipEntry> entries, String resourceDir) {
+        byte[] buf = new byte[64 * 1024];
+        for (ZipEntry entry : entries) {
+            File f = new File(dir, entry.getName().substring(resourceDir.length()));
+            if (f.length() != entry.getSize())
+                return false;
+            CRC32 crc = new CRC32();
+            try (InputStream in = new FileInputStream(f)) {
+                int n;
+                while ((n = in.read(buf)) > 0)
+                    crc.update(buf, 0, n);
+            } catch (IOException ex) {
+                return false;
+            }
+            if (crc.getValue() != entry.getCrc())
+                return false;
+        }
+        return true;
+    }
+
+    private static void extract(ZipFile zip, List<ZipEntry> entries, String resourceDir, File dir) throws IOException {
+        byte[] buf = new byte[64 * 1024];
+        for (ZipEntry entry : entries) {
+            File f = new File(dir, entry.getName().substring(resourceDir.length()));
+            Files.createDirectories(f.getParentFile().toPath());
+            CRC32 crc = new CRC32();
+            try (InputStream in = zip.getInputStream(entry);
+                 OutputStream out = new FileOutputStream(f)) {
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    crc.update(buf, 0, n);
+                    out.write(buf, 0, n);
+                }
+            }
+            if (crc.getValue() != entry.getCrc())
+                throw new ZipException("CRC mismatch for entry " + entry.getName());
+        }
+    }
+
+    /**
+     * Deletes other versions of the same resources (with their lock
+     * files) that have not been used for {@link #EVICTION_AGE}. Builds
+     * only lock a version while they extract or verify it, so a version
+     * that is locked is kept, but a build that is still running with a
+     * version is only protected by the time of last use, which is
+     * updated at the start of every build. A deleted lock file is marked
+     * (made non-empty) before it is released, so that processes waiting
+     * on it lock a new lock file instead.
+     */
+    private static void evict(File cacheRoot, String prefix, String current) {
+        File[] versions = cacheRoot.listFiles(f -> f.isDirectory() && f.getName().startsWith(prefix + "-") && !f.getName().equals(current));
+        if (versions == null)
+            return;
+        long now = System.currentTimeMillis();
+        for (File version : versions) {
+            File marker = new File(version, COMPLETE_MARKER);
+            long lastUsed = marker.exists() ? marker.lastModified() : version.lastModified();
+            if (now - lastUsed < EVICTION_AGE)
+                continue;
+            try (FileChannel channel = openLock(cacheRoot, version.getName());
+                 FileLock lock = channel.tryLock()) {
+                if (lock != null && channel.size() == 0) {
+                    System.out.println(msg("Deleting unused cached resources: " + version));
+                    delete(version);
+                    Files.delete(getLockFile(cacheRoot, version.getName()).toPath());
+                    channel.write(ByteBuffer.wrap(new byte[] { 1 }));
+                }
+            } catch (IOException ex) {
+                System.err.println(msg("Could not delete cached resources " + version + ": " + ex.getMessage()));
+            }
+        }
+    }
+
+    private static void delete(File f) throws IOException {
+        File[] children = Files.isSymbolicLink(f.toPath()) ? null : f.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        Files.deleteIfExists(f.toPath());
+    }
+}
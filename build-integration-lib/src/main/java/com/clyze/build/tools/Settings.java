@@ -24,6 +24,30 @@ public class Settings {
         return homeDir;
     }
 
+    /**
+     * Returns the directory where the tools keep cached data (such as
+     * extracted resources) across runs. This follows the conventions
+     * of each platform (for example, XDG_CACHE_HOME on Linux).
+     *
+     * @return the cache directory (which may not exist yet)
+     */
+    public static File getUserCacheDir() {
+        String home = getUserHomeDir();
+        String root;
+        if (OS.win)
+            root = System.getenv("LOCALAPPDATA");
+        else if (OS.macOS)
+            root = home == null ? null : home + "/Library/Caches";
+        else {
+            root = System.getenv("XDG_CACHE_HOME");
+            if (root == null && home != null)
+                root = home + "/.cache";
+        }
+        if (root == null)
+            root = System.getProperty("java.io.tmpdir");
+        return new File(root, "clyze");
+    }
+
     /**
      * Returns the installation "home" directory.
      * @param root   the top level directory
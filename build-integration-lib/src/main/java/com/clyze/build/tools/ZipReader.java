@@ -0,0 +1,209 @@
+package com.clyze.build.tools;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+/**
+ * A low-level ZIP reader that gives access to the raw (compressed)
+ * data of entries, so that they can be copied to another archive
+ * without being inflated and deflated again. The central directory is
+ * read once, when the reader is opened. Reads use positional file
+ * access and are safe to perform from multiple threads.
+ */
+final class ZipReader implements Closeable {
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOC_SIG = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int LOC_HEADER_SIZE = 30;
+    private static final int END_HEADER_SIZE = 22;
+
+    private final File file;
+    private final FileChannel channel;
+    private final Map<String, ZipRecord> records = new LinkedHashMap<>();
+
+    /**
+     * Opens an archive and reads its central directory.
+     *
+     * @param file          the archive
+     * @throws IOException  if the archive could not be read or is malformed
+     */
+    ZipReader(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            readCentralDirectory();
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns the entries of the archive, in central directory order.
+     *
+     * @return a collection of entry records
+     */
+    Collection<ZipRecord> getRecords() {
+        return Collections.unmodifiableCollection(records.values());
+    }
+
+    /**
+     * Looks up an entry.
+     *
+     * @param name   the entry name
+     * @return       the entry record (or null if no such entry exists)
+     */
+    ZipRecord get(String name) {
+        return records.get(name);
+    }
+
+    /**
+     * Opens a stream over the raw (possibly compressed) data of an entry.
+     *
+     * @param rec           an entry record of this archive
+     * @return              the stream
+     * @throws IOException  if the local header of the entry is malformed
+     */
+    InputStream openRaw(ZipRecord rec) throws IOException {
+        ByteBuffer loc = read(rec.offset, LOC_HEADER_SIZE);
+        if (loc.getInt(0) != LOC_SIG)
+            throw new ZipException("Bad local header for entry " + rec.name + " in " + file);
+        long dataOffset = rec.offset + LOC_HEADER_SIZE + (loc.getShort(26) & 0xFFFF) + (loc.getShort(28) & 0xFFFF);
+        return new ChannelInputStream(dataOffset, rec.compressedSize);
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long size = channel.size();
+        int tailSize = (int) Math.min(size, END_HEADER_SIZE + 0xFFFF);
+        ByteBuffer tail = read(size - tailSize, tailSize);
+        int endPos = -1;
+        for (int i = tailSize - END_HEADER_SIZE; i >= 0; i--)
+            if (tail.getInt(i) == END_SIG) {
+                endPos = i;
+                break;
+            }
+        if (endPos < 0)
+            throw new ZipException("Not a ZIP archive: " + file);
+        long endOffset = size - tailSize + endPos;
+        long count = tail.getShort(endPos + 10) & 0xFFFF;
+        long cenSize = tail.getInt(endPos + 12) & ZIP64_MAGIC;
+        long cenOffset = tail.getInt(endPos + 16) & ZIP64_MAGIC;
+        if (endOffset >= 20) {
+            ByteBuffer loc = read(endOffset - 20, 20);
+            if (loc.getInt(0) == ZIP64_LOC_SIG) {
+                ByteBuffer end64 = read(loc.getLong(8), 56);
+                if (end64.getInt(0) != ZIP64_END_SIG)
+                    throw new ZipException("Bad Zip64 end record in " + file);
+                count = end64.getLong(32);
+                cenSize = end64.getLong(40);
+                cenOffset = end64.getLong(48);
+            }
+        }
+        if (cenSize > Integer.MAX_VALUE)
+            throw new ZipException("Central directory too large in " + file);
+        ByteBuffer cen = read(cenOffset, (int) cenSize);
+        int pos = 0;
+        for (long i = 0; i < count; i++) {
+            if (cen.getInt(pos) != CEN_SIG)
+                throw new ZipException("Bad central directory record in " + file);
+            int nameLen = cen.getShort(pos + 28) & 0xFFFF;
+            int extraLen = cen.getShort(pos + 30) & 0xFFFF;
+            int commentLen = cen.getShort(pos + 32) & 0xFFFF;
+            byte[] nameBytes = new byte[nameLen];
+            cen.position(pos + 46);
+            cen.get(nameBytes);
+            ZipRecord rec = new ZipRecord(new String(nameBytes, StandardCharsets.UTF_8));
+            rec.method = cen.getShort(pos + 10) & 0xFFFF;
+            rec.dosTime = cen.getInt(pos + 12) & ZIP64_MAGIC;
+            rec.crc = cen.getInt(pos + 16) & ZIP64_MAGIC;
+            rec.compressedSize = cen.getInt(pos + 20) & ZIP64_MAGIC;
+            rec.size = cen.getInt(pos + 24) & ZIP64_MAGIC;
+            rec.externalAttributes = cen.getInt(pos + 38);
+            rec.offset = cen.getInt(pos + 42) & ZIP64_MAGIC;
+            readZip64Extra(rec, cen, pos + 46 + nameLen, extraLen);
+            // A repeated name refers to its last entry, as in java.util.zip.ZipFile.
+            records.put(rec.name, rec);
+            pos += 46 + nameLen + extraLen + commentLen;
+        }
+    }
+
+    private static void readZip64Extra(ZipRecord rec, ByteBuffer cen, int start, int len) {
+        int pos = start;
+        while (pos + 4 <= start + len) {
+            int id = cen.getShort(pos) & 0xFFFF;
+            int size = cen.getShort(pos + 2) & 0xFFFF;
+            if (id == ZIP64_EXTRA_ID) {
+                int p = pos + 4;
+                if (rec.size == ZIP64_MAGIC) {
+                    rec.size = cen.getLong(p);
+                    p += 8;
+                }
+                if (rec.compressedSize == ZIP64_MAGIC) {
+                    rec.compressedSize = cen.getLong(p);
+                    p += 8;
+                }
+                if (rec.offset == ZIP64_MAGIC)
+                    rec.offset = cen.getLong(p);
+                return;
+            }
+            pos += 4 + size;
+        }
+    }
+
+    private ByteBuffer read(long offset, int len) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, offset + buf.position());
+            if (n < 0)
+                throw new EOFException("Unexpected end of archive: " + file);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /** A stream over a region of the archive file. */
+    private final class ChannelInputStream extends InputStream {
+        private long pos;
+        private final long end;
+
+        ChannelInputStream(long start, long len) {
+            this.pos = start;
+            this.end = start + len;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (pos >= end)
+                return -1;
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - pos)), pos);
+            if (n < 0)
+                throw new EOFException("Unexpected end of archive: " + file);
+            pos += n;
+            return n;
+        }
+    }
+}
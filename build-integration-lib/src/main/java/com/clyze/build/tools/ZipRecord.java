@@ -0,0 +1,86 @@
+package com.clyze.build.tools;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.zip.ZipEntry;
+
+/**
+ * The metadata of an archive entry, as it appears in the central
+ * directory of a ZIP file.
+ */
+final class ZipRecord {
+    /** Compression method: data is stored as-is. */
+    static final int STORED = ZipEntry.STORED;
+    /** Compression method: data is compressed with raw deflate. */
+    static final int DEFLATED = ZipEntry.DEFLATED;
+    /**
+     * The timestamp of entries in reproducible archives (1980-02-01 00:00:00,
+     * the same as Gradle uses). MS-DOS times have no time zone, so this
+     * does not depend on the time zone of the machine.
+     */
+    static final long REPRODUCIBLE_DOS_TIME = (2 << 21) | (1 << 16);
+
+    /** The entry name. */
+    final String name;
+    /** The compression method. */
+    int method = DEFLATED;
+    /** The CRC-32 of the uncompressed data. */
+    long crc;
+    /** The size of the uncompressed data. */
+    long size;
+    /** The size of the compressed data. */
+    long compressedSize;
+    /** The modification time, in MS-DOS format. */
+    long dosTime;
+    /** The external file attributes. */
+    int externalAttributes = 0;
+    /** The offset of the local header in the archive. */
+    long offset = -1;
+
+    ZipRecord(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Converts an MS-DOS date/time to a Java timestamp.
+     *
+     * @param dosTime   the MS-DOS date and time
+     * @return          milliseconds since the epoch
+     */
+    static long dosToJavaTime(long dosTime) {
+        LocalDateTime d = LocalDateTime.of((int) ((dosTime >> 25) & 0x7F) + 1980,
+                (int) Math.max(1, Math.min(12, (dosTime >> 21) & 0x0F)),
+                (int) Math.max(1, Math.min(31, (dosTime >> 16) & 0x1F)),
+                (int) Math.min(23, (dosTime >> 11) & 0x1F),
+                (int) Math.min(59, (dosTime >> 5) & 0x3F),
+                (int) Math.min(59, (dosTime << 1) & 0x3E));
+        return d.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Returns the Java timestamp that {@link java.util.zip.ZipOutputStream}
+     * converts to {@link #REPRODUCIBLE_DOS_TIME} in the local time zone.
+     *
+     * @return milliseconds since the epoch
+     */
+    static long reproducibleJavaTime() {
+        return LocalDateTime.of(1980, 2, 1, 0, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Converts a Java timestamp to MS-DOS date/time format, as done by
+     * {@link java.util.zip.ZipOutputStream}.
+     *
+     * @param time   milliseconds since the epoch
+     * @return       the MS-DOS date and time
+     */
+    static long javaToDosTime(long time) {
+        LocalDateTime d = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        int year = d.getYear();
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+        return ((year - 1980) << 25 | d.getMonthValue() << 21 | d.getDayOfMonth() << 16 |
+                d.getHour() << 11 | d.getMinute() << 5 | d.getSecond() >> 1) & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,366 @@
+package com.clyze.build.tools;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * A low-level ZIP writer. In contrast to {@link java.util.zip.ZipOutputStream},
+ * it accepts entries whose data has already been compressed, so that
+ * compression can happen elsewhere (for example, on worker threads)
+ * while a single writer controls the layout of the archive. Zip64
+ * records are emitted when sizes, offsets or the number of entries
+ * exceed the limits of the original format. The central directory is
+ * moved to a temporary file when it grows large, so that memory use
+ * does not depend on the number of entries.
+ */
+final class ZipWriter implements Closeable {
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int EXT_SIG = 0x08074b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOC_SIG = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    /** The size of the in-memory central directory before it is moved to disk. */
+    private static final int CENTRAL_SPILL_THRESHOLD = 4 * 1024 * 1024;
+
+    private final CountingOutputStream out;
+    private final ByteArrayOutputStream central = new ByteArrayOutputStream();
+    private LittleEndianOutput cen = new LittleEndianOutput(central);
+    /** The temporary file holding the central directory (null while in memory). */
+    private File centralFile = null;
+    private OutputStream centralFileOut = null;
+    private long entries = 0;
+    private boolean closed = false;
+
+    /**
+     * Create a writer for a new archive.
+     *
+     * @param archive       the archive file to create
+     * @throws IOException  if the file could not be created
+     */
+    ZipWriter(File archive) throws IOException {
+        this.out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(archive), 64 * 1024));
+    }
+
+    /**
+     * Writes an entry whose data is already in its final (compressed
+     * or stored) form. The record must contain the method, CRC and sizes.
+     *
+     * @param rec           the entry metadata
+     * @param data          the entry data
+     * @param off           the start offset in the data
+     * @param len           the number of data bytes
+     * @throws IOException  on write error
+     */
+    void writeEntry(ZipRecord rec, byte[] data, int off, int len) throws IOException {
+        rec.compressedSize = len;
+        writeLocalHeader(rec, 0, needsZip64(rec));
+        out.write(data, off, len);
+        writeCentralRecord(rec, 0);
+    }
+
+    /**
+     * Copies an entry whose data is already in its final form, as read
+     * from another archive. The record must contain the method, CRC and
+     * sizes; exactly compressedSize bytes are read from the stream.
+     *
+     * @param rec           the entry metadata
+     * @param raw           the stream containing the raw entry data
+     * @throws IOException  on read or write error
+     */
+    void copyEntry(ZipRecord rec, InputStream raw) throws IOException {
+        writeLocalHeader(rec, 0, needsZip64(rec));
+        byte[] buf = new byte[64 * 1024];
+        long remaining = rec.compressedSize;
+        while (remaining > 0) {
+            int n = raw.read(buf, 0, (int) Math.min(buf.length, remaining));
+            if (n < 0)
+                throw new EOFException("Truncated data for entry " + rec.name);
+            out.write(buf, 0, n);
+            remaining -= n;
+        }
+        writeCentralRecord(rec, 0);
+    }
+
+    /**
+     * Deflates an entry read from a stream, without knowing its size in
+     * advance. The sizes and CRC follow the data in a data descriptor.
+     * Readers only expect Zip64 sizes in the descriptor if the local
+     * header has a Zip64 extra field, so both are decided by the size
+     * hint and the entry must not grow beyond it.
+     *
+     * @param rec           the entry metadata (sizes and CRC are computed)
+     * @param in            the stream containing the uncompressed data
+     * @param level         the deflate level to use
+     * @param sizeHint      the expected uncompressed size (used to decide on Zip64)
+     * @throws IOException  on read or write error, or if the entry needs
+     *                      Zip64 but the size hint did not
+     */
+    void writeDeflated(ZipRecord rec, InputStream in, int level, long sizeHint) throws IOException {
+        rec.method = ZipRecord.DEFLATED;
+        boolean zip64 = sizeHint >= ZIP64_MAGIC;
+        rec.crc = 0;
+        rec.size = 0;
+        rec.compressedSize = 0;
+        writeLocalHeader(rec, FLAG_DATA_DESCRIPTOR, zip64);
+        long start = out.count;
+        CRC32 crc = new CRC32();
+        Deflater def = new Deflater(level, true);
+        byte[] inBuf = new byte[64 * 1024];
+        byte[] outBuf = new byte[64 * 1024];
+        try {
+            int n;
+            long total = 0;
+            while ((n = in.read(inBuf)) >= 0) {
+                if (n == 0)
+                    continue;
+                crc.update(inBuf, 0, n);
+                total += n;
+                def.setInput(inBuf, 0, n);
+                while (!def.needsInput()) {
+                    int c = def.deflate(outBuf);
+                    out.write(outBuf, 0, c);
+                }
+            }
+            def.finish();
+            while (!def.finished()) {
+                int c = def.deflate(outBuf);
+                out.write(outBuf, 0, c);
+            }
+            rec.size = total;
+        } finally {
+            def.end();
+        }
+        rec.crc = crc.getValue();
+        rec.compressedSize = out.count - start;
+        if (!zip64 && needsZip64(rec))
+            throw new ZipException("Entry " + rec.name + " grew beyond 4 GB while it was written");
+        LittleEndianOutput d = new LittleEndianOutput(out);
+        d.writeInt(EXT_SIG);
+        d.writeInt((int) rec.crc);
+        if (zip64) {
+            d.writeLong(rec.compressedSize);
+            d.writeLong(rec.size);
+        } else {
+            d.writeInt((int) rec.compressedSize);
+            d.writeInt((int) rec.size);
+        }
+        writeCentralRecord(rec, FLAG_DATA_DESCRIPTOR);
+    }
+
+    private static boolean needsZip64(ZipRecord rec) {
+        return rec.size >= ZIP64_MAGIC || rec.compressedSize >= ZIP64_MAGIC;
+    }
+
+    /**
+     * Writes the local header of an entry. With a data descriptor, the
+     * Zip64 extra field (if any) has zero sizes, as the real sizes
+     * follow the data.
+     */
+    private void writeLocalHeader(ZipRecord rec, int flags, boolean zip64) throws IOException {
+        rec.offset = out.count;
+        byte[] name = rec.name.getBytes(StandardCharsets.UTF_8);
+        boolean descriptor = (flags & FLAG_DATA_DESCRIPTOR) != 0;
+        LittleEndianOutput d = new LittleEndianOutput(out);
+        d.writeInt(LOC_SIG);
+        d.writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        d.writeShort(flags | FLAG_UTF8);
+        d.writeShort(rec.method);
+        d.writeInt((int) rec.dosTime);
+        d.writeInt(descriptor ? 0 : (int) rec.crc);
+        d.writeInt(zip64 ? (int) ZIP64_MAGIC : descriptor ? 0 : (int) rec.compressedSize);
+        d.writeInt(zip64 ? (int) ZIP64_MAGIC : descriptor ? 0 : (int) rec.size);
+        d.writeShort(name.length);
+        d.writeShort(zip64 ? 20 : 0);
+        out.write(name);
+        if (zip64) {
+            d.writeShort(ZIP64_EXTRA_ID);
+            d.writeShort(16);
+            d.writeLong(descriptor ? 0 : rec.size);
+            d.writeLong(descriptor ? 0 : rec.compressedSize);
+        }
+    }
+
+    private void writeCentralRecord(ZipRecord rec, int flags) throws IOException {
+        byte[] name = rec.name.getBytes(StandardCharsets.UTF_8);
+        boolean bigSize = rec.size >= ZIP64_MAGIC;
+        boolean bigCompressedSize = rec.compressedSize >= ZIP64_MAGIC;
+        boolean bigOffset = rec.offset >= ZIP64_MAGIC;
+        int extraLen = (bigSize ? 8 : 0) + (bigCompressedSize ? 8 : 0) + (bigOffset ? 8 : 0);
+        boolean zip64 = extraLen > 0;
+        cen.writeInt(CEN_SIG);
+        cen.writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        cen.writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        cen.writeShort(flags | FLAG_UTF8);
+        cen.writeShort(rec.method);
+        cen.writeInt((int) rec.dosTime);
+        cen.writeInt((int) rec.crc);
+        cen.writeInt((int) (bigCompressedSize ? ZIP64_MAGIC : rec.compressedSize));
+        cen.writeInt((int) (bigSize ? ZIP64_MAGIC : rec.size));
+        cen.writeShort(name.length);
+        cen.writeShort(zip64 ? extraLen + 4 : 0);
+        cen.writeShort(0);
+        cen.writeShort(0);
+        cen.writeShort(0);
+        cen.writeInt(rec.externalAttributes);
+        cen.writeInt((int) (bigOffset ? ZIP64_MAGIC : rec.offset));
+        cen.write(name);
+        if (zip64) {
+            cen.writeShort(ZIP64_EXTRA_ID);
+            cen.writeShort(extraLen);
+            if (bigSize)
+                cen.writeLong(rec.size);
+            if (bigCompressedSize)
+                cen.writeLong(rec.compressedSize);
+            if (bigOffset)
+                cen.writeLong(rec.offset);
+        }
+        entries++;
+        if (centralFile == null && central.size() > CENTRAL_SPILL_THRESHOLD)
+            spillCentralDirectory();
+    }
+
+    private void spillCentralDirectory() throws IOException {
+        centralFile = File.createTempFile("central", ".zipdir");
+        centralFileOut = new BufferedOutputStream(new FileOutputStream(centralFile), 64 * 1024);
+        central.writeTo(centralFileOut);
+        central.reset();
+        cen = new LittleEndianOutput(centralFileOut);
+    }
+
+    /**
+     * Writes the central directory and closes the archive.
+     *
+     * @throws IOException on write error
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            long cenOffset = out.count;
+            if (centralFile != null) {
+                centralFileOut.close();
+                Files.copy(centralFile.toPath(), out);
+            } else
+                central.writeTo(out);
+            long cenSize = out.count - cenOffset;
+            LittleEndianOutput d = new LittleEndianOutput(out);
+            if (entries >= ZIP64_MAGIC_COUNT || cenOffset >= ZIP64_MAGIC || cenSize >= ZIP64_MAGIC) {
+                long zip64EndOffset = out.count;
+                d.writeInt(ZIP64_END_SIG);
+                d.writeLong(44);
+                d.writeShort(VERSION_ZIP64);
+                d.writeShort(VERSION_ZIP64);
+                d.writeInt(0);
+                d.writeInt(0);
+                d.writeLong(entries);
+                d.writeLong(entries);
+                d.writeLong(cenSize);
+                d.writeLong(cenOffset);
+                d.writeInt(ZIP64_LOC_SIG);
+                d.writeInt(0);
+                d.writeLong(zip64EndOffset);
+                d.writeInt(1);
+            }
+            int count = (int) Math.min(entries, ZIP64_MAGIC_COUNT);
+            d.writeInt(END_SIG);
+            d.writeShort(0);
+            d.writeShort(0);
+            d.writeShort(count);
+            d.writeShort(count);
+            d.writeInt((int) Math.min(cenSize, ZIP64_MAGIC));
+            d.writeInt((int) Math.min(cenOffset, ZIP64_MAGIC));
+            d.writeShort(0);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Closes the archive without writing the central directory, so that
+     * an archive that could not be completed is never mistaken for a
+     * valid one. The caller is expected to delete the file.
+     *
+     * @throws IOException on close error
+     */
+    void abort() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        release();
+    }
+
+    private void release() throws IOException {
+        try {
+            out.close();
+        } finally {
+            if (centralFile != null) {
+                centralFileOut.close();
+                if (!centralFile.delete())
+                    centralFile.deleteOnExit();
+            }
+        }
+    }
+
+    /** An output stream that remembers how many bytes have been written. */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /** A minimal little-endian writer for the fields of ZIP records. */
+    private static final class LittleEndianOutput {
+        private final OutputStream out;
+
+        LittleEndianOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(byte[] b) throws IOException {
+            out.write(b, 0, b.length);
+        }
+
+        void writeShort(int v) throws IOException {
+            out.write(v & 0xFF);
+            out.write((v >>> 8) & 0xFF);
+        }
+
+        void writeInt(int v) throws IOException {
+            writeShort(v & 0xFFFF);
+            writeShort((v >>> 16) & 0xFFFF);
+        }
+
+        void writeLong(long v) throws IOException {
+            writeInt((int) v);
+            writeInt((int) (v >>> 32));
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package com.clyze.build.tools;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the archives written by {@link Archiver} (through
+ * {@link ParallelZipper} and {@link ZipWriter}) can be read back by
+ * {@link java.util.zip.ZipFile} and by {@link ZipReader}.
+ */
+public class ArchiverTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void zipTreeRoundTrip() throws IOException {
+        File dir = tmp.newFolder("tree");
+        Map<String, byte[]> expected = new TreeMap<>();
+        expected.put("A.java", text("class A {}\n", 200));
+        expected.put("empty.txt", new byte[0]);
+        expected.put("pkg/B.java", text("class B { int x; }\n", 50));
+        expected.put("pkg/deep/nested/C.java", text("class C {}\n", 1));
+        // Incompressible data, which may be stored instead of deflated.
+        expected.put("res/image.png", bytes(100_000));
+        // Large enough to be deflated by the writer, as a stream.
+        expected.put("res/large.bin", text("0123456789abcdef", (int) (ParallelZipper.STREAMING_THRESHOLD / 16) + 1000));
+        write(dir, expected);
+
+        for (boolean reproducible : new boolean[] { false, true }) {
+            File archive = new File(tmp.getRoot(), "tree-" + reproducible + ".zip");
+            ArchiveOptions options = new ArchiveOptions();
+            options.reproducible = reproducible;
+            options.threads = 4;
+            assertFalse(Archiver.zipTree(dir, archive, options));
+            assertContents(expected, archive);
+            assertEquals(expected.keySet(), readWithZipReader(archive));
+        }
+    }
+
+    @Test
+    public void reproducibleArchivesAreIdentical() throws IOException {
+        File dir = tmp.newFolder("tree");
+        Map<String, byte[]> contents = new HashMap<>();
+        for (int i = 0; i < 100; i++)
+            contents.put("p" + (i % 7) + "/F" + i + ".java", text("class F" + i + " {}\n", i + 1));
+        write(dir, contents);
+        ArchiveOptions options = new ArchiveOptions();
+        options.reproducible = true;
+        options.threads = 4;
+        File first = new File(tmp.getRoot(), "first.zip");
+        File second = new File(tmp.getRoot(), "second.zip");
+        Archiver.zipTree(dir, first, options);
+        Archiver.zipTree(dir, second, options);
+        assertArrayEquals(Files.readAllBytes(first.toPath()), Files.readAllBytes(second.toPath()));
+    }
+
+    @Test
+    public void zip64EntryCount() throws IOException {
+        // More entries than the original format can count.
+        File file = tmp.newFile("small.txt");
+        Files.write(file.toPath(), text("x", 10));
+        Map<String, File> entries = new LinkedHashMap<>();
+        for (int i = 0; i < 70_000; i++)
+            entries.put("e/" + i + ".txt", file);
+        File archive = new File(tmp.getRoot(), "many.zip");
+        assertFalse(Archiver.zipFiles(entries, archive, new ArchiveOptions()));
+        try (ZipFile zip = new ZipFile(archive)) {
+            assertEquals(70_000, zip.size());
+            assertArrayEquals(text("x", 10), readAll(zip, zip.getEntry("e/69999.txt")));
+        }
+        try (ZipReader reader = new ZipReader(archive)) {
+            assertEquals(70_000, reader.getRecords().size());
+        }
+    }
+
+    @Test
+    public void zip64DataDescriptor() throws IOException {
+        // Entries hinted as Zip64 have a Zip64 local header and descriptor.
+        File archive = new File(tmp.getRoot(), "descriptor.zip");
+        byte[] data = text("hello\n", 1000);
+        try (ZipWriter writer = new ZipWriter(archive)) {
+            writer.writeDeflated(new ZipRecord("big.txt"), new ByteArrayInputStream(data), 6, 5L << 30);
+            writer.writeDeflated(new ZipRecord("small.txt"), new ByteArrayInputStream(data), 6, data.length);
+        }
+        Map<String, byte[]> contents = readWithZipFile(archive);
+        assertArrayEquals(data, contents.get("big.txt"));
+        assertArrayEquals(data, contents.get("small.txt"));
+    }
+
+    @Test
+    public void unfinishedArchiveIsDeleted() throws IOException {
+        File file = tmp.newFile("a.txt");
+        Files.write(file.toPath(), text("a", 100));
+        File archive = new File(tmp.getRoot(), "unfinished.zip");
+        try (ParallelZipper zipper = new ParallelZipper(archive, null, 1, new ArchiveOptions())) {
+            zipper.add("a.txt", file);
+            assertTrue(archive.exists());
+        }
+        assertFalse(archive.exists());
+
+        try (ParallelZipper zipper = new ParallelZipper(archive, null, 1, new ArchiveOptions())) {
+            zipper.add("a.txt", file);
+            assertFalse(zipper.finish());
+        }
+        assertContents(Collections.singletonMap("a.txt", text("a", 100)), archive);
+    }
+
+    @Test
+    public void updateArchive() throws IOException {
+        File dir = tmp.newFolder("tree");
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        contents.put("a.txt", text("a", 100));
+        contents.put("b.txt", text("b", 100));
+        contents.put("c.txt", text("c", 100));
+        contents.put("d.png", bytes(5000));
+        write(dir, contents);
+        File archive = new File(tmp.getRoot(), "update.zip");
+        Archiver.zipTree(dir, archive, new ArchiveOptions());
+
+        File changed = tmp.newFile("b-changed.txt");
+        File added = tmp.newFile("e.txt");
+        Files.write(changed.toPath(), text("B", 300));
+        Files.write(added.toPath(), text("e", 10));
+        Map<String, File> changes = new LinkedHashMap<>();
+        changes.put("b.txt", changed);
+        // Entry names are not limited to the file name encoding.
+        changes.put("new/\u00e9.txt", added);
+        assertFalse(Archiver.updateArchive(archive, changes, Collections.singleton("c.txt"), new ArchiveOptions()));
+
+        Map<String, byte[]> expected = new TreeMap<>();
+        expected.put("a.txt", contents.get("a.txt"));
+        expected.put("b.txt", text("B", 300));
+        expected.put("d.png", contents.get("d.png"));
+        expected.put("new/\u00e9.txt", text("e", 10));
+        assertContents(expected, archive);
+        assertEquals(expected.keySet(), readWithZipReader(archive));
+    }
+
+    @Test
+    public void updateArchiveCreatesMissingArchive() throws IOException {
+        File file = tmp.newFile("a.txt");
+        Files.write(file.toPath(), text("a", 10));
+        File archive = new File(tmp.getRoot(), "created.zip");
+        Archiver.updateArchive(archive, Collections.singletonMap("a.txt", file), Collections.emptySet(), new ArchiveOptions());
+        assertContents(Collections.singletonMap("a.txt", text("a", 10)), archive);
+    }
+
+    @Test
+    public void incrementalZipTree() throws IOException {
+        File dir = tmp.newFolder("tree");
+        Map<String, byte[]> contents = new TreeMap<>();
+        contents.put("a.txt", text("a", 100));
+        contents.put("b.txt", text("b", 100));
+        write(dir, contents);
+        File archive = new File(tmp.getRoot(), "incremental.zip");
+        ArchiveOptions options = new ArchiveOptions();
+        options.incremental = true;
+        Archiver.zipTree(dir, archive, options);
+
+        contents.put("b.txt", text("bb", 100));
+        contents.put("c.txt", text("c", 100));
+        write(dir, contents);
+        assertTrue(new File(dir, "b.txt").setLastModified(System.currentTimeMillis() + 10_000));
+        Archiver.zipTree(dir, archive, options);
+        assertContents(contents, archive);
+    }
+
+    @Test
+    public void incrementalZipTrees() throws IOException {
+        // As in the test repackaging task: the archives keep their names across runs.
+        File dir = tmp.newFolder("classes");
+        Map<String, byte[]> contents = new TreeMap<>();
+        contents.put("a/A.class", bytes(3000));
+        contents.put("a/B.class", bytes(3000));
+        write(dir, contents);
+        File targetDir = tmp.newFolder("test-code");
+        ArchiveOptions options = new ArchiveOptions();
+        options.incremental = true;
+        File archive = Archiver.zipTrees(Collections.singletonList(dir), targetDir, options).get(dir);
+        assertTrue(ArchiveManifest.fileOf(archive).exists());
+        long modified = archive.lastModified();
+
+        assertEquals(archive, Archiver.zipTrees(Collections.singletonList(dir), targetDir, options).get(dir));
+        assertEquals("an up-to-date archive was rewritten", modified, archive.lastModified());
+
+        contents.put("a/B.class", bytes(3000));
+        write(dir, contents);
+        assertTrue(new File(dir, "a/B.class").setLastModified(System.currentTimeMillis() + 10_000));
+        Archiver.zipTrees(Collections.singletonList(dir), targetDir, options);
+        assertContents(contents, archive);
+    }
+
+    @Test
+    public void unzipRoundTrip() throws IOException {
+        File dir = tmp.newFolder("tree");
+        Map<String, byte[]> contents = new TreeMap<>();
+        contents.put("x/y/z.txt", text("z", 1000));
+        contents.put("w.png", bytes(2000));
+        write(dir, contents);
+        File archive = new File(tmp.getRoot(), "unzip.zip");
+        Archiver.zipTree(dir, archive, new ArchiveOptions());
+        File out = tmp.newFolder("out");
+        assertFalse(Archiver.unzip(archive, out, new ArchiveOptions()));
+        for (Map.Entry<String, byte[]> entry : contents.entrySet())
+            assertArrayEquals(entry.getValue(), Files.readAllBytes(new File(out, entry.getKey()).toPath()));
+    }
+
+    @Test
+    public void mergeArchives() throws IOException {
+        // Two libraries with the same file name, in different directories.
+        File first = new File(tmp.newFolder("first"), "lib.jar");
+        File second = new File(tmp.newFolder("second"), "lib.jar");
+        try (ZipWriter writer = new ZipWriter(first)) {
+            writeStored(writer, "a/A.class", text("first A", 1));
+            writeStored(writer, "dup.txt", text("old", 1));
+            writeStored(writer, "dup.txt", text("new", 1));
+            writeStored(writer, "META-INF/LIB.SF", text("signature", 1));
+        }
+        try (ZipWriter writer = new ZipWriter(second)) {
+            writeStored(writer, "a/A.class", text("second A", 1));
+            writeStored(writer, "b/B.class", text("second B", 1));
+        }
+
+        File bundle = new File(tmp.getRoot(), "first-wins.jar");
+        Map<String, File> origins = Archiver.mergeArchives(Arrays.asList(first, second), bundle,
+                Archiver.DuplicatePolicy.FIRST_WINS, new ArchiveOptions());
+        Map<String, byte[]> contents = readWithZipFile(bundle);
+        assertArrayEquals(text("first A", 1), contents.get("a/A.class"));
+        assertArrayEquals(text("new", 1), contents.get("dup.txt"));
+        assertArrayEquals(text("second B", 1), contents.get("b/B.class"));
+        assertFalse(contents.containsKey("META-INF/LIB.SF"));
+        assertEquals(first, origins.get("a/A.class"));
+        assertEquals(second, origins.get("b/B.class"));
+        String index = new String(contents.get(Conventions.LIBRARY_BUNDLE_INDEX), StandardCharsets.UTF_8);
+        assertEquals("a/A.class\t" + first.getPath() + "\n" +
+                "dup.txt\t" + first.getPath() + "\n" +
+                "b/B.class\t" + second.getPath() + "\n", index);
+
+        bundle = new File(tmp.getRoot(), "last-wins.jar");
+        Archiver.mergeArchives(Arrays.asList(first, second), bundle, Archiver.DuplicatePolicy.LAST_WINS, new ArchiveOptions());
+        assertArrayEquals(text("second A", 1), readWithZipFile(bundle).get("a/A.class"));
+    }
+
+    private static void writeStored(ZipWriter writer, String name, byte[] data) throws IOException {
+        ZipRecord rec = new ZipRecord(name);
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        rec.method = ZipRecord.STORED;
+        rec.crc = crc.getValue();
+        rec.size = data.length;
+        writer.writeEntry(rec, data, 0, data.length);
+    }
+
+    private static byte[] text(String s, int times) {
+        StringBuilder sb = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++)
+            sb.append(s);
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] bytes(int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static void write(File dir, Map<String, byte[]> contents) throws IOException {
+        for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            File f = new File(dir, entry.getKey());
+            Files.createDirectories(f.getParentFile().toPath());
+            Files.write(f.toPath(), entry.getValue());
+        }
+    }
+
+    private static Map<String, byte[]> readWithZipFile(File archive) throws IOException {
+        Map<String, byte[]> contents = new TreeMap<>();
+        try (ZipFile zip = new ZipFile(archive)) {
+            for (ZipEntry entry : Collections.list(zip.entries()))
+                if (!entry.isDirectory())
+                    assertNull("duplicate entry " + entry.getName(), contents.put(entry.getName(), readAll(zip, entry)));
+        }
+        return contents;
+    }
+
+    /** Checks the entries of an archive and their contents. */
+    private static void assertContents(Map<String, byte[]> expected, File archive) throws IOException {
+        Map<String, byte[]> actual = readWithZipFile(archive);
+        assertEquals(new TreeSet<>(expected.keySet()), actual.keySet());
+        for (Map.Entry<String, byte[]> entry : expected.entrySet())
+            assertArrayEquals(entry.getKey(), entry.getValue(), actual.get(entry.getKey()));
+    }
+
+    private static Set<String> readWithZipReader(File archive) throws IOException {
+        Set<String> names = new TreeSet<>();
+        try (ZipReader reader = new ZipReader(archive)) {
+            for (ZipRecord rec : reader.getRecords())
+                names.add(rec.name);
+        }
+        return names;
+    }
+
+    private static byte[] readAll(ZipFile zip, ZipEntry entry) throws IOException {
+        try (InputStream in = zip.getInputStream(entry)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                out.write(buf, 0, n);
+            return out.toByteArray();
+        }
+    }
+}
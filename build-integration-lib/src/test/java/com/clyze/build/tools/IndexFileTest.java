@@ -0,0 +1,71 @@
+package com.clyze.build.tools;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that index files read back what was written and that files of
+ * other formats are ignored.
+ */
+public class IndexFileTest {
+    private static final int MAGIC = 0x435A5445;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws IOException {
+        List<String> strings = Arrays.asList("", "a", "a/b", "a/b/c", "a/bd", "b", "b\ud83d\ude00", "b\ud83d\ude01x", "\u00e9t\u00e9");
+        File file = new File(tmp.getRoot(), "sub/strings.idx");
+        IndexFile.save(file, MAGIC, 1, out -> {
+            IndexFile.writeVarInt(out, strings.size());
+            String previous = "";
+            for (String s : strings) {
+                IndexFile.writeString(out, previous, s);
+                out.writeLong(s.length());
+                previous = s;
+            }
+            IndexFile.writeVarInt(out, Integer.MAX_VALUE);
+        });
+
+        ByteBuffer buf = IndexFile.load(file, MAGIC, 1);
+        assertNotNull(buf);
+        int count = IndexFile.readVarInt(buf);
+        List<String> read = new ArrayList<>();
+        String previous = "";
+        for (int i = 0; i < count; i++) {
+            previous = IndexFile.readString(buf, previous);
+            assertEquals(previous.length(), buf.getLong());
+            read.add(previous);
+        }
+        assertEquals(strings, read);
+        assertEquals(Integer.MAX_VALUE, IndexFile.readVarInt(buf));
+        assertFalse(buf.hasRemaining());
+
+        assertNull(IndexFile.load(file, MAGIC, 2));
+        assertNull(IndexFile.load(file, MAGIC + 1, 1));
+        assertNull(IndexFile.load(new File(tmp.getRoot(), "missing.idx"), MAGIC, 1));
+        // Only the index is left in the directory.
+        assertEquals(Collections.singletonList("strings.idx"), Arrays.asList(file.getParentFile().list()));
+    }
+
+    @Test
+    public void truncatedFilesAreIgnored() throws IOException {
+        File file = tmp.newFile("short.idx");
+        Files.write(file.toPath(), new byte[] { 0x43, 0x5A });
+        assertNull(IndexFile.load(file, MAGIC, 1));
+    }
+
+    @Test
+    public void hex() {
+        assertEquals("00ff7f80", IndexFile.hex(new byte[] { 0, -1, 127, -128, 1 }, 4));
+        assertEquals(16, IndexFile.key("/some/path").length());
+    }
+}
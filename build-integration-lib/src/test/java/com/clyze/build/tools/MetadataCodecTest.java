@@ -0,0 +1,111 @@
+package com.clyze.build.tools;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that decoding compact metadata gives back the encoded files.
+ */
+public class MetadataCodecTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws IOException {
+        Map<String, String> files = new LinkedHashMap<>();
+        files.put("A.json", "{\"types\": [{\"name\": \"a.A\", \"position\": {\"start\": 0, \"end\": 12}, \"public\": true},"
+                + " {\"name\": \"a.A\", \"position\": {\"start\": -7, \"end\": 9007199254740993}, \"public\": false}],"
+                + " \"doc\": null, \"escaped\": \"tab\\tquote\\\" \\u00e9 \\ud83d\\ude00 \\n\"}");
+        files.put("sub/B.json", "[1.5, -0.0, 1e10, 2E-3, -0, 123456789012345678901234567890, \"\", {}, []]");
+        // Files with many top-level values (one per line).
+        files.put("lines.json", "{\"a\": 1}\n{\"a\": 2}\n[\"x\"]\n");
+        files.put("scalar.json", "42");
+        files.put("raw/notes.txt", "not JSON {\n\u00e9\n");
+        for (int i = 0; i < 50; i++)
+            files.put("many/F" + i + ".json", "{\"name\": \"many.F" + i + "\", \"super\": \"java.lang.Object\", \"line\": " + i + "}");
+
+        File src = tmp.newFolder("src");
+        Map<String, File> entries = new LinkedHashMap<>();
+        for (Map.Entry<String, String> e : files.entrySet()) {
+            File f = new File(src, e.getKey());
+            Files.createDirectories(f.getParentFile().toPath());
+            Files.write(f.toPath(), e.getValue().getBytes(StandardCharsets.UTF_8));
+            entries.put(e.getKey(), f);
+        }
+
+        File compact = new File(tmp.getRoot(), "metadata.bin");
+        MetadataCodec.encode(entries, compact, new ArchiveOptions());
+        File out = tmp.newFolder("out");
+        MetadataCodec.decode(compact, out);
+
+        for (Map.Entry<String, File> e : entries.entrySet()) {
+            File decoded = new File(out, e.getKey());
+            assertTrue(e.getKey(), decoded.isFile());
+            if (e.getKey().endsWith(".json"))
+                assertEquals(e.getKey(), tokens(e.getValue()), tokens(decoded));
+            else
+                assertArrayEquals(e.getKey(), Files.readAllBytes(e.getValue().toPath()), Files.readAllBytes(decoded.toPath()));
+        }
+    }
+
+    @Test
+    public void invalidJsonIsRejected() throws IOException {
+        File f = tmp.newFile("bad.json");
+        Files.write(f.toPath(), "{\"a\": ".getBytes(StandardCharsets.UTF_8));
+        File compact = new File(tmp.getRoot(), "bad.bin");
+        try {
+            MetadataCodec.encode(Collections.singletonMap("bad.json", f), compact, new ArchiveOptions());
+            fail("invalid JSON was encoded");
+        } catch (IOException expected) {
+            assertFalse(compact.exists());
+        }
+    }
+
+    @Test
+    public void decodingStaysInTargetDirectory() throws IOException {
+        File f = tmp.newFile("a.txt");
+        File compact = new File(tmp.getRoot(), "escape.bin");
+        MetadataCodec.encode(Collections.singletonMap("../escape.txt", f), compact, new ArchiveOptions());
+        try {
+            MetadataCodec.decode(compact, tmp.newFolder("out"));
+            fail("an entry was decoded outside the target directory");
+        } catch (IOException expected) {
+            assertFalse(new File(tmp.getRoot(), "escape.txt").exists());
+        }
+    }
+
+    /**
+     * Returns the JSON tokens of a file, with the literal text of numbers,
+     * so that documents with the same values have the same tokens.
+     */
+    private static List<String> tokens(File f) throws IOException {
+        List<String> tokens = new ArrayList<>();
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+            reader.setLenient(true);
+            for (JsonToken token = reader.peek(); token != JsonToken.END_DOCUMENT; token = reader.peek()) {
+                switch (token) {
+                    case BEGIN_OBJECT: reader.beginObject(); tokens.add("{"); break;
+                    case END_OBJECT: reader.endObject(); tokens.add("}"); break;
+                    case BEGIN_ARRAY: reader.beginArray(); tokens.add("["); break;
+                    case END_ARRAY: reader.endArray(); tokens.add("]"); break;
+                    case NAME: tokens.add("name:" + reader.nextName()); break;
+                    case STRING: tokens.add("string:" + reader.nextString()); break;
+                    case NUMBER: tokens.add("number:" + reader.nextString()); break;
+                    case BOOLEAN: tokens.add("boolean:" + reader.nextBoolean()); break;
+                    case NULL: reader.nextNull(); tokens.add("null"); break;
+                    default: throw new IOException("Unexpected token: " + token);
+                }
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,97 @@
+package com.clyze.build.tools;
+
+import java.util.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that printing parsed ProGuard rules gives a configuration with
+ * the same rules.
+ */
+public class ProguardRuleTest {
+    private static final String CONFIGURATION = String.join("\n",
+            "# A comment before the rules",
+            "-injars in.jar",
+            "-libraryjars <java.home>/lib/rt.jar(java/**.class)",
+            "-dontwarn com.example.**",
+            "-keep,allowobfuscation , allowshrinking class com.example.Main {",
+            "    public static void main(java.lang.String[]);   # entry point",
+            "    <fields>;",
+            "}",
+            "-keepclassmembers class * extends android.app.Activity {",
+            "   public void *(android.view.View);",
+            "}",
+            "-keep @com.example.Keep class * { *; }",
+            "-keep class 'com.example.$Quoted name' { <init>(...); }",
+            "-if class **.Model",
+            "-keep class <1>.Adapter { <init>(); }",
+            "-assumenosideeffects class android.util.Log {",
+            "    public static int d(...);",
+            "    public static int v(...);",
+            "}",
+            "@other.pro",
+            "-printmapping mapping.txt",
+            "");
+
+    @Test
+    public void printedRulesParseToTheSameRules() {
+        List<ProguardRule> rules = ProguardRule.parse(CONFIGURATION, "proguard.pro");
+        String printed = print(rules);
+        List<ProguardRule> reparsed = ProguardRule.parse(printed, "printed.pro");
+        assertEquals(keys(rules), keys(reparsed));
+        // Printing is a fixpoint.
+        assertEquals(printed, print(reparsed));
+    }
+
+    @Test
+    public void parsesRuleStructure() {
+        List<ProguardRule> rules = ProguardRule.parse(CONFIGURATION, "proguard.pro");
+        // The leading comment is dropped; every directive and the include are rules.
+        assertEquals(11, rules.size());
+
+        ProguardRule keepMain = rules.get(3);
+        assertEquals("-keep", keepMain.directive);
+        assertEquals(new TreeSet<>(Arrays.asList("allowobfuscation", "allowshrinking")), keepMain.modifiers);
+        assertEquals(new TreeSet<>(Arrays.asList("<fields>", "public static void main(java.lang.String[])")), keepMain.members);
+        assertEquals(5, keepMain.line);
+
+        ProguardRule conditional = rules.get(7);
+        assertEquals("-if", conditional.directive);
+        assertNotNull(conditional.subsequent);
+        assertEquals("-keep class <1>.Adapter {\n    <init>();\n}", conditional.subsequent.getKey());
+
+        ProguardRule include = rules.get(9);
+        assertEquals("@", include.directive);
+        assertEquals("@other.pro", include.getKey());
+    }
+
+    @Test
+    public void equivalentRulesHaveTheSameKey() {
+        List<ProguardRule> a = ProguardRule.parse("-keep,allowshrinking,allowobfuscation class a.B { int x; void m(int, long); }", "a");
+        List<ProguardRule> b = ProguardRule.parse("-keep , allowobfuscation,allowshrinking class a.B {\n  void m( int , long );\n  int   x;\n}\n", "b");
+        assertEquals(keys(a), keys(b));
+    }
+
+    @Test
+    public void textBeforeTheFirstDirectiveIsKept() {
+        List<ProguardRule> rules = ProguardRule.parse("stray tokens\n-dontobfuscate\n", "a");
+        assertEquals(2, rules.size());
+        assertEquals("stray tokens", rules.get(0).getKey().trim());
+        assertEquals(keys(rules), keys(ProguardRule.parse(print(rules), "b")));
+    }
+
+    private static String print(List<ProguardRule> rules) {
+        StringBuilder sb = new StringBuilder();
+        for (ProguardRule rule : rules)
+            sb.append(rule).append('\n');
+        return sb.toString();
+    }
+
+    private static List<String> keys(List<ProguardRule> rules) {
+        List<String> keys = new ArrayList<>();
+        for (ProguardRule rule : rules)
+            keys.add(rule.getKey());
+        return keys;
+    }
+}
@@ -0,0 +1,74 @@
+package com.clyze.build.tools;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the extraction, reuse and eviction of cached resources.
+ */
+public class ResourceCacheTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void unusedVersionsAreEvicted() throws IOException {
+        File cacheRoot = tmp.newFolder("cache");
+        List<String> oldPaths = getResources(jar("old.jar", "v1"), cacheRoot);
+        File oldDir = new File(oldPaths.get(0)).getParentFile();
+        assertEquals("v1", new String(Files.readAllBytes(new File(oldPaths.get(0)).toPath()), StandardCharsets.UTF_8));
+        assertTrue(new File(cacheRoot, oldDir.getName() + ".lock").exists());
+
+        // A recently used version is kept.
+        List<String> newPaths = getResources(jar("new.jar", "v2"), cacheRoot);
+        assertNotEquals(oldPaths, newPaths);
+        assertTrue(oldDir.exists());
+
+        long lastUsed = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(31);
+        assertTrue(new File(oldDir, ".complete").setLastModified(lastUsed));
+        assertEquals(newPaths, getResources(jar("new.jar", "v2"), cacheRoot));
+        assertFalse(oldDir.exists());
+        assertFalse(new File(cacheRoot, oldDir.getName() + ".lock").exists());
+
+        // An evicted version is extracted again on use.
+        assertEquals(oldPaths, getResources(jar("old.jar", "v1"), cacheRoot));
+        assertTrue(new File(oldPaths.get(0)).isFile());
+    }
+
+    @Test
+    public void damagedResourcesAreExtractedAgain() throws IOException {
+        File cacheRoot = tmp.newFolder("cache");
+        File jar = jar("a.jar", "contents");
+        File f = new File(getResources(jar, cacheRoot).get(0));
+        Files.write(f.toPath(), "CONTENTS".getBytes(StandardCharsets.UTF_8));
+        getResources(jar, cacheRoot);
+        assertEquals("contents", new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8));
+    }
+
+    private static List<String> getResources(File jar, File cacheRoot) throws IOException {
+        try (ZipFile zip = new ZipFile(jar)) {
+            return ResourceCache.getResources(zip, "res/", cacheRoot);
+        }
+    }
+
+    private File jar(String name, String contents) throws IOException {
+        File jar = new File(tmp.getRoot(), name);
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            out.putNextEntry(new ZipEntry("res/"));
+            out.putNextEntry(new ZipEntry("res/resource.txt"));
+            out.write(contents.getBytes(StandardCharsets.UTF_8));
+            out.putNextEntry(new ZipEntry("other.txt"));
+        }
+        return jar;
+    }
+}
@@ -0,0 +1,233 @@
+package com.clyze.build.tools.cli;
+
+import com.clyze.build.tools.cli.buck.Buck;
+import com.clyze.client.ConsolePrinter;
+import com.clyze.client.web.Helper;
+import com.clyze.client.web.PostState;
+import com.google.gson.GsonBuilder;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.clyze.build.tools.cli.Util.logError;
+import static com.clyze.build.tools.cli.Util.println;
+
+/**
+ * Batch mode: snapshots many projects in a single process. The projects
+ * are processed by a bounded pool of workers with the options of the
+ * batch, so that the work that does not depend on the project (starting
+ * the JVM, reading the installation settings, refreshing the indexes of
+ * the local repositories) is only done once. A summary of the results
+ * is printed at the end and can also be written as JSON.
+ */
+class Batch {
+    private static final String OK = "ok";
+    private static final String FAILED = "failed";
+
+    /** A project to process. */
+    static final class Job {
+        final File dir;
+        /** The project name to post to (null for the name of the batch). */
+        final String project;
+        /** The stacks of the project (null for the stacks of the batch). */
+        final List<String> stacks;
+
+        Job(File dir, String project, List<String> stacks) {
+            this.dir = dir;
+            this.project = project;
+            this.stacks = stacks;
+        }
+    }
+
+    /** The result of processing a project, as written in the report. */
+    static final class Result {
+        String dir;
+        String project;
+        String buildTool;
+        String status;
+        long millis;
+        String error;
+    }
+
+    private final Config config;
+
+    Batch(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * Reads the projects of the batch.
+     *
+     * @param args         project directories or manifest files
+     * @return             the projects, in the order given
+     * @throws IOException if an argument is neither a directory nor a valid manifest
+     */
+    static List<Job> readJobs(List<String> args) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        for (String arg : args) {
+            File f = new File(arg);
+            if (f.isDirectory())
+                jobs.add(new Job(f, null, null));
+            else if (f.isFile())
+                jobs.addAll(readManifest(f));
+            else
+                throw new FileNotFoundException("Batch project or manifest not found: " + arg);
+        }
+        return jobs;
+    }
+
+    /**
+     * Reads a manifest. Each line names a project directory (relative
+     * to the manifest) and may be followed by "--project NAME" and
+     * "--stack STACK" options. Empty lines and lines starting with '#'
+     * are ignored.
+     */
+    private static List<Job> readManifest(File manifest) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        File base = manifest.getAbsoluteFile().getParentFile();
+        int lineNo = 0;
+        for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+            lineNo++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] tokens = line.split("\\s+");
+            File dir = new File(tokens[0]);
+            if (!dir.isAbsolute())
+                dir = new File(base, tokens[0]);
+            String project = null;
+            List<String> stacks = null;
+            for (int i = 1; i < tokens.length; i += 2) {
+                String opt = tokens[i];
+                if (i + 1 == tokens.length)
+                    throw new IOException(manifest + ":" + lineNo + ": missing value of option " + opt);
+                if (opt.equals("--project"))
+                    project = tokens[i + 1];
+                else if (opt.equals("--stack")) {
+                    if (stacks == null)
+                        stacks = new ArrayList<>();
+                    stacks.add(tokens[i + 1]);
+                } else
+                    throw new IOException(manifest + ":" + lineNo + ": unknown option " + opt);
+            }
+            jobs.add(new Job(dir, project, stacks));
+        }
+        return jobs;
+    }
+
+    /**
+     * Processes the projects of the batch and reports the results.
+     *
+     * @param jobs   the projects to process
+     * @return       the number of projects that failed
+     */
+    int run(List<Job> jobs) {
+        int threads = Math.max(1, Math.min(config.batchThreads, jobs.size()));
+        println("Processing " + jobs.size() + " projects in batch mode (" + threads + " at a time)...");
+        long start = System.nanoTime();
+        AtomicInteger threadCount = new AtomicInteger(0);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "clyze-batch-" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        List<Future<Result>> futures = new ArrayList<>();
+        for (int i = 0; i < jobs.size(); i++) {
+            Job job = jobs.get(i);
+            String name = i + "-" + job.dir.getName();
+            futures.add(pool.submit(() -> process(job, name)));
+        }
+        pool.shutdown();
+        List<Result> results = new ArrayList<>();
+        try {
+            for (Future<Result> future : futures)
+                results.add(future.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            logError("ERROR: batch mode interrupted.");
+            pool.shutdownNow();
+            // The projects that did not finish are counted as failures.
+            return jobs.size() - (int) results.stream().filter(r -> r.status.equals(OK)).count();
+        } catch (ExecutionException ex) {
+            // Errors are caught by process(), so this should not happen.
+            throw new IllegalStateException(ex.getCause());
+        }
+        return report(results, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Snapshots a project. Errors are not propagated, but recorded in
+     * the result, so that the rest of the batch is still processed.
+     */
+    private Result process(Job job, String name) {
+        long start = System.nanoTime();
+        Result result = new Result();
+        result.dir = job.dir.getPath();
+        Config projectConfig = new Config(config, job.dir, name);
+        try {
+            if (job.project != null)
+                projectConfig.postOptions.project = job.project;
+            if (job.stacks != null)
+                projectConfig.postOptions.stacks = job.stacks;
+            result.project = projectConfig.postOptions.project;
+            BuildTool buildTool = config.buildTool == null ? BuildTool.detect(projectConfig) : BuildTool.get(config.buildTool, projectConfig);
+            if (buildTool == null)
+                throw new IOException("could not determine build tool");
+            result.buildTool = buildTool.getName();
+            // Buck snapshots need per-build options (code, trace file).
+            if (buildTool instanceof Buck)
+                throw new IOException("Buck projects are not supported in batch mode");
+            println("Processing project " + job.dir + " (build tool: " + buildTool.getName() + ")...");
+            PostState ps = Main.initPostState(projectConfig);
+            buildTool.createSnapshotDir();
+            buildTool.populatePostState(ps, projectConfig);
+            Helper.post(ps, projectConfig.postOptions, projectConfig.getCacheDir(), null, new ConsolePrinter(config.debug), config.debug);
+            result.status = OK;
+        } catch (Exception ex) {
+            result.status = FAILED;
+            result.error = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+            logError("ERROR: could not process project " + job.dir + ": " + result.error);
+            if (config.debug)
+                ex.printStackTrace();
+        } finally {
+            projectConfig.close();
+            result.millis = (System.nanoTime() - start) / 1_000_000;
+        }
+        return result;
+    }
+
+    /**
+     * Prints the results of the batch and writes the report.
+     *
+     * @return the number of projects that failed
+     */
+    private int report(List<Result> results, long millis) {
+        int failed = (int) results.stream().filter(r -> r.status.equals(FAILED)).count();
+        println("Batch summary: " + results.size() + " projects, " + (results.size() - failed) + " succeeded, " + failed + " failed, " + formatMillis(millis) + ".");
+        for (Result r : results) {
+            String line = String.format("  %-7s %8s  %s", r.status, formatMillis(r.millis), r.dir);
+            if (r.buildTool != null)
+                line += " (" + r.buildTool + ")";
+            if (r.error != null)
+                line += ": " + r.error;
+            System.out.println(line);
+        }
+        if (config.batchReport != null) {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(config.batchReport), StandardCharsets.UTF_8)) {
+                new GsonBuilder().setPrettyPrinting().create().toJson(results, writer);
+                println("Batch report written to: " + config.batchReport);
+            } catch (IOException ex) {
+                logError("ERROR: could not write batch report " + config.batchReport + ": " + ex.getMessage());
+            }
+        }
+        return failed;
+    }
+
+    private static String formatMillis(long millis) {
+        return String.format("%.1fs", millis / 1000.0);
+    }
+}
@@ -1,7 +1,9 @@
 package com.clyze.build.tools.cli;
 
+import com.clyze.build.tools.ArchiveOptions;
 import com.clyze.build.tools.Archiver;
 import com.clyze.build.tools.Conventions;
+import com.clyze.build.tools.FileScanner;
 import com.clyze.build.tools.cli.ant.Ant;
 import com.clyze.build.tools.cli.buck.Buck;
 import com.clyze.build.tools.cli.gradle.Gradle;
@@ -10,8 +12,15 @@ import com.clyze.client.web.PostState;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 /**
  * Common functionality shared by all build tools.
@@ -22,13 +31,35 @@ abstract public class BuildTool {
     protected final File currentDir;
     /** Debugging mode. */
     protected final boolean debug;
+    /** If true, libraries are merged into a single archive. */
+    protected final boolean bundleLibraries;
+    /** If true, dependency resolution results are reused across runs. */
+    protected final boolean resolutionCache;
+    /** If true, the sources archives of the snapshot are updated incrementally. */
+    private final boolean incrementalArchives;
+    /** The scanner shared by all steps of the run. */
+    protected final FileScanner scanner;
+    /** The options to use when creating archives. */
+    protected final ArchiveOptions archiveOptions;
+    /** The directory where the snapshot is assembled. */
+    protected final File snapshotDir;
+    /** The temporary archives created by this build tool. */
+    private final Set<File> tmpJarFiles = ConcurrentHashMap.newKeySet();
 
     protected BuildTool(File currentDir, Config config) {
         this.currentDir = currentDir;
         this.debug = config.isDebug();
+        this.bundleLibraries = config.isBundleLibraries();
+        this.archiveOptions = config.getArchiveOptions();
+        this.resolutionCache = config.usesResolutionCache();
+        this.incrementalArchives = config.isIncrementalArchives();
+        this.scanner = config.getFileScanner();
+        this.snapshotDir = config.getSnapshotDir();
     }
 
-    private static File getCurrentDir() {
+    private static File getCurrentDir(Config config) {
+        if (config.currentDir != null)
+            return new File(config.currentDir);
         String currentPath = System.getProperty("user.dir");
         if (currentPath == null)
             throw new RuntimeException("ERROR: current directory is null.");
@@ -36,7 +67,7 @@ abstract public class BuildTool {
     }
 
     static BuildTool detect(Config config) {
-        File currentDir = config.currentDir != null ? new File(config.currentDir) : getCurrentDir();
+        File currentDir = getCurrentDir(config);
         if (!currentDir.exists())
             throw new RuntimeException("ERROR: current directory is invalid: " + currentDir);
         if ((new File(currentDir, "build.gradle")).exists())
@@ -57,13 +88,13 @@ abstract public class BuildTool {
     public static BuildTool get(String name, Config config) {
         switch (name) {
             case "ant":
-                return new Ant(getCurrentDir(), config);
+                return new Ant(getCurrentDir(config), config);
             case "buck":
-                return new Buck(getCurrentDir(), config);
+                return new Buck(getCurrentDir(config), config);
             case "gradle":
-                return new Gradle(getCurrentDir(), config);
+                return new Gradle(getCurrentDir(config), config);
             case "maven":
-                return new Maven(getCurrentDir(), config);
+                return new Maven(getCurrentDir(config), config);
             default:
                 throw new RuntimeException("ERROR: unknown build tool: " + name);
         }
@@ -81,28 +112,166 @@ abstract public class BuildTool {
     public abstract void populatePostState(PostState ps, Config config) throws IOException;
 
     protected void createSnapshotDir() {
-        boolean mk = new File(Conventions.CLYZE_SNAPSHOT_DIR).mkdirs();
+        boolean mk = snapshotDir.mkdirs();
         if (mk)
-            System.err.println("Directory " + Conventions.CLYZE_SNAPSHOT_DIR + " created.");
+            System.err.println("Directory " + snapshotDir + " created.");
         else
-            System.err.println("Directory " + Conventions.CLYZE_SNAPSHOT_DIR + " already exists.");
+            System.err.println("Directory " + snapshotDir + " already exists.");
     }
 
-    protected void gatherSourcesFromSrcDir(PostState ps) throws IOException {
-        File srcDir = new File(currentDir, "src");
-        File srcArchive = new File(Conventions.CLYZE_SNAPSHOT_DIR, "sources.zip");
-        gatherSources(ps, srcDir, srcArchive);
+    /**
+     * Adds the libraries of the project to the snapshot. If library
+     * bundling is enabled, the libraries are first merged into a single
+     * archive in the snapshot directory.
+     *
+     * @param ps            the snapshot state to update
+     * @param libraries     the paths of the library archives
+     * @throws IOException  if the library bundle could not be created
+     */
+    protected void addLibraries(PostState ps, Collection<String> libraries) throws IOException {
+        if (!bundleLibraries || libraries.size() < 2) {
+            libraries.forEach(lib -> ps.addFileInput(Conventions.LIBRARY_INPUT_TAG, lib));
+            return;
+        }
+        createSnapshotDir();
+        File bundle = new File(snapshotDir, Conventions.LIBRARY_BUNDLE_FILE);
+        List<File> libFiles = libraries.stream().map(File::new).collect(Collectors.toList());
+        Archiver.mergeArchives(libFiles, bundle, Archiver.DuplicatePolicy.FIRST_WINS, archiveOptions);
+        System.out.println("Bundled " + libFiles.size() + " libraries as: " + bundle);
+        ps.addFileInput(Conventions.LIBRARY_INPUT_TAG, bundle.getCanonicalPath());
+    }
+
+    /**
+     * Opens the cached dependency resolution of the project.
+     *
+     * @param isBuildFile   returns true for the names of the files that control resolution
+     * @param inputs        other inputs of the resolution
+     * @return              the cache entry, or null if caching is disabled or not possible
+     */
+    protected ResolutionCache openResolutionCache(Predicate<String> isBuildFile, String... inputs) {
+        if (!resolutionCache)
+            return null;
+        ResolutionCache cache = ResolutionCache.open(getName(), currentDir, scanner, isBuildFile, inputs);
+        if (debug && cache != null)
+            System.out.println("Dependency resolution cache: " + cache.getFile());
+        return cache;
+    }
+
+    /**
+     * Adds resolved dependencies (libraries and their sources) to the snapshot.
+     *
+     * @param ps            the snapshot state to update
+     * @param resolution    the resolved dependencies
+     * @throws IOException  if the library bundle could not be created
+     */
+    protected void addResolution(PostState ps, ResolutionCache.Resolution resolution) throws IOException {
+        resolution.sources.forEach(src -> ps.addFileInput(Conventions.SOURCE_INPUT_TAG, src));
+        addLibraries(ps, resolution.libraries);
+    }
+
+    /**
+     * Processes the modules of a multi-module project on a pool of
+     * worker threads. Each module adds its inputs to a list of its own;
+     * the lists are then added to the snapshot in module order, so the
+     * snapshot does not depend on thread scheduling.
+     *
+     * @param ps          the snapshot state to update
+     * @param moduleDirs  the module directories (the project directory first)
+     * @param gatherer    the code that processes a module
+     */
+    protected void gatherModules(PostState ps, List<File> moduleDirs, ModuleGatherer gatherer) {
+        int threads = Math.min(archiveOptions.getThreadCount(), moduleDirs.size());
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "clyze-module");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<List<String[]>>> pending = new ArrayList<>();
+            for (File moduleDir : moduleDirs)
+                pending.add(pool.submit(() -> {
+                    List<String[]> inputs = new ArrayList<>();
+                    gatherer.gather(moduleDir, (String tag, String path) -> inputs.add(new String[] { tag, path }));
+                    return inputs;
+                }));
+            for (int i = 0; i < moduleDirs.size(); i++) {
+                try {
+                    for (String[] input : pending.get(i).get())
+                        ps.addFileInput(input[0], input[1]);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException ex) {
+                    System.err.println("ERROR: could not process module " + moduleDirs.get(i) + ": " + ex.getCause());
+                    if (debug)
+                        ex.getCause().printStackTrace();
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Collects the inputs of a module. */
+    protected interface ModuleGatherer {
+        /**
+         * Collects the inputs of a module.
+         *
+         * @param moduleDir    the module directory
+         * @param inputs       receives the tag and the path of each file input
+         * @throws IOException on filesystem access error
+         */
+        void gather(File moduleDir, BiConsumer<String, String> inputs) throws IOException;
     }
 
-    protected void gatherSources(PostState ps, File srcDir, File srcArchive) throws IOException {
+    /**
+     * Returns a name that identifies a module directory, for naming the
+     * archives of the module.
+     *
+     * @param moduleDir    the module directory
+     * @return             an empty string for the project directory, otherwise
+     *                     the relative path of the module with '_' as the separator
+     * @throws IOException if the module path could not be resolved
+     */
+    protected String getModuleId(File moduleDir) throws IOException {
+        String root = scanner.getCanonicalPath(currentDir);
+        String dir = scanner.getCanonicalPath(moduleDir);
+        if (dir.equals(root))
+            return "";
+        String rel = dir.startsWith(root + File.separator) ? dir.substring(root.length() + 1) : moduleDir.getName();
+        return rel.replaceAll("[^A-Za-z0-9_.-]+", "_");
+    }
+
+    protected void gatherSourcesFromSrcDir(BiConsumer<String, String> inputs) throws IOException {
+        gatherSourcesFromSrcDir(inputs, currentDir);
+    }
+
+    protected void gatherSourcesFromSrcDir(BiConsumer<String, String> inputs, File moduleDir) throws IOException {
+        File srcDir = new File(moduleDir, "src");
+        String moduleId = getModuleId(moduleDir);
+        File srcArchive = new File(snapshotDir, moduleId.isEmpty() ? "sources.zip" : "sources-" + moduleId + ".zip");
+        gatherSources(inputs, srcDir, srcArchive);
+    }
+
+    protected void gatherSources(BiConsumer<String, String> inputs, File srcDir, File srcArchive) throws IOException {
         if (srcDir.exists() && srcDir.isDirectory()) {
-            Archiver.zipTree(srcDir, srcArchive);
+            Archiver.zipTree(srcDir, srcArchive, getArchiveOptionsFor(srcArchive));
             System.out.println("Created source archive: " + srcArchive);
-            ps.addFileInput(Conventions.SOURCE_INPUT_TAG, srcArchive.getCanonicalPath());
+            inputs.accept(Conventions.SOURCE_INPUT_TAG, srcArchive.getCanonicalPath());
         }
     }
 
-    protected boolean gatherCodeJarFromDir(PostState ps, File binJarDir, boolean ignoreProjectName) throws IOException {
+    /**
+     * Adds the code archives found in a directory.
+     *
+     * @param inputs        receives the file inputs
+     * @param binJarDir     the directory containing the archives
+     * @param projectName   only archives whose name starts with this
+     *                      prefix are added (if null, all archives are added)
+     * @return              true if some archive was found
+     * @throws IOException  on filesystem access error
+     */
+    protected boolean gatherCodeJarFromDir(BiConsumer<String, String> inputs, File binJarDir, String projectName) throws IOException {
         boolean foundFiles = false;
         if (binJarDir.exists()) {
             if (debug)
@@ -113,11 +282,11 @@ abstract public class BuildTool {
                     String name = file.getName();
                     if (debug)
                         System.out.println("Processing file: " + file);
-                    if ((ignoreProjectName || name.startsWith(currentDir.getName()))&& name.endsWith(".jar")) {
+                    if ((projectName == null || name.startsWith(projectName)) && name.endsWith(".jar")) {
                         String jarFile = file.getCanonicalPath();
                         if (debug)
                             System.out.println("Found code file: " + jarFile);
-                        ps.addFileInput(Conventions.BINARY_INPUT_TAG, jarFile);
+                        inputs.accept(Conventions.BINARY_INPUT_TAG, jarFile);
                         foundFiles = true;
                     }
                 }
@@ -126,17 +295,27 @@ abstract public class BuildTool {
         return foundFiles;
     }
 
-    protected void gatherCodeFromTargetDir(PostState ps, String currentDirPath, boolean ignoreProjectName) throws IOException {
-        boolean jar = gatherCodeJarFromDir(ps, new File(currentDirPath, "target"), ignoreProjectName);
-        if (!jar) {
-            if (debug)
-                System.out.println("No .jar found, looking for .class files...");
-            File targetClassesDir = Paths.get(currentDirPath, "target", "classes").toFile();
-            if (targetClassesDir.exists() && targetClassesDir.isDirectory()) {
-                File classesJar = getTmpJarFile("classes");
-                Archiver.zipTree(targetClassesDir, classesJar);
-                ps.addFileInput(Conventions.BINARY_INPUT_TAG, classesJar.getCanonicalPath());
-            }
+    protected void gatherCodeFromTargetDir(BiConsumer<String, String> inputs, String currentDirPath, boolean ignoreProjectName) throws IOException {
+        String projectName = ignoreProjectName ? null : new File(currentDirPath).getName();
+        boolean jar = gatherCodeJarFromDir(inputs, new File(currentDirPath, "target"), projectName);
+        if (!jar)
+            gatherCodeFromClassesDir(inputs, Paths.get(currentDirPath, "target", "classes").toFile());
+    }
+
+    /**
+     * Archives a directory of compiled classes and adds it as code.
+     *
+     * @param inputs        receives the file inputs
+     * @param classesDir    the classes directory
+     * @throws IOException  on filesystem access error
+     */
+    protected void gatherCodeFromClassesDir(BiConsumer<String, String> inputs, File classesDir) throws IOException {
+        if (debug)
+            System.out.println("No .jar found, looking for .class files...");
+        if (classesDir.exists() && classesDir.isDirectory()) {
+            File classesJar = getTmpJarFile("classes");
+            Archiver.zipTree(classesDir, classesJar, getArchiveOptionsFor(classesJar));
+            inputs.accept(Conventions.BINARY_INPUT_TAG, classesJar.getCanonicalPath());
         }
     }
 
@@ -144,6 +323,24 @@ abstract public class BuildTool {
     protected File getTmpJarFile(String pre) throws IOException {
         File f = File.createTempFile(pre, ".jar");
         f.deleteOnExit();
+        tmpJarFiles.add(f);
         return f;
     }
+
+    /**
+     * Returns the options to use for creating a sources archive. The
+     * archives of the snapshot directory are re-created from the same
+     * files on every run, so they are archived incrementally (unless
+     * disabled); temporary archives are never reused, so they are not.
+     *
+     * @param archive   the archive to create
+     * @return          the archiving options
+     */
+    protected ArchiveOptions getArchiveOptionsFor(File archive) {
+        if (!incrementalArchives || tmpJarFiles.contains(archive))
+            return archiveOptions;
+        ArchiveOptions opts = new ArchiveOptions(archiveOptions);
+        opts.incremental = true;
+        return opts;
+    }
 }
@@ -2,13 +2,18 @@ package com.clyze.build.tools.cli;
 
 import com.clyze.client.web.AuthToken;
 import com.clyze.client.web.PostOptions;
+import com.clyze.build.tools.ArchiveOptions;
+import com.clyze.build.tools.CompressionPolicy;
 import com.clyze.build.tools.Conventions;
+import com.clyze.build.tools.FileScanner;
 import com.clyze.build.tools.Settings;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import org.apache.commons.cli.*;
 
 /**
@@ -35,15 +40,39 @@ public class Config {
     private static final String OPT_PORT = "port";
     private static final String OPT_BASE_PATH = "server-base-path";
     private static final String OPT_DEP_SOURCES = "include-dep-sources";
+    private static final String OPT_BUNDLE_LIBRARIES = "bundle-libraries";
     private static final String OPT_USERNAME = "user";
     private static final String OPT_TOKEN = "api-key";
     private static final String OPT_CACHE_DIR = "cache-dir";
     private static final String OPT_DIR = "dir";
     private static final String OPT_PUBLIC = "public";
+    private static final String OPT_ARCHIVE_THREADS = "archive-threads";
+    private static final String OPT_FULL_ARCHIVES = "full-archives";
+    private static final String OPT_COMPRESSION = "compression";
+    private static final String OPT_REPRODUCIBLE_ARCHIVES = "reproducible-archives";
+    private static final String OPT_MERGE_CONFIGURATIONS = "merge-configurations";
+    private static final String OPT_NO_RESOLUTION_CACHE = "no-resolution-cache";
+    private static final String OPT_COMPACT_METADATA = "compact-metadata";
+    private static final String OPT_BATCH = "batch";
+    private static final String OPT_BATCH_THREADS = "batch-threads";
+    private static final String OPT_BATCH_REPORT = "batch-report";
+    static final String OPT_DAEMON = "daemon";
+    static final String OPT_USE_DAEMON = "use-daemon";
+    static final String OPT_DAEMON_IDLE_TIMEOUT = "daemon-idle-timeout";
+    /** The default idle timeout of the daemon (in minutes). */
+    private static final int DEFAULT_DAEMON_IDLE_TIMEOUT = 30;
+
+    /** The command-line options, created once per process. */
+    private static Options cachedOptions = null;
 
     final boolean help;
     final boolean debug;
     final boolean includeDepSources;
+    final boolean bundleLibraries;
+    final boolean resolutionCache;
+    final boolean compactMetadata;
+    /** If true, the sources archives of the snapshot reuse their unchanged entries. */
+    final boolean incrementalArchives;
     final String buildTool;
     final String platform;
     final String jsonDir;
@@ -53,6 +82,18 @@ public class Config {
     final String cacheDir;
     final String currentDir;
     final boolean makePublic;
+    /** The project directories and manifests to process in batch mode (null for a single project). */
+    final List<String> batch;
+    final int batchThreads;
+    final String batchReport;
+    /** The directory where the snapshot is assembled. */
+    final File snapshotDir;
+    /** If true, run as a daemon that serves the requests of clients. */
+    final boolean daemon;
+    /** The time (in minutes) after which an idle daemon exits. */
+    final int daemonIdleTimeout;
+    /** The environment of the run (null for the environment of this process). */
+    final Map<String, String> environment;
 
     /**
      * Returns the directory where the created snapshot will be cached.
@@ -95,26 +136,54 @@ public class Config {
     final boolean autodetectSources;
     final Options options;
     final PostOptions postOptions = new PostOptions();
+    final ArchiveOptions archiveOptions;
 
     Config(String[] args) throws ParseException {
+        this(args, null, null);
+    }
+
+    /**
+     * Parses the command line of a run. Relative paths in the options
+     * are resolved against the given working directory, so that the
+     * daemon can serve clients that run in other directories.
+     *
+     * @param args         the command-line arguments
+     * @param workingDir   the working directory of the run (null for the
+     *                     working directory of this process)
+     * @param environment  the environment of the run, passed to the
+     *                     processes that it starts (null for the
+     *                     environment of this process)
+     * @throws ParseException on invalid arguments
+     */
+    Config(String[] args, File workingDir, Map<String, String> environment) throws ParseException {
         CommandLineParser parser = new DefaultParser();
-        this.options = createOptions();
+        this.options = getOptions();
         CommandLine cmd = parser.parse(options, args);
 
         this.help = cmd.hasOption("h");
         this.debug = cmd.hasOption("debug");
         this.includeDepSources = cmd.hasOption(OPT_DEP_SOURCES);
+        this.bundleLibraries = cmd.hasOption(OPT_BUNDLE_LIBRARIES);
+        this.resolutionCache = !cmd.hasOption(OPT_NO_RESOLUTION_CACHE);
+        this.compactMetadata = cmd.hasOption(OPT_COMPACT_METADATA);
         this.buildTool = optValOrDefault(cmd, OPT_BUILD_TOOL, null);
         this.platform = optValOrDefault(cmd, OPT_PLATFORM, null);
         this.autodetectSources = cmd.hasOption(OPT_AUTODETECT_SOURCES);
-        this.jsonDir = optValOrDefault(cmd, "json-dir", DEFAULT_JSON_DIR);
-        this.traceFile = optValOrDefault(cmd, "trace", BUCK_DEFAULT_TRACE_FILE);
+        this.jsonDir = resolve(workingDir, optValOrDefault(cmd, "json-dir", DEFAULT_JSON_DIR));
+        this.traceFile = resolve(workingDir, optValOrDefault(cmd, "trace", BUCK_DEFAULT_TRACE_FILE));
         this.proguard = optValOrDefault(cmd, OPT_PROGUARD_BINARY, "/proguard.jar");
-        this.sourceDirs = optValsOrDefault(cmd, "s", null);
-        this.codeFiles = optValsOrDefault(cmd, "c", null);
-        this.configurations = optValsOrDefault(cmd, "configuration", null);
-        this.cacheDir = optValOrDefault(cmd, OPT_CACHE_DIR, null);
+        this.sourceDirs = resolve(workingDir, optValsOrDefault(cmd, "s", null));
+        this.codeFiles = resolve(workingDir, optValsOrDefault(cmd, "c", null));
+        this.configurations = resolve(workingDir, optValsOrDefault(cmd, "configuration", null));
+        this.cacheDir = resolve(workingDir, optValOrDefault(cmd, OPT_CACHE_DIR, null));
         this.makePublic = cmd.hasOption(OPT_PUBLIC);
+        this.batch = resolve(workingDir, optValsOrDefault(cmd, OPT_BATCH, null));
+        this.batchThreads = intOptValOrDefault(cmd, OPT_BATCH_THREADS, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        this.batchReport = resolve(workingDir, optValOrDefault(cmd, OPT_BATCH_REPORT, null));
+        this.snapshotDir = new File(resolve(workingDir, Conventions.CLYZE_SNAPSHOT_DIR));
+        this.daemon = cmd.hasOption(OPT_DAEMON);
+        this.daemonIdleTimeout = intOptValOrDefault(cmd, OPT_DAEMON_IDLE_TIMEOUT, DEFAULT_DAEMON_IDLE_TIMEOUT);
+        this.environment = environment;
 
         // Set post options.
         this.postOptions.host = optValOrDefault(cmd, OPT_SERVER, Conventions.DEFAULT_HOST);
@@ -124,7 +193,75 @@ public class Config {
         this.postOptions.project = optValOrDefault(cmd, "project", Conventions.DEFAULT_PROJECT);
         this.postOptions.stacks = optValsOrDefault(cmd, OPT_STACK, Collections.singletonList(DEFAULT_STACK));
         this.postOptions.dry = cmd.hasOption(OPT_DRY);
-        this.currentDir = optValOrDefault(cmd, OPT_DIR, null);
+        this.currentDir = resolve(workingDir, optValOrDefault(cmd, OPT_DIR, workingDir == null ? null : workingDir.getPath()));
+
+        // Set archive options.
+        this.archiveOptions = new ArchiveOptions();
+        this.archiveOptions.threads = intOptValOrDefault(cmd, OPT_ARCHIVE_THREADS, 0);
+        this.incrementalArchives = !cmd.hasOption(OPT_FULL_ARCHIVES);
+        this.archiveOptions.reproducible = cmd.hasOption(OPT_REPRODUCIBLE_ARCHIVES);
+        this.archiveOptions.mergeConfigurations = cmd.hasOption(OPT_MERGE_CONFIGURATIONS);
+        try {
+            this.archiveOptions.compression = CompressionPolicy.forName(optValOrDefault(cmd, OPT_COMPRESSION, CompressionPolicy.DEFAULT.getName()));
+        } catch (IllegalArgumentException ex) {
+            throw new ParseException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Creates the configuration of a project processed in batch mode.
+     * The project is processed with the options of the batch, but in its
+     * own directory: its snapshot is assembled in that directory and it
+     * has its own scanner (so it should be closed when it is done).
+     *
+     * @param base   the configuration of the batch
+     * @param dir    the project directory
+     * @param name   a name for the project that is unique in the batch
+     */
+    Config(Config base, File dir, String name) {
+        this.help = false;
+        this.debug = base.debug;
+        this.includeDepSources = base.includeDepSources;
+        this.bundleLibraries = base.bundleLibraries;
+        this.resolutionCache = base.resolutionCache;
+        this.compactMetadata = base.compactMetadata;
+        this.incrementalArchives = base.incrementalArchives;
+        this.buildTool = base.buildTool;
+        this.platform = base.platform;
+        this.autodetectSources = base.autodetectSources;
+        this.jsonDir = base.jsonDir;
+        this.traceFile = base.traceFile;
+        this.proguard = base.proguard;
+        this.sourceDirs = base.sourceDirs;
+        this.codeFiles = base.codeFiles;
+        this.configurations = base.configurations;
+        this.cacheDir = base.cacheDir == null ? null : new File(base.cacheDir, name).getPath();
+        this.makePublic = base.makePublic;
+        this.batch = null;
+        this.batchThreads = 1;
+        this.batchReport = null;
+        this.snapshotDir = new File(dir, Conventions.CLYZE_SNAPSHOT_DIR);
+        this.daemon = false;
+        this.daemonIdleTimeout = base.daemonIdleTimeout;
+        this.environment = base.environment;
+        this.options = base.options;
+
+        this.postOptions.host = base.postOptions.host;
+        this.postOptions.owner = base.postOptions.owner;
+        this.postOptions.authToken = base.postOptions.authToken;
+        this.postOptions.project = base.postOptions.project;
+        this.postOptions.stacks = base.postOptions.stacks;
+        this.postOptions.dry = base.postOptions.dry;
+        this.currentDir = dir.getPath();
+
+        this.archiveOptions = new ArchiveOptions(base.archiveOptions);
+        this.archiveOptions.scanner = null;
+    }
+
+    private static synchronized Options getOptions() {
+        if (cachedOptions == null)
+            cachedOptions = createOptions();
+        return cachedOptions;
     }
 
     private static Options createOptions() {
@@ -144,7 +281,8 @@ public class Config {
         hostOpt.setArgName("HOST");
         opts.addOption(hostOpt);
 
-        Option portOpt = new Option(null, OPT_PORT, true, "The server port (default: "+getDefaultPort()+").");
+        // The description is set when printing the help text (see printUsage()).
+        Option portOpt = new Option(null, OPT_PORT, true, null);
         portOpt.setArgName("PORT");
         opts.addOption(portOpt);
 
@@ -191,9 +329,11 @@ public class Config {
         opts.addOption(new Option(null, "debug", false, "Enable debug mode."));
         opts.addOption(new Option(null, OPT_DRY, false, "Enable dry mode."));
         opts.addOption(new Option(null, OPT_DEP_SOURCES, false, "Include sources from dependencies."));
+        opts.addOption(new Option(null, OPT_BUNDLE_LIBRARIES, false, "Merge all libraries into a single archive before posting."));
         opts.addOption(null, OPT_PUBLIC, false, "If a new project is created, make it public.");
 
-        Option buildToolOpt = new Option("b", OPT_BUILD_TOOL, true, "The build tool to use. Valid values: " + BuildTool.validValues());
+        // The description is set when printing the help text (see printUsage()).
+        Option buildToolOpt = new Option("b", OPT_BUILD_TOOL, true, null);
         buildToolOpt.setArgName("TOOL");
         opts.addOption(buildToolOpt);
 
@@ -205,6 +345,43 @@ public class Config {
         dirOpt.setArgName("DIR");
         opts.addOption(dirOpt);
 
+        Option archiveThreadsOpt = new Option(null, OPT_ARCHIVE_THREADS, true, "The number of threads to use for creating archives (default: number of processors).");
+        archiveThreadsOpt.setArgName("N");
+        opts.addOption(archiveThreadsOpt);
+
+        opts.addOption(null, OPT_FULL_ARCHIVES, false, "Always recreate the sources archives of the snapshot from scratch, instead of reusing the unchanged entries of the archives of the previous run.");
+
+        Option compressionOpt = new Option(null, OPT_COMPRESSION, true, "The archive compression policy. Valid values: " + CompressionPolicy.presetNames() + ". Default: " + CompressionPolicy.DEFAULT.getName());
+        compressionOpt.setArgName("POLICY");
+        opts.addOption(compressionOpt);
+
+        opts.addOption(null, OPT_REPRODUCIBLE_ARCHIVES, false, "Create reproducible archives (sorted entries, fixed timestamps).");
+
+        opts.addOption(null, OPT_NO_RESOLUTION_CACHE, false, "Always resolve dependencies, instead of reusing the results of previous runs when no build file has changed.");
+
+        opts.addOption(null, OPT_MERGE_CONFIGURATIONS, false, "Post a single merged configuration, without duplicate rules, instead of the individual configuration files.");
+
+        opts.addOption(null, OPT_COMPACT_METADATA, false, "(Buck) Post the JSON metadata in a compact binary form instead of a ZIP archive.");
+
+        Option batchOpt = new Option(null, OPT_BATCH, true, "Batch mode: process a project directory, or the projects listed in a manifest file (one directory per line, optionally followed by --project/--stack overrides). Can be given many times. The exit code is non-zero if some project failed.");
+        batchOpt.setArgName("DIR|FILE");
+        opts.addOption(batchOpt);
+
+        Option batchThreadsOpt = new Option(null, OPT_BATCH_THREADS, true, "The number of projects to process at the same time in batch mode (default: 4, or the number of processors if less).");
+        batchThreadsOpt.setArgName("N");
+        opts.addOption(batchThreadsOpt);
+
+        Option batchReportOpt = new Option(null, OPT_BATCH_REPORT, true, "The file to write the JSON summary of batch mode to.");
+        batchReportOpt.setArgName("FILE");
+        opts.addOption(batchReportOpt);
+
+        opts.addOption(null, OPT_DAEMON, false, "Run as a daemon that keeps the repository indexes and parsed POMs in memory and serves the runs of --" + OPT_USE_DAEMON + " clients.");
+        opts.addOption(null, OPT_USE_DAEMON, false, "Run through the daemon (starting it if it is not running), falling back to a normal run if it cannot be reached.");
+
+        Option idleTimeoutOpt = new Option(null, OPT_DAEMON_IDLE_TIMEOUT, true, "The time (in minutes) after which an idle daemon exits (default: " + DEFAULT_DAEMON_IDLE_TIMEOUT + ").");
+        idleTimeoutOpt.setArgName("MINUTES");
+        opts.addOption(idleTimeoutOpt);
+
         return opts;
     }
 
@@ -212,10 +389,37 @@ public class Config {
         return cmd.hasOption(id) ? cmd.getOptionValue(id) : defaultValue;
     }
 
+    private static int intOptValOrDefault(CommandLine cmd, String id, int defaultValue) throws ParseException {
+        if (!cmd.hasOption(id))
+            return defaultValue;
+        String val = cmd.getOptionValue(id);
+        try {
+            return Integer.parseInt(val);
+        } catch (NumberFormatException ex) {
+            throw new ParseException("Option --" + id + " expects a number, found: " + val);
+        }
+    }
+
     private static List<String> optValsOrDefault(CommandLine cmd, String id, List<String> defaultVal) {
         return cmd.hasOption(id) ? Arrays.asList(cmd.getOptionValues(id)) : defaultVal;
     }
 
+    /** Resolves a (possibly relative) path against a working directory. */
+    private static String resolve(File workingDir, String path) {
+        if (workingDir == null || path == null || new File(path).isAbsolute())
+            return path;
+        return new File(workingDir, path).getPath();
+    }
+
+    private static List<String> resolve(File workingDir, List<String> paths) {
+        if (workingDir == null || paths == null)
+            return paths;
+        List<String> resolved = new ArrayList<>(paths.size());
+        for (String path : paths)
+            resolved.add(resolve(workingDir, path));
+        return resolved;
+    }
+
     private static String getDefaultPort() {
         String port = Settings.getDefaultPort();
         if (port != null)
@@ -223,7 +427,14 @@ public class Config {
         return Conventions.DEFAULT_PORT;
     }
 
+    /**
+     * Prints the help text. The defaults that need the installation
+     * settings or the build tools are only computed here, so that other
+     * runs do not read the settings or load all build tools at startup.
+     */
     public void printUsage() {
+        options.getOption(OPT_PORT).setDescription("The server port (default: " + getDefaultPort() + ").");
+        options.getOption(OPT_BUILD_TOOL).setDescription("The build tool to use. Valid values: " + BuildTool.validValues());
         HelpFormatter formatter = new HelpFormatter();
         formatter.setWidth(100);
         formatter.printHelp("clyze-cli [OPTION]...", options);
@@ -237,6 +448,42 @@ public class Config {
         return this.postOptions;
     }
 
+    /**
+     * Returns the options that control the creation of archives.
+     * @return   an options object
+     */
+    public ArchiveOptions getArchiveOptions() {
+        return this.archiveOptions;
+    }
+
+    /**
+     * Returns the scanner that walks directories during this run. All
+     * steps of a run share the directory listings. The scanner is created
+     * on first use, so runs that do not walk directories do not start it.
+     * @return   the scanner shared by all steps of the run
+     */
+    public synchronized FileScanner getFileScanner() {
+        if (this.archiveOptions.scanner == null)
+            this.archiveOptions.scanner = new FileScanner(this.archiveOptions.getThreadCount());
+        return this.archiveOptions.scanner;
+    }
+
+    /**
+     * Stops the threads of the scanner of this run, if it was created.
+     */
+    synchronized void close() {
+        if (this.archiveOptions.scanner != null)
+            this.archiveOptions.scanner.close();
+    }
+
+    /**
+     * Returns the directory where the snapshot is assembled.
+     * @return   the snapshot directory
+     */
+    public File getSnapshotDir() {
+        return this.snapshotDir;
+    }
+
     public String getPlatform() {
         return this.platform;
     }
@@ -245,10 +492,34 @@ public class Config {
         return this.includeDepSources;
     }
 
+    public boolean isBundleLibraries() {
+        return this.bundleLibraries;
+    }
+
+    public boolean isCompactMetadata() {
+        return this.compactMetadata;
+    }
+
+    public boolean isIncrementalArchives() {
+        return this.incrementalArchives;
+    }
+
+    public boolean usesResolutionCache() {
+        return this.resolutionCache;
+    }
+
     public boolean isDebug() {
         return this.debug;
     }
 
+    /**
+     * Returns the environment of the processes started by this run.
+     * @return   the environment, or null to use the environment of this process
+     */
+    public Map<String, String> getEnvironment() {
+        return this.environment;
+    }
+
     public List<String> getCodeFiles() {
         return this.codeFiles;
     }
@@ -0,0 +1,226 @@
+package com.clyze.build.tools.cli;
+
+import com.clyze.build.tools.IndexFile;
+import com.clyze.build.tools.Settings;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static com.clyze.build.tools.cli.Util.logError;
+import static com.clyze.build.tools.cli.Util.println;
+
+/**
+ * Daemon mode: a long-running process that serves the runs of clients
+ * (see {@link DaemonClient}), so that they do not pay for starting the
+ * JVM and so that the state kept in memory by the tools (the indexes of
+ * the local repositories and the parsed POMs) is reused across runs.
+ *
+ * The daemon listens on a loopback socket. Its port is published in a
+ * state file in the user cache directory, together with a random token
+ * that clients must present, so that only the user that started the
+ * daemon can use it. Runs are served one at a time: the output of a run
+ * is sent back to its client, followed by its exit code. Clients also
+ * send their environment, which is given to the processes started by
+ * their runs (such as Gradle). The daemon exits when it has been idle
+ * for the given timeout.
+ */
+class Daemon {
+    /** A frame with bytes written to standard output. */
+    static final int FRAME_OUT = 1;
+    /** A frame with bytes written to standard error. */
+    static final int FRAME_ERR = 2;
+    /** The last frame of a run, with its exit code. */
+    static final int FRAME_EXIT = 3;
+
+    static final String PROP_PORT = "port";
+    static final String PROP_TOKEN = "token";
+    static final String PROP_PID = "pid";
+    static final String PROP_CLASSPATH = "classpath";
+
+    /** The time (in ms) a client has to send its request after connecting. */
+    private static final int REQUEST_TIMEOUT = 10_000;
+
+    private final Config config;
+    private final File stateFile;
+    private final String token;
+
+    Daemon(Config config) {
+        this.config = config;
+        this.stateFile = getStateFile();
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        this.token = IndexFile.hex(bytes, bytes.length);
+    }
+
+    /**
+     * Returns the file where the running daemon publishes its port and token.
+     *
+     * @return the state file
+     */
+    static File getStateFile() {
+        return new File(new File(Settings.getUserCacheDir(), "daemon"), "daemon.properties");
+    }
+
+    /**
+     * Serves clients until the daemon has been idle for its timeout.
+     *
+     * @throws IOException if the daemon could not be started
+     */
+    void serve() throws IOException {
+        int idleMillis = (int) Math.min(Integer.MAX_VALUE, Math.max(1, config.daemonIdleTimeout) * 60_000L);
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(idleMillis);
+            writeState(server.getLocalPort());
+            println("Daemon listening on port " + server.getLocalPort() + " (idle timeout: " + config.daemonIdleTimeout + " min).");
+            try {
+                while (true) {
+                    Socket socket;
+                    try {
+                        socket = server.accept();
+                    } catch (SocketTimeoutException ex) {
+                        println("Daemon idle for " + config.daemonIdleTimeout + " min, exiting.");
+                        return;
+                    }
+                    try {
+                        serve(socket);
+                    } catch (IOException ex) {
+                        logError("WARNING: daemon request failed: " + ex.getMessage());
+                    } finally {
+                        socket.close();
+                    }
+                }
+            } finally {
+                deleteState();
+            }
+        }
+    }
+
+    /** Serves the run of a client. */
+    private void serve(Socket socket) throws IOException {
+        socket.setSoTimeout(REQUEST_TIMEOUT);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        if (!MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), in.readUTF().getBytes(StandardCharsets.UTF_8)))
+            throw new IOException("client sent an invalid token");
+        File workingDir = new File(in.readUTF());
+        String encoding = in.readUTF();
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++)
+            args[i] = in.readUTF();
+        Map<String, String> environment = new HashMap<>();
+        for (int i = in.readInt(); i > 0; i--)
+            environment.put(in.readUTF(), in.readUTF());
+        socket.setSoTimeout(0);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        int exitCode;
+        try (PrintStream clientOut = new PrintStream(new FrameOutputStream(out, FRAME_OUT), true, encoding);
+             PrintStream clientErr = new PrintStream(new FrameOutputStream(out, FRAME_ERR), true, encoding)) {
+            stdout.println("Serving run in " + workingDir);
+            System.setOut(clientOut);
+            System.setErr(clientErr);
+            try {
+                exitCode = Main.run(args, workingDir, environment);
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+                exitCode = 1;
+            } finally {
+                System.setOut(stdout);
+                System.setErr(stderr);
+            }
+        }
+        synchronized (out) {
+            out.writeByte(FRAME_EXIT);
+            out.writeInt(exitCode);
+            out.flush();
+        }
+    }
+
+    /**
+     * Publishes the port and the token of the daemon. The state file is
+     * only readable by its owner (where the filesystem supports it) and
+     * is written next to its final location and then moved, so that
+     * clients never see a partial file.
+     */
+    private void writeState(int port) throws IOException {
+        Properties props = new Properties();
+        props.setProperty(PROP_PORT, String.valueOf(port));
+        props.setProperty(PROP_TOKEN, token);
+        props.setProperty(PROP_PID, ManagementFactory.getRuntimeMXBean().getName());
+        props.setProperty(PROP_CLASSPATH, System.getProperty("java.class.path", ""));
+        Path parent = stateFile.getParentFile().toPath();
+        Files.createDirectories(parent);
+        Path tmp;
+        try {
+            tmp = Files.createTempFile(parent, stateFile.getName(), ".tmp",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException ex) {
+            tmp = Files.createTempFile(parent, stateFile.getName(), ".tmp");
+        }
+        try {
+            try (OutputStream os = Files.newOutputStream(tmp)) {
+                props.store(os, "clyze-cli daemon");
+            }
+            Files.move(tmp, stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /** Deletes the state file, unless another daemon has replaced it. */
+    private void deleteState() {
+        Properties props = DaemonClient.readState(stateFile);
+        if (props != null && token.equals(props.getProperty(PROP_TOKEN)))
+            if (!stateFile.delete())
+                logError("WARNING: could not delete daemon state file " + stateFile);
+    }
+
+    /** An output stream that sends the bytes written to it as frames of one type. */
+    private static final class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final int type;
+
+        FrameOutputStream(DataOutputStream out, int type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return;
+            synchronized (out) {
+                out.writeByte(type);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The socket is closed by the daemon, after the exit frame.
+            flush();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.clyze.build.tools.cli;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static com.clyze.build.tools.cli.Util.logDebug;
+import static com.clyze.build.tools.cli.Util.logError;
+
+/**
+ * The client side of daemon mode (see {@link Daemon}): forwards a run to
+ * the daemon and prints its output. If no daemon is running (or the
+ * running daemon comes from another installation), a new daemon is
+ * started in the background.
+ */
+class DaemonClient {
+    /** The time (in ms) to wait for a new daemon to start. */
+    private static final long START_TIMEOUT = 20_000;
+    private static final int CONNECT_TIMEOUT = 2_000;
+
+    /**
+     * Runs a command line through the daemon.
+     *
+     * @param args   the command-line arguments (the --use-daemon option is not forwarded)
+     * @return       the exit code of the run, or null if the daemon could not
+     *               be used (and the run should happen in this process)
+     */
+    static Integer run(String[] args) {
+        List<String> forwarded = new ArrayList<>();
+        List<String> daemonArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--" + Config.OPT_USE_DAEMON))
+                continue;
+            forwarded.add(arg);
+            // The idle timeout is also given to a daemon started by this client.
+            if (arg.equals("--" + Config.OPT_DAEMON_IDLE_TIMEOUT) && i + 1 < args.length) {
+                daemonArgs.add(arg);
+                daemonArgs.add(args[i + 1]);
+            }
+        }
+        File stateFile = Daemon.getStateFile();
+        Properties state = readUsableState(stateFile);
+        Socket socket = state == null ? null : connect(state);
+        try {
+            if (socket == null) {
+                state = startDaemon(stateFile, state, daemonArgs);
+                socket = connect(state);
+                if (socket == null)
+                    throw new IOException("could not connect to the daemon");
+            }
+            try (Socket s = socket) {
+                return forward(s, state, forwarded);
+            }
+        } catch (IOException ex) {
+            logError("WARNING: could not use the daemon, running in this process: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /** Sends a run to the daemon and prints its output, until its exit code. */
+    private static int forward(Socket socket, Properties state, List<String> args) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeUTF(state.getProperty(Daemon.PROP_TOKEN));
+        out.writeUTF(new File("").getAbsolutePath());
+        out.writeUTF(Charset.defaultCharset().name());
+        out.writeInt(args.size());
+        for (String arg : args)
+            out.writeUTF(arg);
+        Map<String, String> environment = System.getenv();
+        out.writeInt(environment.size());
+        for (Map.Entry<String, String> entry : environment.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+        out.flush();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        byte[] buf = new byte[8192];
+        while (true) {
+            int type;
+            try {
+                type = in.readUnsignedByte();
+            } catch (EOFException ex) {
+                // The run may have already started, so it is not run again here.
+                logError("ERROR: the daemon closed the connection before the end of the run.");
+                return 1;
+            }
+            if (type == Daemon.FRAME_EXIT) {
+                System.out.flush();
+                return in.readInt();
+            }
+            PrintStream target = type == Daemon.FRAME_ERR ? System.err : System.out;
+            int len = in.readInt();
+            while (len > 0) {
+                int n = in.read(buf, 0, Math.min(len, buf.length));
+                if (n < 0)
+                    throw new EOFException("truncated output from the daemon");
+                target.write(buf, 0, n);
+                len -= n;
+            }
+            target.flush();
+        }
+    }
+
+    private static Socket connect(Properties state) {
+        try {
+            int port = Integer.parseInt(state.getProperty(Daemon.PROP_PORT));
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT);
+            } catch (IOException ex) {
+                socket.close();
+                throw ex;
+            }
+            return socket;
+        } catch (IOException | RuntimeException ex) {
+            logDebug("Could not connect to the daemon: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Starts a daemon with the class path of this process and waits for
+     * it to publish its state.
+     *
+     * @param stateFile   the state file
+     * @param oldState    the state of an older daemon (or null)
+     * @param daemonArgs  extra arguments for the daemon
+     * @return            the state of the new daemon
+     * @throws IOException if the daemon could not be started
+     */
+    private static Properties startDaemon(File stateFile, Properties oldState, List<String> daemonArgs) throws IOException {
+        File java = new File(new File(System.getProperty("java.home"), "bin"), "java");
+        if (!java.exists())
+            java = new File(java.getPath() + ".exe");
+        List<String> cmd = new ArrayList<>();
+        cmd.add(java.getPath());
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(Main.class.getName());
+        cmd.add("--" + Config.OPT_DAEMON);
+        cmd.addAll(daemonArgs);
+        File log = new File(stateFile.getParentFile(), "daemon.log");
+        if (!log.getParentFile().mkdirs() && !log.getParentFile().isDirectory())
+            throw new IOException("could not create directory " + log.getParentFile());
+        logError("Starting daemon (log: " + log + ")...");
+        Process process = new ProcessBuilder(cmd)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(log))
+                .start();
+        process.getOutputStream().close();
+
+        String oldToken = oldState == null ? null : oldState.getProperty(Daemon.PROP_TOKEN);
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            Properties state = readUsableState(stateFile);
+            if (state != null && !state.getProperty(Daemon.PROP_TOKEN).equals(oldToken))
+                return state;
+            if (!process.isAlive())
+                throw new IOException("the daemon exited with code " + process.exitValue() + ", see " + log);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while starting the daemon");
+            }
+        }
+        throw new IOException("the daemon did not start in time, see " + log);
+    }
+
+    /**
+     * Reads the state of the running daemon, if it can serve this client
+     * (that is, it runs the same code).
+     */
+    private static Properties readUsableState(File stateFile) {
+        Properties state = readState(stateFile);
+        if (state == null || state.getProperty(Daemon.PROP_PORT) == null || state.getProperty(Daemon.PROP_TOKEN) == null)
+            return null;
+        if (!System.getProperty("java.class.path", "").equals(state.getProperty(Daemon.PROP_CLASSPATH)))
+            return null;
+        return state;
+    }
+
+    /**
+     * Reads a daemon state file.
+     *
+     * @param stateFile  the state file
+     * @return           the state, or null if the file could not be read
+     */
+    static Properties readState(File stateFile) {
+        if (!stateFile.exists())
+            return null;
+        Properties props = new Properties();
+        try (Reader reader = new InputStreamReader(new FileInputStream(stateFile), StandardCharsets.ISO_8859_1)) {
+            props.load(reader);
+            return props;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+}
@@ -5,29 +5,65 @@ import com.clyze.client.ConsolePrinter;
 import com.clyze.client.web.Helper;
 import com.clyze.client.web.PostOptions;
 import com.clyze.client.web.PostState;
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import org.apache.commons.cli.*;
 
+import static com.clyze.build.tools.cli.Util.logError;
 import static com.clyze.build.tools.cli.Util.println;
 
 public class Main {
 
     public static void main(String[] args) {
+        if (Arrays.asList(args).contains("--" + Config.OPT_USE_DAEMON)) {
+            Integer exitCode = DaemonClient.run(args);
+            if (exitCode != null)
+                System.exit(exitCode);
+        }
+        System.exit(run(args, null, null));
+    }
+
+    /**
+     * Runs the command line of a client.
+     *
+     * @param args         the command-line arguments
+     * @param workingDir   the working directory of the client (null for the
+     *                     working directory of this process)
+     * @param environment  the environment of the client (null for the
+     *                     environment of this process)
+     * @return             the exit code of the run
+     */
+    static int run(String[] args, File workingDir, Map<String, String> environment) {
+        Config config = null;
         try {
-            Config config = new Config(args);
+            config = new Config(args, workingDir, environment);
             if (config.help) {
                 config.printUsage();
-                return;
+                return 0;
             }
             String buildToolArg = config.buildTool;
             boolean debug = config.debug;
             if (debug)
                 System.out.println("Debug mode enabled.");
+            if (config.daemon) {
+                if (workingDir != null) {
+                    logError("ERROR: the daemon is already running.");
+                    return 1;
+                }
+                new Daemon(config).serve();
+                return 0;
+            }
+            if (config.batch != null) {
+                int failed = new Batch(config).run(Batch.readJobs(config.batch));
+                return failed == 0 ? 0 : 1;
+            }
             BuildTool buildTool = buildToolArg == null ? BuildTool.detect(config) : BuildTool.get(buildToolArg, config);
             if (buildTool == null) {
                 System.out.println("ERROR: could not determine build tool, use --" + Config.OPT_BUILD_TOOL);
-                return;
+                return 1;
             }
             System.out.println("Assuming build tool: " + buildTool.getName());
             PostOptions postOptions = config.postOptions;
@@ -37,12 +73,36 @@ public class Main {
                 println("Posting snapshot to the server...");
             PostState ps = createPostState(buildTool, config);
             Helper.post(ps, postOptions, config.getCacheDir(), null, new ConsolePrinter(debug), debug);
-        } catch (ParseException e) {
+            return 0;
+        } catch (ParseException | IOException e) {
             e.printStackTrace();
+            return 1;
+        } finally {
+            // The daemon runs many clients, so their threads must be stopped.
+            if (config != null)
+                config.close();
         }
     }
 
     private static PostState createPostState(BuildTool buildTool, Config config) {
+        PostState ps = initPostState(config);
+        buildTool.createSnapshotDir();
+        try {
+            buildTool.populatePostState(ps, config);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        return ps;
+    }
+
+    /**
+     * Creates the snapshot state, with the inputs that do not depend on
+     * the build tool.
+     *
+     * @param config   the configuration to use
+     * @return         the snapshot state
+     */
+    static PostState initPostState(Config config) {
         PostState ps = new PostState();
         ps.setId(Conventions.SNAPSHOT_ID);
         ps.addStringInput("API_VERSION", Conventions.API_VERSION);
@@ -60,12 +120,6 @@ public class Main {
             ps.addStringInput(Conventions.ANDROID_PLATFORM, platform != null ? platform : Config.DEFAULT_ANDROID_PLATFORM);
         } else
             System.err.println("WARNING: unsupported stacks: " + stacks);
-        buildTool.createSnapshotDir();
-        try {
-            buildTool.populatePostState(ps, config);
-        } catch (IOException ex) {
-            ex.printStackTrace();
-        }
         return ps;
     }
 }
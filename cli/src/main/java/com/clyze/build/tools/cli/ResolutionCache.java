@@ -0,0 +1,191 @@
+package com.clyze.build.tools.cli;
+
+import com.clyze.build.tools.Conventions;
+import com.clyze.build.tools.FileScanner;
+import com.clyze.build.tools.IndexFile;
+import com.clyze.build.tools.Settings;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.function.Predicate;
+
+import static com.clyze.build.tools.cli.Util.logError;
+
+/**
+ * A cache of dependency resolution results. A result is stored in the
+ * user cache directory under a fingerprint of the build files of the
+ * project (such as build.gradle or pom.xml files and lockfiles) and of
+ * the inputs of the resolver, so it is only reused while none of them
+ * changes. Reused results are also checked against the filesystem: all
+ * files that they mention must still exist with the same size, and the
+ * files outside the project that the resolver read (such as parent
+ * POMs and imported BOMs in the local repository, which may be
+ * replaced by newer snapshots) must also have the same timestamp. Only
+ * the latest result of each project is kept.
+ */
+public final class ResolutionCache {
+    private static final int VERSION = 3;
+    /** Directories that contain build outputs or tool state, not build files. */
+    private static final Set<String> IGNORED_DIRS = new HashSet<>(Arrays.asList("build", "target", "out", "node_modules", Conventions.CLYZE_SNAPSHOT_DIR));
+
+    /** The result of resolving the dependencies of a project. */
+    public static class Resolution {
+        /** The library archives. */
+        public final List<String> libraries = new ArrayList<>();
+        /** The source archives of the libraries. */
+        public final List<String> sources = new ArrayList<>();
+        /** The modules (subprojects) of the build, mapped to their directories. */
+        public final Map<String, String> projects = new LinkedHashMap<>();
+        /** The files outside the project that the resolution depends on. */
+        public final List<String> inputs = new ArrayList<>();
+    }
+
+    /** The contents of a cache file. */
+    private static class Stored {
+        int version;
+        Resolution resolution;
+        /** The sizes of the files of the resolution. */
+        Map<String, Long> sizes;
+        /** The modification times of the inputs of the resolution. */
+        Map<String, Long> modified;
+    }
+
+    private final File file;
+    private final String projectKey;
+
+    private ResolutionCache(File file, String projectKey) {
+        this.file = file;
+        this.projectKey = projectKey;
+    }
+
+    /**
+     * Opens the cache entry of the current state of a project.
+     *
+     * @param tool          the name of the build tool
+     * @param projectDir    the project directory
+     * @param scanner       the scanner to walk directories with
+     * @param isBuildFile   returns true for the names of the build files
+     * @param inputs        other inputs of the resolution (such as options)
+     * @return              the cache entry, or null if the project could not be fingerprinted
+     */
+    public static ResolutionCache open(String tool, File projectDir, FileScanner scanner,
+                                       Predicate<String> isBuildFile, String... inputs) {
+        try {
+            String dirPath = scanner.getCanonicalPath(projectDir);
+            // Sort the build files, so that the fingerprint does not depend on the walk.
+            SortedMap<String, File> buildFiles = new TreeMap<>();
+            // Output and hidden directories are pruned from the walk, since
+            // they may be large (.git, node_modules) and hold no build files.
+            scanner.scan(projectDir, f -> isBuildFile.test(f.getName()), (String name, File f) -> {
+                buildFiles.put(name, f);
+                return true;
+            }, ResolutionCache::isIgnored);
+            MessageDigest md = IndexFile.sha256();
+            update(md, String.valueOf(VERSION));
+            update(md, tool);
+            for (String input : inputs)
+                update(md, String.valueOf(input));
+            for (Map.Entry<String, File> entry : buildFiles.entrySet()) {
+                update(md, entry.getKey());
+                md.update(Files.readAllBytes(entry.getValue().toPath()));
+                update(md, "");
+            }
+            String projectKey = tool + "-" + IndexFile.key(dirPath);
+            File file = new File(new File(Settings.getUserCacheDir(), "resolution"), projectKey + "-" + IndexFile.hex(md.digest(), 12) + ".json");
+            return new ResolutionCache(file, projectKey);
+        } catch (IOException ex) {
+            logError("WARNING: could not fingerprint build files: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the cached resolution, if it is still valid.
+     *
+     * @return the resolution, or null if there is no valid resolution
+     */
+    public Resolution load() {
+        if (!file.exists())
+            return null;
+        Stored stored;
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            stored = new Gson().fromJson(reader, Stored.class);
+        } catch (IOException | JsonParseException ex) {
+            logError("WARNING: could not read cached dependencies " + file + ": " + ex.getMessage());
+            return null;
+        }
+        if (stored == null || stored.version != VERSION || stored.resolution == null || stored.sizes == null || stored.modified == null)
+            return null;
+        for (Map.Entry<String, Long> entry : stored.sizes.entrySet()) {
+            File f = new File(entry.getKey());
+            if (!f.isFile() || f.length() != entry.getValue()) {
+                System.out.println("Cached dependency has changed, resolving again: " + f);
+                return null;
+            }
+        }
+        for (Map.Entry<String, Long> entry : stored.modified.entrySet()) {
+            File f = new File(entry.getKey());
+            if (f.lastModified() != entry.getValue()) {
+                System.out.println("Cached dependency has changed, resolving again: " + f);
+                return null;
+            }
+        }
+        return stored.resolution;
+    }
+
+    /**
+     * Stores a resolution, replacing the older resolutions of the project.
+     *
+     * @param resolution   the resolution to store
+     */
+    public void save(Resolution resolution) {
+        Stored stored = new Stored();
+        stored.version = VERSION;
+        stored.resolution = resolution;
+        stored.sizes = new LinkedHashMap<>();
+        for (String path : resolution.libraries)
+            stored.sizes.put(path, new File(path).length());
+        for (String path : resolution.sources)
+            stored.sizes.put(path, new File(path).length());
+        stored.modified = new LinkedHashMap<>();
+        for (String path : resolution.inputs) {
+            stored.sizes.put(path, new File(path).length());
+            stored.modified.put(path, new File(path).lastModified());
+        }
+        try {
+            File parent = file.getParentFile();
+            Files.createDirectories(parent.toPath());
+            File[] older = parent.listFiles(f -> f.getName().startsWith(projectKey + "-") && !f.equals(file));
+            if (older != null)
+                for (File f : older)
+                    Files.deleteIfExists(f.toPath());
+            IndexFile.replace(file, out -> out.write(new Gson().toJson(stored).getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException ex) {
+            logError("WARNING: could not cache dependencies in " + file + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Returns the file that holds the cached resolution.
+     *
+     * @return the cache file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /** Checks if a directory holds build outputs, tool state or hidden files. */
+    private static boolean isIgnored(Path dir) {
+        String name = dir.getFileName().toString();
+        return IGNORED_DIRS.contains(name) || (name.startsWith(".") && !name.equals(".mvn"));
+    }
+
+    private static void update(MessageDigest md, String s) {
+        md.update(s.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+    }
+}
@@ -1,6 +1,13 @@
 package com.clyze.build.tools.cli;
 
 import com.clyze.build.tools.Conventions;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.function.Consumer;
+import org.clyze.utils.OS;
 
 public class Util {
     // Set to true for extra debug messages.
@@ -18,4 +25,71 @@ public class Util {
     public static void logError(String s) {
         System.err.println(Conventions.msg(s));
     }
+
+    /**
+     * Runs a command and passes each line of its output to a consumer.
+     *
+     * @param cmd          the command line
+     * @param environment  the environment of the command (null for the
+     *                     environment of this process)
+     * @param proc         the consumer of the output lines
+     * @return             the exit code of the command
+     * @throws IOException if the command could not be run
+     */
+    public static int runWithOutput(String[] cmd, Map<String, String> environment, Consumer<String> proc) throws IOException {
+        ProcessBuilder pb;
+        if (environment == null)
+            pb = new ProcessBuilder(cmd);
+        else {
+            String[] command = cmd.clone();
+            // Variable names are not case-sensitive on Windows.
+            String path = null;
+            for (Map.Entry<String, String> entry : environment.entrySet())
+                if (OS.win ? entry.getKey().equalsIgnoreCase("PATH") : entry.getKey().equals("PATH"))
+                    path = entry.getValue();
+            command[0] = findExecutable(command[0], path);
+            pb = new ProcessBuilder(command);
+            pb.environment().clear();
+            pb.environment().putAll(environment);
+        }
+        Process process = pb.redirectErrorStream(true).start();
+        process.getOutputStream().close();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null)
+                proc.accept(line);
+        }
+        try {
+            int exitCode = process.waitFor();
+            if (exitCode != 0)
+                logError("WARNING: command exited with code " + exitCode + ": " + String.join(" ", cmd));
+            return exitCode;
+        } catch (InterruptedException ex) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while running: " + String.join(" ", cmd));
+        }
+    }
+
+    /**
+     * Looks up a command in a search path. Processes are started with the
+     * search path of this process, so commands given by name must be
+     * looked up when they run in another environment.
+     *
+     * @param name   the command
+     * @param path   the search path (may be null)
+     * @return       the path of the command, or its name if it was not found
+     */
+    private static String findExecutable(String name, String path) {
+        if (path == null || name.indexOf('/') >= 0 || name.indexOf(File.separatorChar) >= 0)
+            return name;
+        String[] extensions = OS.win ? new String[] { ".exe", ".bat", ".cmd" } : new String[] { "" };
+        for (String dir : path.split(File.pathSeparator))
+            for (String ext : extensions) {
+                File f = new File(dir, name + ext);
+                if (f.isFile() && f.canExecute())
+                    return f.getPath();
+            }
+        return name;
+    }
 }
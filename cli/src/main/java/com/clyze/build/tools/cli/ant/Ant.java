@@ -22,7 +22,7 @@ public class Ant extends BuildTool {
     @Override
     public void populatePostState(PostState ps, Config config) throws IOException {
         String currentDirPath = currentDir.getCanonicalPath();
-        gatherCodeFromTargetDir(ps, currentDirPath, true);
-        gatherSourcesFromSrcDir(ps);
+        gatherCodeFromTargetDir(ps::addFileInput, currentDirPath, true);
+        gatherSourcesFromSrcDir(ps::addFileInput);
     }
 }
@@ -2,21 +2,18 @@ package com.clyze.build.tools.cli.buck;
 
 import com.clyze.build.tools.Archiver;
 import com.clyze.build.tools.Conventions;
+import com.clyze.build.tools.MetadataCodec;
 import com.clyze.build.tools.cli.BuildTool;
 import com.clyze.build.tools.cli.Config;
 import com.clyze.build.tools.cli.Util;
 import com.clyze.client.Printer;
 import com.clyze.client.web.PostState;
-import com.google.gson.Gson;
 import java.io.*;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.*;
 
 import static com.clyze.build.tools.cli.Util.*;
 
@@ -25,8 +22,12 @@ import static com.clyze.build.tools.cli.Util.*;
  */
 public class Buck extends BuildTool {
 
+    /** If true, the JSON metadata are posted in compact form. */
+    private final boolean compactMetadata;
+
     public Buck(File currentDir, Config config) {
         super(currentDir, config);
+        this.compactMetadata = config.isCompactMetadata();
     }
 
     @Override
@@ -39,27 +40,32 @@ public class Buck extends BuildTool {
         List<String> codeFiles = config.getCodeFiles();
         if (codeFiles != null && codeFiles.size() > 0) {
             println("Code files: " + codeFiles);
-            if (codeFiles.size() > 1) {
-                logError("More than one code files given, this is not supported yet.");
-                return;
-            }
         } else {
             logError("Error: No code was given.");
             config.printUsage();
             return;
         }
 
-        Collection<SourceFile> sourceFiles = Sources.getSources(config.getSourceDirs(), config.isAutodetectSources());
+        println("Using snapshot directory: " + snapshotDir);
+        boolean mk = snapshotDir.mkdirs();
+        logDebug("Directory " + snapshotDir + " created: " + mk);
 
-        println("Using snapshot directory: " + Conventions.CLYZE_SNAPSHOT_DIR);
-        boolean mk = new File(Conventions.CLYZE_SNAPSHOT_DIR).mkdirs();
-        logDebug("Directory " + Conventions.CLYZE_SNAPSHOT_DIR + " created: " + mk);
+        // The code files are staged while the sources and the metadata
+        // (which are shared by all code files) are gathered.
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(codeFiles.size(), archiveOptions.getThreadCount()));
+        List<Future<String>> buildApks = new ArrayList<>();
+        try {
+            getStagedNames(codeFiles).forEach((String code, String name) -> buildApks.add(pool.submit(() -> gatherApk(code, name))));
+        } finally {
+            pool.shutdown();
+        }
 
-        String buildApk = gatherApk(codeFiles.get(0));
+        Map<String, File> sourceFiles = Sources.getSources(config.getSourceDirs(), config.isAutodetectSources(), currentDir,
+                config.getFileScanner(), config.getArchiveOptions().getThreadCount());
 
-        File sourcesJar = new File(Conventions.CLYZE_SNAPSHOT_DIR, Conventions.SOURCES_FILE);
+        File sourcesJar = new File(snapshotDir, Conventions.SOURCES_FILE);
         Collection<File> sourceJars = new HashSet<>();
-        Sources.packSources(sourceFiles, sourcesJar);
+        Sources.packSources(sourceFiles, sourcesJar, getArchiveOptionsFor(sourcesJar));
         sourceJars.add(sourcesJar);
 
         BuildMetadataConf bmc = null;
@@ -80,7 +86,19 @@ public class Buck extends BuildTool {
             ex.printStackTrace();
         }
 
-        ps.addFileInput(Conventions.BINARY_INPUT_TAG, buildApk);
+        for (Future<String> buildApk : buildApks) {
+            String apk;
+            try {
+                apk = buildApk.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while copying code files");
+            } catch (ExecutionException ex) {
+                throw new IOException(ex.getCause());
+            }
+            if (apk != null)
+                ps.addFileInput(Conventions.BINARY_INPUT_TAG, apk);
+        }
         sourceJars.forEach (sj -> addSourceJar(ps, sj));
         if (bmc != null) {
             ps.addFileInput("JCPLUGIN_METADATA", bmc.metadata);
@@ -97,14 +115,38 @@ public class Buck extends BuildTool {
         ps.addStringInput(Conventions.JVM_PLATFORM, Conventions.getR8AndroidPlatform("25"));
     }
 
+    /**
+     * Returns the names of the code archives in the snapshot directory.
+     * Archives with the same name (such as the outputs of different
+     * targets) are renamed, so that they do not overwrite each other.
+     *
+     * @param codeFiles   the paths to the code archives
+     * @return            the name of each code archive, by path
+     */
+    private static Map<String, String> getStagedNames(List<String> codeFiles) {
+        Map<String, String> names = new LinkedHashMap<>();
+        Set<String> used = new HashSet<>();
+        int index = 0;
+        for (String code : codeFiles) {
+            if (names.containsKey(code))
+                continue;
+            String name = new File(code).getName();
+            while (!used.add(name))
+                name = (++index) + "-" + new File(code).getName();
+            names.put(code, name);
+        }
+        return names;
+    }
+
     /**
      * Copies the code archive to the snapshot directory.
      *
      * @param code the path to the code archive
+     * @param name the name of the code in the snapshot directory
      * @return     the path of the code inside the snapshot directory (null on failure)
      */
-    private static String gatherApk(String code) {
-        File target = new File(Conventions.CLYZE_SNAPSHOT_DIR, new File(code).getName());
+    private String gatherApk(String code, String name) {
+        File target = new File(snapshotDir, name);
         try {
             Files.copy(Paths.get(code), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
             return target.getCanonicalPath();
@@ -115,75 +157,82 @@ public class Buck extends BuildTool {
         return null;
     }
 
-    private static File getConfigurationsFile() {
-        return new File(Conventions.CLYZE_SNAPSHOT_DIR, Conventions.CONFIGURATIONS_FILE);
+    private File getConfigurationsFile() {
+        return new File(snapshotDir, Conventions.CONFIGURATIONS_FILE);
     }
 
     /**
      * Read the Buck trace file to gather code metadata and configurations.
+     * The rule files of all optimizer invocations of the trace are
+     * packaged together in a single configurations archive.
      *
      * @param traceFile   the Buck trace file to read
      * @param jsonDir     the JSON metadata output directory (for the metadata generator)
      * @param proguard    the optimizer binary used (null to skip configuration autodetection)
      */
-    private static BuildMetadataConf gatherMetadataAndConfigurations(String traceFile, String jsonDir, String proguard) throws IOException {
-        println("Gathering metadata and configurations using trace file '" + traceFile +"'...");
-
+    private BuildMetadataConf gatherMetadataAndConfigurations(String traceFile, String jsonDir, String proguard) throws IOException {
         File configurationsFile = getConfigurationsFile();
-        @SuppressWarnings("unchecked") Map<String, Object>[] json = (new Gson()).fromJson(new InputStreamReader(new FileInputStream(traceFile)), Map[].class);
-        for (Map<String, Object> map : json) {
-            Object argsEntry = map.get("args");
-            if (argsEntry instanceof Map) {
-                @SuppressWarnings("unchecked") Object descEntry = ((Map<String, Object>)argsEntry).get("description");
-                if (descEntry != null) {
-                    String desc = descEntry.toString();
-                    if (proguard != null && desc.contains("java ") &&
-                            desc.contains("-jar") && desc.contains(proguard))
-                        processProguardInvocation(desc, configurationsFile);
+        if (proguard != null) {
+            println("Gathering configurations using trace file '" + traceFile +"'...");
+            // Rule files shared by many invocations are only added once.
+            Set<File> rulesFiles = new LinkedHashSet<>();
+            int[] invocations = { 0 };
+            long events = TraceScanner.scan(new File(traceFile), (String desc) -> {
+                if (desc.contains("java ") && desc.contains("-jar") && desc.contains(proguard)) {
+                    invocations[0]++;
+                    rulesFiles.addAll(processProguardInvocation(desc));
                 }
-            }
+            });
+            println("Read " + events + " trace events, found " + invocations[0] + " optimizer invocations.");
+            if (invocations[0] > 0)
+                zipConfigurations(new ArrayList<>(rulesFiles), configurationsFile);
         }
 
-        String metadataFile = new File(Conventions.CLYZE_SNAPSHOT_DIR, Conventions.METADATA_FILE).getCanonicalPath();
-        println("Adding JSON metadata to file: " + metadataFile);
+        Map<String, File> jsonFiles = new LinkedHashMap<>();
+        archiveOptions.scanner.scan(new File(jsonDir), null, (String name, File f) -> {
+            if (jsonFiles.putIfAbsent(f.getName(), f) != null)
+                logError("WARNING: ignoring duplicate metadata file: " + f);
+            return true;
+        });
 
-        try (FileOutputStream fos = new FileOutputStream(metadataFile);
-             ZipOutputStream metadataZip = new ZipOutputStream(fos)) {
-
-            List<File> jsonFiles = Files.walk(Paths.get(jsonDir)).filter(Files::isRegularFile).map(Path::toFile).collect(Collectors.toList());
-            for (File jsonFile : jsonFiles) {
-                FileInputStream fis = new FileInputStream(jsonFile);
-                metadataZip.putNextEntry(new ZipEntry(jsonFile.getName()));
-                byte[] bytes = new byte[1024];
-                int length;
-                while((length = fis.read(bytes)) >= 0)
-                    metadataZip.write(bytes, 0, length);
-                fis.close();
+        if (compactMetadata) {
+            File compactFile = new File(snapshotDir, Conventions.COMPACT_METADATA_FILE);
+            println("Adding compact JSON metadata to file: " + compactFile.getCanonicalPath());
+            try {
+                MetadataCodec.encode(jsonFiles, compactFile, archiveOptions);
+                return new BuildMetadataConf(compactFile.getCanonicalPath(), configurationsFile);
+            } catch (IOException ex) {
+                logError("WARNING: could not create compact metadata, using an archive instead: " + ex.getMessage());
             }
         }
 
+        String metadataFile = new File(snapshotDir, Conventions.METADATA_FILE).getCanonicalPath();
+        println("Adding JSON metadata to file: " + metadataFile);
+        if (Archiver.zipFiles(jsonFiles, new File(metadataFile), archiveOptions))
+            logError("Some metadata files could not be added to: " + metadataFile);
+
         return new BuildMetadataConf(metadataFile, configurationsFile);
     }
 
     /**
      * Process a ProGuard invocation from a trace file, to detect rule files.
      *
-     * @param desc                the contents of the JSON 'desc' value
-     * @param configurationsFile  the output file to hold configurations
+     * @param desc   the contents of the JSON 'desc' value
+     * @return       the rule files included by the invocation
      */
-    private static void processProguardInvocation(String desc, File configurationsFile) {
+    private List<File> processProguardInvocation(String desc) {
+        List<File> entries = new LinkedList<>();
         int atIndex = desc.indexOf('@');
         if (atIndex == -1) {
             logError("ERROR: could not find arguments file of proguard command: " + desc);
-            return;
+            return entries;
         }
-        int endIndex = desc.indexOf(')');
+        int endIndex = desc.indexOf(')', atIndex);
         if (endIndex == -1)
-            endIndex = desc.indexOf(' ');
+            endIndex = desc.indexOf(' ', atIndex);
         String argsFile = endIndex == -1 ? desc.substring(atIndex+1) : desc.substring(atIndex+1, endIndex);
         println("Reading proguard args from file: " + argsFile);
 
-        List<File> entries = new LinkedList<>();
         try (BufferedReader reader = new BufferedReader(new FileReader(argsFile))) {
             String line;
             boolean nextLineIsRulesFile = false;
@@ -204,11 +253,11 @@ public class Buck extends BuildTool {
                 }
                 nextLineIsRulesFile = false;
             }
-            zipConfigurations(entries, configurationsFile);
         } catch (IOException e) {
             logError("Could not parse proguard args file: " + argsFile);
             e.printStackTrace();
         }
+        return entries;
     }
 
     /**
@@ -218,9 +267,9 @@ public class Buck extends BuildTool {
      * @param configurationsFile  the output file
      * @throws IOException        on packaging error
      */
-    private static void zipConfigurations(List<File> entries, File configurationsFile) throws IOException {
-        String projectDir = (new File(".")).getCanonicalPath();
-        Archiver.zipConfigurations(entries, configurationsFile, consolePrinter, projectDir, null, null);
+    private void zipConfigurations(List<File> entries, File configurationsFile) throws IOException {
+        String projectDir = currentDir.getCanonicalPath();
+        Archiver.zipConfigurations(entries, configurationsFile, consolePrinter, projectDir, null, null, archiveOptions);
     }
 
     static final Printer consolePrinter = new Printer() {
@@ -0,0 +1,218 @@
+package com.clyze.build.tools.cli.buck;
+
+import com.clyze.build.tools.IndexFile;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.clyze.build.tools.IndexFile.readString;
+import static com.clyze.build.tools.IndexFile.readVarInt;
+import static com.clyze.build.tools.IndexFile.writeString;
+import static com.clyze.build.tools.IndexFile.writeVarInt;
+import static com.clyze.build.tools.cli.Util.logDebug;
+import static com.clyze.build.tools.cli.Util.logError;
+
+/**
+ * Finds the packages of the Java source files of a directory tree. The
+ * files are read in parallel and only up to their package declaration.
+ * The packages found are kept in the user cache directory, keyed by the
+ * modification time and size of each file, so later runs only read the
+ * files that have changed.
+ */
+class PackageIndex {
+    private static final int MAGIC = 0x435A5049;
+    private static final int VERSION = 2;
+    private static final String PACKAGE_PREFIX = "package ";
+    private static final String IMPORT_PREFIX = "import ";
+    /** The number of files read by a single task. */
+    private static final int CHUNK_SIZE = 256;
+
+    /** The package of a file, as found at some modification time and size. */
+    private static final class Entry {
+        final long modified;
+        final long size;
+        /** The package name ("" for the default package). */
+        final String pkg;
+
+        Entry(long modified, long size, String pkg) {
+            this.modified = modified;
+            this.size = size;
+            this.pkg = pkg;
+        }
+    }
+
+    private final String rootPath;
+    private final File indexFile;
+    /** The entries of the previous run, by path relative to the root. */
+    private final Map<String, Entry> cached;
+
+    private PackageIndex(String rootPath, File indexFile, Map<String, Entry> cached) {
+        this.rootPath = rootPath;
+        this.indexFile = indexFile;
+        this.cached = cached;
+    }
+
+    /**
+     * Opens the index of a directory tree.
+     *
+     * @param rootPath   the canonical path of the root directory
+     * @return           the index (empty if there was no usable index)
+     */
+    static PackageIndex open(String rootPath) {
+        File indexFile = getIndexFile(rootPath);
+        Map<String, Entry> cached = load(indexFile, rootPath);
+        return new PackageIndex(rootPath, indexFile, cached == null ? Collections.emptyMap() : cached);
+    }
+
+    /**
+     * Finds the packages of some source files of the tree and saves the
+     * index. Only these files are kept in the saved index.
+     *
+     * @param files      the source files, by path relative to the root
+     * @param threads    the number of threads to read the files with
+     * @return           the package of each file that could be read ("" for
+     *                   the default package), in the order of the files
+     */
+    Map<String, String> findPackages(SortedMap<String, File> files, int threads) {
+        Map<String, Entry> entries = new ConcurrentHashMap<>();
+        List<Map.Entry<String, File>> changed = new ArrayList<>();
+        for (Map.Entry<String, File> file : files.entrySet()) {
+            File f = file.getValue();
+            Entry old = cached.get(file.getKey());
+            if (old != null && old.modified == f.lastModified() && old.size == f.length())
+                entries.put(file.getKey(), old);
+            else
+                changed.add(file);
+        }
+        logDebug("Reading the packages of " + changed.size() + " of " + files.size() + " source files.");
+        if (!changed.isEmpty()) {
+            readPackages(changed, entries, threads);
+            save(entries);
+        } else if (entries.size() != cached.size())
+            save(entries);
+
+        Map<String, String> packages = new LinkedHashMap<>();
+        for (String name : files.keySet()) {
+            Entry e = entries.get(name);
+            if (e != null)
+                packages.put(name, e.pkg);
+        }
+        return packages;
+    }
+
+    private static void readPackages(List<Map.Entry<String, File>> files, Map<String, Entry> entries, int threads) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int start = 0; start < files.size(); start += CHUNK_SIZE) {
+                List<Map.Entry<String, File>> chunk = files.subList(start, Math.min(start + CHUNK_SIZE, files.size()));
+                tasks.add(pool.submit(() -> {
+                    for (Map.Entry<String, File> file : chunk) {
+                        File f = file.getValue();
+                        // Read the timestamp first, so that a file changed while
+                        // being read is read again by the next run.
+                        long modified = f.lastModified();
+                        long size = f.length();
+                        try {
+                            entries.put(file.getKey(), new Entry(modified, size, readPackage(f)));
+                        } catch (IOException ex) {
+                            logError("Could not register Java source in file: " + f);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> task : tasks)
+                task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the package declaration of a Java source file. Reading stops
+     * at the declaration, or at the first import (which cannot precede it).
+     *
+     * @param sourceFile    the source file
+     * @return              the package name ("" for the default package)
+     * @throws IOException  if the file could not be read
+     */
+    static String readPackage(File sourceFile) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(sourceFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(PACKAGE_PREFIX)) {
+                    int semiIndex = line.indexOf(";");
+                    if (semiIndex != -1)
+                        return line.substring(PACKAGE_PREFIX.length(), semiIndex).trim();
+                } else if (line.startsWith(IMPORT_PREFIX))
+                    break;
+            }
+        }
+        return "";
+    }
+
+    private static File getIndexFile(String rootPath) {
+        return IndexFile.inCacheDir("source-packages", new File(rootPath).getName(), rootPath);
+    }
+
+    /**
+     * Reads an index file.
+     *
+     * @return the entries of the index, or null if there is no usable index
+     */
+    private static Map<String, Entry> load(File indexFile, String rootPath) {
+        try {
+            ByteBuffer buf = IndexFile.load(indexFile, MAGIC, VERSION);
+            if (buf == null || !rootPath.equals(readString(buf, "")))
+                return null;
+            int count = readVarInt(buf);
+            Map<String, Entry> entries = new HashMap<>();
+            String name = "";
+            String pkg = "";
+            for (int i = 0; i < count; i++) {
+                name = readString(buf, name);
+                long modified = buf.getLong();
+                long size = buf.getLong();
+                pkg = readString(buf, pkg);
+                entries.put(name, new Entry(modified, size, pkg));
+            }
+            return entries;
+        } catch (IOException | RuntimeException ex) {
+            // A damaged or truncated index is rebuilt.
+            return null;
+        }
+    }
+
+    /**
+     * Writes the index file. The entries are written in path order, so
+     * that the paths (and the packages of files in the same directory)
+     * are front-coded.
+     */
+    private void save(Map<String, Entry> entries) {
+        try {
+            IndexFile.save(indexFile, MAGIC, VERSION, out -> {
+                writeString(out, "", rootPath);
+                writeVarInt(out, entries.size());
+                String name = "";
+                String pkg = "";
+                for (Map.Entry<String, Entry> entry : new TreeMap<>(entries).entrySet()) {
+                    Entry e = entry.getValue();
+                    writeString(out, name, entry.getKey());
+                    name = entry.getKey();
+                    out.writeLong(e.modified);
+                    out.writeLong(e.size);
+                    writeString(out, pkg, e.pkg);
+                    pkg = e.pkg;
+                }
+            });
+        } catch (IOException ex) {
+            logError("WARNING: could not save source package index " + indexFile + ": " + ex.getMessage());
+        }
+    }
+}
@@ -1,29 +1,38 @@
 package com.clyze.build.tools.cli.buck;
 
-import java.nio.file.*;
 import java.io.*;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.nio.file.Path;
+import java.util.*;
 
+import com.clyze.build.tools.ArchiveOptions;
+import com.clyze.build.tools.Archiver;
+import com.clyze.build.tools.FileScanner;
 import com.clyze.build.tools.cli.Config;
 import com.clyze.build.tools.cli.Util;
-import org.apache.commons.io.FileUtils;
-import org.zeroturnaround.zip.*;
 
 class Sources {
+    /** Directories that hold build outputs or tool state, skipped by autodetection. */
+    private static final Set<String> OUTPUT_DIRS = new HashSet<>(Arrays.asList("buck-out", "node_modules"));
+    /** Output directories that are only skipped at the top level (elsewhere, they may be packages). */
+    private static final Set<String> TOP_LEVEL_OUTPUT_DIRS = new HashSet<>(Arrays.asList("build", "target", "out"));
 
     /**
      * Main entry point, takes care of finding source files in the project.
+     * Files that would go to the same path in the "sources" archive are
+     * merged by keeping the last file found (autodetected sources are
+     * found after the sources of the given directories).
      *
      * @param sourceDirs          the source directories to scan (can be null)
-     * @param autodetectSources   if 'true', the current directory will be searched for sources
-     * @return                    the source files found
+     * @param autodetectSources   if 'true', the project directory will be searched for sources
+     * @param projectDir          the project directory
+     * @param scanner             the scanner to walk directories with
+     * @param threads             the number of threads to read sources with
+     * @return                    the source files found, by archive entry
      */
-    public static Collection<SourceFile> getSources(Collection<String> sourceDirs,
-                                                    boolean autodetectSources) {
-        Collection<SourceFile> sourceFiles = new LinkedList<>();
+    public static Map<String, File> getSources(Collection<String> sourceDirs,
+                                               boolean autodetectSources, File projectDir,
+                                               FileScanner scanner, int threads) {
+        Map<String, File> sourceFiles = new LinkedHashMap<>();
 
         // Option 1: resolve sources in directories given in the command line.
         if (sourceDirs == null) {
@@ -33,26 +42,28 @@ class Sources {
             Util.logError(nsErr);
         } else {
             Util.println("Source directories:");
-            sourceDirs.forEach(sd -> registerSourcesInDir(sd, sourceFiles));
+            sourceDirs.forEach(sd -> registerSourcesInDir(sd, sourceFiles, scanner));
         }
 
         // Option 2: autodetect sources (heuristic).
         if (autodetectSources)
-            Sources.autodetectSourceDirs(sourceFiles);
+            Sources.autodetectSourceDirs(projectDir, sourceFiles, scanner, threads);
 
         Util.logDebug("Source files:");
-        sourceFiles.forEach(fs -> Util.logDebug(fs.toString()));
-        return filterDuplicateSources(sourceFiles);
+        sourceFiles.forEach((String entry, File f) -> Util.logDebug(entry + " -> " + f));
+        return sourceFiles;
     }
 
-    private static void registerSourcesInDir(String dirPath, Collection<SourceFile> sourceFiles) {
+    private static void registerSourcesInDir(String dirPath, Map<String, File> sourceFiles,
+                                             FileScanner scanner) {
         Util.println("Gathering sources in directory: " + dirPath);
         try {
             File dir = new File(dirPath);
-            String dirPathCanonical = dir.getCanonicalPath();
-            Files.walk(dir.toPath())
-                .filter(Sources::isSourceFile)
-                .forEach(p -> registerJavaSourceInDir(dirPathCanonical, p, sourceFiles));
+            String dirPathCanonical = scanner.getCanonicalPath(dir);
+            scanner.scan(dir, Sources::isSourceFile, (String name, File f) -> {
+                registerJavaSourceInDir(dirPathCanonical, f, sourceFiles, scanner);
+                return true;
+            }, true);
         } catch (IOException ex) {
             Util.logDebug("Could not process source directory: " + dirPath);
         }
@@ -63,48 +74,48 @@ class Sources {
      * is assumed, i.e., class a.b.C should be in path "dirPath/a/b/C.java".
      *
      * @param dirPath      the (top) source directory
-     * @param p            the path of the source file to register
-     * @param sourceFiles  the collection of files to use for registering the source file
+     * @param f            the source file to register
+     * @param sourceFiles  the map of files to use for registering the source file
+     * @param scanner      the scanner (used for its canonical paths)
      */
-    private static void registerJavaSourceInDir(String dirPath, Path p, Collection<SourceFile> sourceFiles) {
-        File f = p.toFile();
+    private static void registerJavaSourceInDir(String dirPath, File f, Map<String, File> sourceFiles,
+                                                FileScanner scanner) {
         try {
-            String pStr = f.getCanonicalPath();
+            String pStr = scanner.getCanonicalPath(f);
             if (pStr.startsWith(dirPath)) {
                 String entry = pStr.substring(dirPath.length() + File.separator.length());
-                sourceFiles.add(new SourceFile(entry, f));
+                sourceFiles.put(entry, f);
             }
         } catch (IOException ex) {
-            Util.logDebug("Could not process source " + p + ": " + ex.getMessage());
+            Util.logDebug("Could not process source " + f + ": " + ex.getMessage());
         }
     }
 
     /**
      * Recognizes sources files. Currently, only Java files are supported.
      *
-     * @param p    the path of the source file
+     * @param f    the source file (a regular file)
      * @return     'true' if the file should be processed as a source file
      */
-    private static boolean isSourceFile(Path p) {
-        return Files.isRegularFile(p) && p.toString().endsWith(".java");
+    private static boolean isSourceFile(File f) {
+        return f.getName().endsWith(".java");
     }
 
     /**
-     * Compresses a collection of files to a file in ZIP format.
+     * Compresses source files to a file in ZIP format.
      *
-     * @param sourceFiles   the collection of input files
-     * @param targetArchive the archive to create (if it already exists, it is overwritten)
+     * @param sourceFiles   the input files, by archive entry
+     * @param targetArchive the archive to create (if it already exists, it is
+     *                      updated or overwritten)
+     * @param options       the archiving options
      */
-    public static void packSources(Collection<SourceFile> sourceFiles,
-                                   File targetArchive) {
-        boolean del = targetArchive.delete();
-        Util.logDebug("Delete " + targetArchive + ": " + del);
-        String targetArchivePath;
+    public static void packSources(Map<String, File> sourceFiles,
+                                   File targetArchive, ArchiveOptions options) {
         try {
-            FileUtils.touch(targetArchive);
-            targetArchivePath = targetArchive.getCanonicalPath();
+            String targetArchivePath = targetArchive.getCanonicalPath();
             Util.println("Packing sources to file: " + targetArchivePath);
-            ZipUtil.pack(sourceFiles.toArray(new FileSource[0]), targetArchive);
+            if (Archiver.zipFiles(sourceFiles, targetArchive, options))
+                Util.logError("Some sources could not be added to archive: " + targetArchive);
         } catch (IOException ex) {
             Util.logError("Error creating sources archive: " + targetArchive);
             ex.printStackTrace();
@@ -112,70 +123,47 @@ class Sources {
     }
 
     /**
-     * Filters duplicate source file entries, i.e., those entries that would go
-     * to the same path in the "sources" archive. Duplicate entries are merged
-     * by keeping the last entry.
-     *
-     * @param sourceFiles  the input source file entries
-     * @return             the filtered source file entries
-     */
-    private static Collection<SourceFile> filterDuplicateSources(Collection<SourceFile> sourceFiles) {
-        Map<String, File> map = new HashMap<>();
-        // Merging happens here: only the last file is remembered.
-        sourceFiles.forEach(fs -> map.put(fs.getPath(), fs.getFile()));
-        Collection<SourceFile> ret = new LinkedList<>();
-        map.forEach((String p, File f) -> ret.add(new SourceFile(p, f)));
-        return ret;
-    }
-
-    /**
-     * Find all source files, starting from the current directory. The
+     * Find all source files, starting from the project directory. The
      * files found are registered with an accompanying package prefix
      * (suitable for compression in ZIP/JAR format). Currently, only
-     * .java files are supported.
+     * .java files are supported. Build outputs and hidden directories
+     * are not searched. The packages of the files are read in parallel
+     * and cached across runs (see {@link PackageIndex}).
      *
-     * @param sourceFiles  a collection of files to use for registering a source file
+     * @param projectDir   the project directory
+     * @param sourceFiles  the map of files to use for registering a source file
+     * @param scanner      the scanner to walk directories with
+     * @param threads      the number of threads to read the files with
      */
-    private static void autodetectSourceDirs(Collection<SourceFile> sourceFiles) {
+    private static void autodetectSourceDirs(File projectDir, Map<String, File> sourceFiles,
+                                             FileScanner scanner, int threads) {
+        Path root = projectDir.toPath();
+        // Sorted, so that duplicate entries are resolved the same way in every run.
+        SortedMap<String, File> files = new TreeMap<>();
+        String rootPath;
         try {
-            Files.walk(Paths.get("."))
-                .filter(Sources::isSourceFile)
-                .forEach(p -> autoregisterSource(p, sourceFiles));
+            rootPath = scanner.getCanonicalPath(root.toFile());
+            scanner.scan(root.toFile(), Sources::isSourceFile, (String name, File f) -> {
+                files.put(name, f);
+                return true;
+            }, dir -> isOutputDir(root, dir));
         } catch(IOException ex) {
-            Util.logError("Could not autodect source directories in current path: " + ex.getMessage());
+            Util.logError("Could not autodect source directories in " + projectDir + ": " + ex.getMessage());
+            return;
         }
+        Map<String, String> packages = PackageIndex.open(rootPath).findPackages(files, threads);
+        packages.forEach((String name, String packageName) -> {
+            File sourceFile = files.get(name);
+            String entry = (packageName.isEmpty() ? "" : (packageName.replaceAll("\\.", "/") + "/")) + sourceFile.getName();
+            Util.logDebug("Entry: " + entry + " -> " + sourceFile);
+            sourceFiles.put(entry, sourceFile);
+        });
+        Util.println("Autodetected " + packages.size() + " source files.");
     }
 
-    /**
-     * Registers a source file in the sources collection that will drive the
-     * generation of the "sources" archive. This is a heuristic that tries to
-     * find the "package" statement in the sources and reconstruct an
-     * appropriate archive entry for the source file.
-     *
-     * @param p             the source file (supported langauges: Java)
-     * @param sourceFiles  a collection of files to use for registering a source file
-     */
-    private static void autoregisterSource(Path p, Collection<SourceFile> sourceFiles) {
-        File sourceFile = p.toFile();
-        try (BufferedReader reader = new BufferedReader(new FileReader(sourceFile))) {
-            final String PACKAGE_PREFIX = "package ";
-            String packageName = null;
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith(PACKAGE_PREFIX)) {
-                    int semiIndex = line.indexOf(";");
-                    if (semiIndex != -1)
-                        packageName = line.substring(PACKAGE_PREFIX.length(), semiIndex).trim();
-                }
-            }
-            String entry = (packageName == null ? "" : (packageName.replaceAll("\\.", "/") + "/")) + sourceFile.getName();
-            final String DOT_SLASH = "." + File.separator;
-            if (entry.startsWith(DOT_SLASH))
-                entry = entry.substring(DOT_SLASH.length());
-            Util.println("Entry: " + entry + " -> " + sourceFile);
-            sourceFiles.add(new SourceFile(entry, sourceFile));
-        } catch (IOException ex) {
-            Util.logError("Could not register Java source in file: " + p);
-        }
+    private static boolean isOutputDir(Path root, Path dir) {
+        String name = dir.getFileName().toString();
+        return name.startsWith(".") || OUTPUT_DIRS.contains(name) ||
+                (TOP_LEVEL_OUTPUT_DIRS.contains(name) && root.equals(dir.getParent()));
     }
 }
@@ -0,0 +1,123 @@
+package com.clyze.build.tools.cli.buck;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+import static com.clyze.build.tools.cli.Util.logError;
+
+/**
+ * Reads the events of a Buck trace file (in the Chrome trace event
+ * format) one at a time, so that the memory used does not depend on the
+ * size of the trace. Only the descriptions of the events are read, all
+ * other values are skipped without being built.
+ *
+ * Both forms of the format are accepted: a plain array of events and
+ * an object with a "traceEvents" array. Since Buck writes the trace
+ * while it builds, a trace that ends early (for example, because the
+ * build was interrupted) is read up to its last complete event.
+ */
+class TraceScanner {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Receives the descriptions of trace events. */
+    interface Visitor {
+        /**
+         * Visits the description of an event.
+         *
+         * @param description  the "description" argument of the event
+         * @throws IOException on error while processing the event
+         */
+        void visit(String description) throws IOException;
+    }
+
+    /**
+     * Visits the events of a trace file that have a description.
+     *
+     * @param traceFile    the trace file
+     * @param visitor      the visitor of the event descriptions
+     * @return             the number of events read
+     * @throws IOException if the trace file could not be read or is malformed
+     */
+    static long scan(File traceFile, Visitor visitor) throws IOException {
+        long[] events = { 0 };
+        EndAwareReader input = new EndAwareReader(new InputStreamReader(new FileInputStream(traceFile), StandardCharsets.UTF_8));
+        try (JsonReader reader = new JsonReader(input)) {
+            reader.setLenient(true);
+            if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("traceEvents"))
+                        scanEvents(reader, visitor, events);
+                    else
+                        reader.skipValue();
+                }
+            } else
+                scanEvents(reader, visitor, events);
+        } catch (EOFException | MalformedJsonException ex) {
+            if (!input.ended)
+                throw ex;
+            logError("WARNING: trace file ends early, ignoring its last event: " + traceFile);
+        }
+        return events[0];
+    }
+
+    /** Visits an array of events, counting them in events[0]. */
+    private static void scanEvents(JsonReader reader, Visitor visitor, long[] events) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String description = readDescription(reader);
+            events[0]++;
+            if (description != null)
+                visitor.visit(description);
+        }
+        reader.endArray();
+    }
+
+    /** Reads an event and returns its description (or null). */
+    private static String readDescription(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        String description = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("args") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("description") && reader.peek() == JsonToken.STRING)
+                        description = reader.nextString();
+                    else
+                        reader.skipValue();
+                }
+                reader.endObject();
+            } else
+                reader.skipValue();
+        }
+        reader.endObject();
+        return description;
+    }
+
+    /**
+     * A buffered reader that remembers if the end of its input has been
+     * reached, to tell truncated traces from malformed ones.
+     */
+    private static final class EndAwareReader extends BufferedReader {
+        volatile boolean ended = false;
+
+        EndAwareReader(Reader in) {
+            super(in, BUFFER_SIZE);
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int n = super.read(cbuf, off, len);
+            if (n < 0)
+                ended = true;
+            return n;
+        }
+    }
+}
@@ -3,15 +3,26 @@ package com.clyze.build.tools.cli.gradle;
 import com.clyze.build.tools.Settings;
 import com.clyze.build.tools.cli.BuildTool;
 import com.clyze.build.tools.cli.Config;
+import com.clyze.build.tools.cli.ResolutionCache;
 import com.clyze.client.web.PostState;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Integration with the Gradle build system.
  */
 public class Gradle extends BuildTool {
+    /** An "include" statement of a settings file. */
+    private static final Pattern INCLUDE = Pattern.compile("\\binclude\\s*\\(?((?:\\s*['\"][^'\"]+['\"]\\s*,?)+)");
+    /** A quoted string. */
+    private static final Pattern QUOTED = Pattern.compile("['\"]([^'\"]+)['\"]");
 
     public Gradle(File currentDir, Config config) {
         super(currentDir, config);
@@ -24,20 +35,116 @@ public class Gradle extends BuildTool {
 
     @Override
     public void populatePostState(PostState ps, Config config) throws IOException {
-        gatherCodeJarFromDir(ps, Paths.get(currentDir.getCanonicalPath(), "build", "libs").toFile(), false);
-        resolveDependencies(config, ps);
-        gatherSourcesFromSrcDir(ps);
+        Map<String, String> projects = resolveDependencies(config, ps);
+        List<File> moduleDirs = getModuleDirs(projects.isEmpty() ? readSettingsProjects() : projects);
+        if (moduleDirs.size() > 1)
+            System.out.println("Found " + moduleDirs.size() + " Gradle projects.");
+        gatherModules(ps, moduleDirs, (File moduleDir, BiConsumer<String, String> inputs) -> {
+            String name = moduleDir.getCanonicalFile().getName();
+            if (!gatherCodeJarFromDir(inputs, Paths.get(moduleDir.getPath(), "build", "libs").toFile(), name))
+                gatherCodeFromClassesDir(inputs, Paths.get(moduleDir.getPath(), "build", "classes", "java", "main").toFile());
+            gatherSourcesFromSrcDir(inputs, moduleDir);
+        });
     }
 
-    private void resolveDependencies(Config config, PostState ps) {
+    /**
+     * Returns the directories of the projects of the build, the current
+     * project first.
+     *
+     * @param projects   a map from project paths to project directories
+     * @return           the existing project directories, without duplicates
+     * @throws IOException if a directory could not be resolved
+     */
+    private List<File> getModuleDirs(Map<String, String> projects) throws IOException {
+        Map<String, File> dirs = new LinkedHashMap<>();
+        dirs.put(scanner.getCanonicalPath(currentDir), currentDir);
+        for (String dir : projects.values()) {
+            File f = new File(dir);
+            if (f.isDirectory())
+                dirs.putIfAbsent(scanner.getCanonicalPath(f), f);
+        }
+        return new ArrayList<>(dirs.values());
+    }
+
+    /**
+     * Reads the projects included by the settings file. This is only
+     * used when Gradle could not report its projects; project
+     * directories are assumed to follow the project paths.
+     *
+     * @return a map from project paths to project directories
+     */
+    private Map<String, String> readSettingsProjects() {
+        Map<String, String> projects = new LinkedHashMap<>();
+        for (String name : new String[] { "settings.gradle", "settings.gradle.kts" }) {
+            File settings = new File(currentDir, name);
+            if (!settings.isFile())
+                continue;
+            try {
+                String text = new String(Files.readAllBytes(settings.toPath()), StandardCharsets.UTF_8);
+                Matcher include = INCLUDE.matcher(text);
+                while (include.find()) {
+                    Matcher project = QUOTED.matcher(include.group(1));
+                    while (project.find()) {
+                        String path = project.group(1);
+                        String rel = (path.startsWith(":") ? path.substring(1) : path).replace(':', File.separatorChar);
+                        projects.put(path, new File(currentDir, rel).getPath());
+                    }
+                }
+            } catch (IOException ex) {
+                System.out.println("WARNING: could not read " + settings + ": " + ex.getMessage());
+            }
+        }
+        return projects;
+    }
+
+    /**
+     * Resolves the dependencies of the build, reusing the result of a
+     * previous run if the build files have not changed.
+     *
+     * @return a map from the paths of the projects of the build to their directories
+     */
+    private Map<String, String> resolveDependencies(Config config, PostState ps) throws IOException {
         String userHomeDir = Settings.getUserHomeDir();
         if (userHomeDir == null) {
             System.out.println("WARNING: no user home directory found, cannot resolve dependencies.");
-            return;
+            return Collections.emptyMap();
         }
 
         GradleProject project = new GradleProject(currentDir, config, userHomeDir, ps);
+        ResolutionCache cache = openResolutionCache(Gradle::isBuildFile, userHomeDir, String.valueOf(config.includesDepSources()));
+        ResolutionCache.Resolution resolution = cache == null ? null : cache.load();
+        if (resolution != null) {
+            System.out.println("Build files unchanged, using cached dependencies: " + cache.getFile());
+            addResolution(ps, resolution);
+            return resolution.projects;
+        }
+
         System.out.println("Analyzing dependencies...");
-        project.resolveDependencies();
+        boolean model = project.resolveDependencies();
+        addLibraries(ps, project.getLibraries());
+        // Only cache complete results that Gradle reported itself, so
+        // that missing dependencies are resolved again on the next run.
+        if (cache != null && model && !project.hasUnresolved()) {
+            resolution = new ResolutionCache.Resolution();
+            resolution.libraries.addAll(project.getLibraries());
+            resolution.sources.addAll(project.getSources());
+            resolution.projects.putAll(project.getProjectDirs());
+            cache.save(resolution);
+        }
+        return project.getProjectDirs();
+    }
+
+    /**
+     * Recognizes the files that control dependency resolution: build
+     * scripts, settings, properties, version catalogs and lockfiles.
+     *
+     * @param name   the file name
+     * @return       true if the file is a build file
+     */
+    private static boolean isBuildFile(String name) {
+        return name.equals("build.gradle") || name.equals("build.gradle.kts") ||
+                name.equals("settings.gradle") || name.equals("settings.gradle.kts") ||
+                name.equals("gradle.properties") || name.endsWith(".versions.toml") ||
+                name.endsWith(".lockfile");
     }
 }
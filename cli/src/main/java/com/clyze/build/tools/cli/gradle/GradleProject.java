@@ -1,17 +1,17 @@
 package com.clyze.build.tools.cli.gradle;
 
-import com.clyze.build.tools.Archiver;
-import com.clyze.build.tools.Conventions;
 import com.clyze.build.tools.cli.Config;
+import com.clyze.build.tools.cli.Util;
 import com.clyze.build.tools.cli.maven.MavenDependencyResolver;
 import com.clyze.client.web.PostState;
-import org.clyze.utils.JHelper;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import org.clyze.utils.OS;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.*;
 
 /**
@@ -22,6 +22,8 @@ public class GradleProject {
     public static final String DEP_PROJECT_PREFIX = "project ";
     public static final String ROOT_PROJECT = "<ROOT>";
     public static final String PROJECT_PREFIX = "Project ";
+    /** The init script that reports the dependencies of each project. */
+    private static final String INIT_SCRIPT = "clyze-dependencies.gradle";
     enum State { WAITING, DEP_START, DEP_END }
 
     private State state;
@@ -34,6 +36,10 @@ public class GradleProject {
     private final boolean debug;
     private final PostState ps;
     private final MavenDependencyResolver mavenDependencyResolver;
+    /** The projects of the build, mapped to their directories. */
+    private final Map<String, String> projectDirs = new LinkedHashMap<>();
+    /** The number of dependencies that Gradle could not resolve. */
+    private int unresolved = 0;
 
     public GradleProject(File currentDir, Config config, String userHomeDir, PostState ps) {
         this.userHomeDir = userHomeDir;
@@ -45,24 +51,185 @@ public class GradleProject {
     }
 
     /**
-     * Resolves the current project dependencies.
+     * Resolves the current project dependencies. Gradle is asked to
+     * report the resolved runtime classpath of each project, with the
+     * paths of the artifacts; if this fails, the output of the
+     * "dependencies" task is parsed and the artifacts are looked up in
+     * the local repositories.
+     *
+     * @return true if the dependency model of Gradle was read (so that
+     *         the result does not depend on parsing a report)
      */
-    public void resolveDependencies() {
+    public boolean resolveDependencies() {
         if (config.isDebug())
             System.out.println("Reading Gradle caches...");
         initDependencyPaths();
 
-        try {
-            String[] cmd = new String[] { findGradle(currentDir), "dependencies" };
-            List<String> dependencyLines = new ArrayList<>();
-            JHelper.runWithOutput(cmd, null, dependencyLines::add);
-            this.state = State.WAITING;
-            dependencyLines.forEach(this::processDependencyLine);
-        } catch (IOException e) {
-            e.printStackTrace();
+        boolean model = resolveWithInitScript();
+        if (!model) {
+            System.out.println("WARNING: could not read the dependency model of Gradle, parsing the dependency report instead.");
+            try {
+                String[] cmd = new String[] { findGradle(currentDir), "-p", currentDir.getPath(), "dependencies" };
+                List<String> dependencyLines = new ArrayList<>();
+                Util.runWithOutput(cmd, config.getEnvironment(), dependencyLines::add);
+                this.state = State.WAITING;
+                dependencyLines.forEach(this::processDependencyLine);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
         if (debug)
             System.out.println("Dependencies: " + dependencies.size());
+        return model;
+    }
+
+    /**
+     * Runs Gradle with an init script that writes the dependency model
+     * of each project as JSON (see "clyze-dependencies.gradle"). Since
+     * the artifact paths are part of the model, the local repositories
+     * do not have to be searched.
+     *
+     * @return true if Gradle succeeded and the model was read
+     */
+    private boolean resolveWithInitScript() {
+        Path tmpDir = null;
+        try {
+            tmpDir = Files.createTempDirectory("clyze-gradle");
+            Path initScript = tmpDir.resolve(INIT_SCRIPT);
+            try (InputStream is = GradleProject.class.getResourceAsStream(INIT_SCRIPT)) {
+                if (is == null) {
+                    System.err.println("ERROR: could not find resource: " + INIT_SCRIPT);
+                    return false;
+                }
+                Files.copy(is, initScript);
+            }
+            Path modelDir = Files.createDirectory(tmpDir.resolve("models"));
+            String[] cmd = new String[] { findGradle(currentDir), "-p", currentDir.getPath(), "--init-script", initScript.toString(), "-q",
+                    "-PclyzeDependenciesDir=" + modelDir, "clyzeDependencies" };
+            int exitCode = Util.runWithOutput(cmd, config.getEnvironment(), line -> {
+                if (debug)
+                    System.out.println(line);
+            });
+            // A failed build may have written the models of some projects only.
+            if (exitCode != 0)
+                return false;
+            File[] modelFiles = modelDir.toFile().listFiles((File dir, String name) -> name.endsWith(".json"));
+            if (modelFiles == null || modelFiles.length == 0)
+                return false;
+            Arrays.sort(modelFiles);
+            Gson gson = new Gson();
+            for (File modelFile : modelFiles)
+                try (Reader reader = new InputStreamReader(new FileInputStream(modelFile), StandardCharsets.UTF_8)) {
+                    processModel(gson.fromJson(reader, ProjectModel.class));
+                }
+            return true;
+        } catch (IOException | JsonParseException ex) {
+            System.err.println("ERROR: could not resolve dependencies with Gradle: " + ex.getMessage());
+            return false;
+        } finally {
+            if (tmpDir != null)
+                deleteDir(tmpDir.toFile());
+        }
+    }
+
+    private void processModel(ProjectModel model) {
+        if (debug)
+            System.out.println("Processing dependency model of project " + model.project + " (" + model.dir + ")");
+        if (model.artifacts != null)
+            for (ArtifactModel artifact : model.artifacts) {
+                if (artifact.file == null || !artifact.file.endsWith(".jar")) {
+                    if (debug)
+                        System.out.println("Ignoring non-JAR artifact: " + artifact.file);
+                    continue;
+                }
+                dependencies.add(artifact.group + ":" + artifact.name + ":" + artifact.version);
+                mavenDependencyResolver.addResolvedDependency(ps, artifact.group, artifact.name, artifact.version, artifact.file);
+            }
+        if (model.project != null && model.dir != null)
+            projectDirs.put(model.project, model.dir);
+        // Project dependencies are normally projects of the build (with
+        // models of their own), but they may also come from included builds.
+        if (model.projects != null)
+            for (ProjectDependencyModel dep : model.projects)
+                if (dependencies.add(DEP_PROJECT_PREFIX + dep.path))
+                    projectDirs.putIfAbsent(dep.path, dep.dir);
+        if (model.unresolved != null)
+            for (String dep : model.unresolved) {
+                System.out.println("WARNING: cannot resolve dependency: " + dep);
+                unresolved++;
+            }
+    }
+
+    /** The dependency model of a project, as written by the init script. */
+    private static class ProjectModel {
+        String project;
+        String dir;
+        List<ArtifactModel> artifacts;
+        List<ProjectDependencyModel> projects;
+        List<String> unresolved;
+    }
+
+    /** An external artifact of the runtime classpath. */
+    private static class ArtifactModel {
+        String group;
+        String name;
+        String version;
+        String file;
+    }
+
+    /** A dependency on another project of the build. */
+    private static class ProjectDependencyModel {
+        String path;
+        String dir;
+    }
+
+    private static void deleteDir(File f) {
+        File[] children = Files.isSymbolicLink(f.toPath()) ? null : f.listFiles();
+        if (children != null)
+            for (File child : children)
+                deleteDir(child);
+        if (!f.delete())
+            f.deleteOnExit();
+    }
+
+    /**
+     * Returns the libraries found by {@link #resolveDependencies()}.
+     *
+     * @return the paths of the library archives
+     */
+    public Set<String> getLibraries() {
+        return mavenDependencyResolver.getLibraries();
+    }
+
+    /**
+     * Returns the dependency sources found by {@link #resolveDependencies()}.
+     *
+     * @return the paths of the source archives
+     */
+    public Set<String> getSources() {
+        return mavenDependencyResolver.getSources();
+    }
+
+    /**
+     * Returns the projects of the build found by {@link #resolveDependencies()}
+     * (all projects when the dependency model of Gradle was read, otherwise
+     * only the projects that other projects depend on).
+     *
+     * @return a map from project paths to their directories
+     */
+    public Map<String, String> getProjectDirs() {
+        return projectDirs;
+    }
+
+    /**
+     * Checks if some dependency could not be resolved by
+     * {@link #resolveDependencies()}, either by Gradle or in the local
+     * repositories.
+     *
+     * @return true if some dependency is missing from the result
+     */
+    public boolean hasUnresolved() {
+        return unresolved > 0 || mavenDependencyResolver.getUnresolvedCount() > 0;
     }
 
     private String findGradle(File dir) throws IOException {
@@ -158,10 +325,9 @@ public class GradleProject {
     }
 
     private void resolveProjectDependency(String dependency) {
-        System.out.println("TODO: project dependency: " + dependency);
         StringBuilder sb = new StringBuilder();
         // Go up according to project name.
-        if (project != null && !DEP_PROJECT_PREFIX.equals(project)) {
+        if (project != null && !ROOT_PROJECT.equals(project) && !DEP_PROJECT_PREFIX.equals(project)) {
             String[] parts = project.split(":");
             for (String part : parts) {
                 if (part.length() > 0) {
@@ -179,48 +345,22 @@ public class GradleProject {
                 sb.append(File.separator);
             }
 
-        String subprojDir = sb.toString();
-        File subproj = new File(subprojDir);
+        File subproj = new File(currentDir, sb.toString());
         if (subproj.exists()) {
-            System.out.println("Detected subproject directory: " + subprojDir);
-            String depId = dependency.replaceAll(":", "_");
-            try {
-                File code = zipClasses(subprojDir, Paths.get(subprojDir, "build", "classes"), "clyze-" + depId + "-classes.jar");
-                if (code != null)
-                    ps.addFileInput(Conventions.BINARY_INPUT_TAG, code.getCanonicalPath());
-                File sources = zipClasses(subprojDir, Paths.get(subprojDir, "src"), "clyze-" + depId + "-sources.jar");
-                if (sources != null)
-                    ps.addFileInput(Conventions.SOURCE_INPUT_TAG, sources.getCanonicalPath());
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-        }
-    }
-
-    private File zipClasses(String subprojDir, Path classesDir, String archiveName) {
-        File javaClassesDir = classesDir.toFile();
-        if (javaClassesDir.exists()) {
-            try {
-                File outFile = Paths.get(subprojDir, "build", archiveName).toFile();
-                Archiver.zipTree(javaClassesDir, outFile);
-                return outFile;
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-        return null;
+            if (debug)
+                System.out.println("Detected subproject directory: " + subproj);
+            projectDirs.putIfAbsent(dependency, subproj.getPath());
+        } else
+            System.out.println("WARNING: could not find directory of project dependency: " + dependency);
     }
 
     private void initDependencyPaths() {
         if (OS.linux || OS.macOS) {
             mavenDependencyResolver.indexMavenLocal(userHomeDir);
-            mavenDependencyResolver.indexLocalRepository(Paths.get(userHomeDir, ".gradle", "caches"));
+            mavenDependencyResolver.indexGradleCache(userHomeDir);
         } else if (OS.win) {
             System.out.println("ERROR: dependency resolution on Windows is not yet supported.");
-            return;
         }
-        if (debug)
-            System.out.println("Dependency paths: " + mavenDependencyResolver.getDependencyPaths().size());
     }
 
 }
@@ -0,0 +1,628 @@
+package com.clyze.build.tools.cli.maven;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.maven.model.Dependency;
+import org.apache.maven.model.Exclusion;
+import org.apache.maven.model.Model;
+import org.apache.maven.model.Parent;
+import org.apache.maven.model.io.xpp3.MavenXpp3Reader;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+
+/**
+ * Builds the effective models of Maven POMs (with inherited properties,
+ * dependencies and dependency management, and imported BOMs) and
+ * computes the transitive dependencies of a project. Every POM is
+ * parsed once and its effective model is shared by all the models
+ * that refer to it; the POMs of each level of the dependency tree
+ * (or, for multi-module projects, the modules) are processed in parallel.
+ * Parsed POMs are also kept for the later builders of the process (as
+ * long as their files do not change), so that a long-running process
+ * (such as the daemon) does not parse the same library POMs again.
+ */
+class EffectiveModelBuilder {
+    private static final Pattern PROPERTY = Pattern.compile("\\$\\{([^}]+)}");
+    /** The maximum number of nested property references. */
+    private static final int MAX_INTERPOLATION_DEPTH = 10;
+    /** The maximum number of parsed POMs kept for later builders. */
+    private static final int MAX_PARSED_POMS = 20_000;
+    /** The POMs parsed by this process, by canonical path. The models are never modified. */
+    private static final ConcurrentMap<String, ParsedPom> parsedPoms = new ConcurrentHashMap<>();
+
+    private final MavenDependencyResolver resolver;
+    private final boolean debug;
+    /** The effective models, by canonical path of their POM. */
+    private final Map<String, CompletableFuture<EffectiveModel>> models = new HashMap<>();
+    /** The threads building the models that are not complete yet (guarded by models). */
+    private final Map<String, Thread> builders = new HashMap<>();
+    /** The model that each thread is waiting for, if any (guarded by models). */
+    private final Map<Thread, String> waiting = new HashMap<>();
+    /** The parsed POMs, by canonical path. */
+    private final ConcurrentMap<String, Optional<Model>> rawModels = new ConcurrentHashMap<>();
+
+    EffectiveModelBuilder(MavenDependencyResolver resolver, boolean debug) {
+        this.resolver = resolver;
+        this.debug = debug;
+    }
+
+    /** A parsed POM, with the modification time and size of its file when parsed. */
+    private static final class ParsedPom {
+        final long modified;
+        final long size;
+        final Model model;
+
+        ParsedPom(long modified, long size, Model model) {
+            this.modified = modified;
+            this.size = size;
+            this.model = model;
+        }
+    }
+
+    /** The effective model of a POM. */
+    static final class EffectiveModel {
+        final String groupId;
+        final String artifactId;
+        final String version;
+        final Map<String, String> properties;
+        /** The managed dependencies (by management key), including imported ones. */
+        final Map<String, Dependency> management;
+        /** The dependencies, with concrete versions where known. */
+        final List<Dependency> dependencies;
+        /** Inherited and own dependencies, before interpolation. */
+        final List<Dependency> rawDependencies;
+        /** Inherited and own managed dependencies (and imports), before interpolation. */
+        final List<Dependency> rawManagement;
+
+        EffectiveModel(String groupId, String artifactId, String version, Map<String, String> properties,
+                       Map<String, Dependency> management, List<Dependency> dependencies,
+                       List<Dependency> rawDependencies, List<Dependency> rawManagement) {
+            this.groupId = groupId;
+            this.artifactId = artifactId;
+            this.version = version;
+            this.properties = properties;
+            this.management = management;
+            this.dependencies = dependencies;
+            this.rawDependencies = rawDependencies;
+            this.rawManagement = rawManagement;
+        }
+    }
+
+    /** A resolved dependency. */
+    static final class Artifact {
+        final String groupId;
+        final String artifactId;
+        final String version;
+        final String type;
+        /** The number of dependency edges from the project (1 for direct dependencies). */
+        final int depth;
+
+        Artifact(String groupId, String artifactId, String version, String type, int depth) {
+            this.groupId = groupId;
+            this.artifactId = artifactId;
+            this.version = version;
+            this.type = type;
+            this.depth = depth;
+        }
+
+        @Override
+        public String toString() {
+            return groupId + ":" + artifactId + ":" + version;
+        }
+    }
+
+    /** A node of the dependency tree, with the exclusions of its path. */
+    private static final class Node {
+        final Dependency dependency;
+        final Set<String> exclusions;
+
+        Node(Dependency dependency, Set<String> exclusions) {
+            this.dependency = dependency;
+            this.exclusions = exclusions;
+        }
+    }
+
+    private static boolean isProvided(Dependency d) {
+        return "provided".equals(d.getScope());
+    }
+
+    /**
+     * Returns the effective model of a POM file, building it once. A
+     * model may need another model that is being built by a thread that
+     * (directly or through other threads) waits for this thread. This
+     * happens with cycles in parents and imports, which are reported
+     * instead of waiting forever.
+     *
+     * @param pom   the POM file
+     * @return      the effective model, or null if the POM could not be read
+     */
+    EffectiveModel build(File pom) {
+        String path = canonicalPath(pom);
+        Thread current = Thread.currentThread();
+        CompletableFuture<EffectiveModel> future;
+        boolean owner = false;
+        synchronized (models) {
+            future = models.get(path);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                models.put(path, future);
+                builders.put(path, current);
+                owner = true;
+            } else if (!future.isDone()) {
+                if (isCyclic(path, current)) {
+                    System.out.println("WARNING: cyclic POM reference: " + path);
+                    return null;
+                }
+                waiting.put(current, path);
+            }
+        }
+        if (!owner) {
+            try {
+                return future.join();
+            } finally {
+                synchronized (models) {
+                    waiting.remove(current);
+                }
+            }
+        }
+        EffectiveModel model = null;
+        try {
+            model = compute(pom);
+        } catch (RuntimeException ex) {
+            System.out.println("WARNING: could not process " + path + ": " + ex.getMessage());
+        } finally {
+            synchronized (models) {
+                builders.remove(path);
+            }
+            future.complete(model);
+        }
+        return model;
+    }
+
+    /**
+     * Checks if waiting for a model would make a thread wait for itself:
+     * the model is built by this thread, or by a thread that waits for a
+     * model built by this thread, and so on. Since no thread is allowed
+     * to start such a wait, the chain of waiting threads always ends.
+     * Called with the lock of {@link #models} held.
+     *
+     * @param path     the path of the model to wait for
+     * @param current  the thread that would wait
+     * @return         true if the wait would never end
+     */
+    private boolean isCyclic(String path, Thread current) {
+        for (Thread t = builders.get(path); t != null; t = builders.get(waiting.get(t)))
+            if (t == current)
+                return true;
+        return false;
+    }
+
+    private EffectiveModel compute(File pom) {
+        Model raw = read(pom);
+        if (raw == null)
+            return null;
+
+        Parent parentRef = raw.getParent();
+        EffectiveModel parent = null;
+        if (parentRef != null) {
+            File parentPom = locateParent(pom, parentRef);
+            if (parentPom != null)
+                parent = build(parentPom);
+            else if (debug)
+                System.out.println("Parent POM not found: " + parentRef.getId());
+        }
+
+        Map<String, String> props = new HashMap<>();
+        if (parent != null)
+            props.putAll(parent.properties);
+        raw.getProperties().forEach((k, v) -> props.put(k.toString(), v.toString()));
+        String groupId = raw.getGroupId() != null ? raw.getGroupId() : parentRef != null ? parentRef.getGroupId() : null;
+        String version = raw.getVersion() != null ? raw.getVersion() : parentRef != null ? parentRef.getVersion() : null;
+        String artifactId = raw.getArtifactId();
+        setBuiltinProperty(props, "groupId", groupId);
+        setBuiltinProperty(props, "artifactId", artifactId);
+        setBuiltinProperty(props, "version", version);
+        if (parentRef != null) {
+            setBuiltinProperty(props, "parent.groupId", parentRef.getGroupId());
+            setBuiltinProperty(props, "parent.artifactId", parentRef.getArtifactId());
+            setBuiltinProperty(props, "parent.version", parentRef.getVersion());
+        }
+        groupId = interpolate(groupId, props);
+        version = interpolate(version, props);
+        setBuiltinProperty(props, "groupId", groupId);
+        setBuiltinProperty(props, "version", version);
+
+        // Inheritance: own entries come after (and override) inherited ones.
+        List<Dependency> rawManagement = new ArrayList<>();
+        if (parent != null)
+            rawManagement.addAll(parent.rawManagement);
+        if (raw.getDependencyManagement() != null)
+            rawManagement.addAll(raw.getDependencyManagement().getDependencies());
+        List<Dependency> rawDependencies = new ArrayList<>();
+        if (parent != null)
+            rawDependencies.addAll(parent.rawDependencies);
+        rawDependencies.addAll(raw.getDependencies());
+
+        // Dependency management: declared entries win over imported ones.
+        Map<String, Dependency> management = new LinkedHashMap<>();
+        List<Dependency> imports = new ArrayList<>();
+        for (Dependency d : rawManagement) {
+            Dependency dep = interpolate(d, props);
+            if ("import".equals(dep.getScope()) && "pom".equals(dep.getType()))
+                imports.add(dep);
+            else
+                management.put(dep.getManagementKey(), dep);
+        }
+        for (Dependency bom : imports) {
+            File bomPom = findPom(bom.getGroupId(), bom.getArtifactId(), bom.getVersion());
+            EffectiveModel bomModel = bomPom == null ? null : build(bomPom);
+            if (bomModel != null)
+                bomModel.management.forEach(management::putIfAbsent);
+            else if (debug)
+                System.out.println("Imported POM not found: " + bom.getManagementKey() + ":" + bom.getVersion());
+        }
+
+        Map<String, Dependency> dependencies = new LinkedHashMap<>();
+        for (Dependency d : rawDependencies) {
+            Dependency dep = interpolate(d, props);
+            Dependency managed = management.get(dep.getManagementKey());
+            if (managed != null) {
+                if (dep.getVersion() == null)
+                    dep.setVersion(managed.getVersion());
+                if (dep.getScope() == null)
+                    dep.setScope(managed.getScope());
+                if (dep.getExclusions().isEmpty())
+                    dep.setExclusions(managed.getExclusions());
+            }
+            dependencies.put(dep.getManagementKey(), dep);
+        }
+        return new EffectiveModel(groupId, artifactId, version, props, management,
+                new ArrayList<>(dependencies.values()), rawDependencies, rawManagement);
+    }
+
+    private static String canonicalPath(File f) {
+        try {
+            return f.getCanonicalPath();
+        } catch (IOException ex) {
+            return f.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Returns the POM files that have been read, including the parents,
+     * the imported BOMs and the POMs of the dependencies.
+     *
+     * @return the canonical paths of the POM files
+     */
+    Set<String> getPomFiles() {
+        Set<String> ret = new TreeSet<>();
+        rawModels.forEach((path, model) -> {
+            if (model.isPresent())
+                ret.add(path);
+        });
+        return ret;
+    }
+
+    /**
+     * Parses a POM file (once). A POM already parsed by an earlier
+     * builder is reused if its file has not changed since.
+     *
+     * @param pom  the POM file
+     * @return     the model, or null if the file could not be read
+     */
+    private Model read(File pom) {
+        return rawModels.computeIfAbsent(canonicalPath(pom), path -> {
+            if (!pom.isFile())
+                return Optional.empty();
+            long modified = pom.lastModified();
+            long size = pom.length();
+            ParsedPom parsed = parsedPoms.get(path);
+            if (parsed != null && parsed.modified == modified && parsed.size == size)
+                return Optional.of(parsed.model);
+            if (debug)
+                System.out.println("Reading " + path);
+            try (FileReader fr = new FileReader(pom)) {
+                Model model = new MavenXpp3Reader().read(fr, false);
+                if (parsedPoms.size() >= MAX_PARSED_POMS)
+                    parsedPoms.clear();
+                parsedPoms.put(path, new ParsedPom(modified, size, model));
+                return Optional.of(model);
+            } catch (IOException | XmlPullParserException ex) {
+                System.out.println("WARNING: could not read " + path + ": " + ex.getMessage());
+                return Optional.empty();
+            }
+        }).orElse(null);
+    }
+
+    /**
+     * Finds the POM of a parent, first at its relative path and then
+     * in the local repositories.
+     */
+    private File locateParent(File pom, Parent parentRef) {
+        String relativePath = parentRef.getRelativePath();
+        if (relativePath != null && !relativePath.isEmpty()) {
+            File candidate = new File(pom.getAbsoluteFile().getParentFile(), relativePath);
+            if (candidate.isDirectory())
+                candidate = new File(candidate, "pom.xml");
+            Model m = candidate.isFile() ? read(candidate) : null;
+            if (m != null && Objects.equals(parentRef.getArtifactId(), m.getArtifactId())) {
+                String g = m.getGroupId() != null ? m.getGroupId() : m.getParent() != null ? m.getParent().getGroupId() : null;
+                if (Objects.equals(parentRef.getGroupId(), g))
+                    return candidate;
+            }
+        }
+        return findPom(parentRef.getGroupId(), parentRef.getArtifactId(), parentRef.getVersion());
+    }
+
+    private File findPom(String groupId, String artifactId, String version) {
+        if (groupId == null || artifactId == null || version == null)
+            return null;
+        String path = resolver.findPom(groupId, artifactId, version);
+        return path == null ? null : new File(path);
+    }
+
+    private static void setBuiltinProperty(Map<String, String> props, String name, String value) {
+        if (value == null)
+            return;
+        props.put("project." + name, value);
+        props.put("pom." + name, value);
+    }
+
+    private static Dependency interpolate(Dependency d, Map<String, String> props) {
+        Dependency dep = d.clone();
+        dep.setGroupId(interpolate(d.getGroupId(), props));
+        dep.setArtifactId(interpolate(d.getArtifactId(), props));
+        dep.setVersion(interpolate(d.getVersion(), props));
+        dep.setScope(interpolate(d.getScope(), props));
+        dep.setType(interpolate(d.getType(), props));
+        dep.setClassifier(interpolate(d.getClassifier(), props));
+        return dep;
+    }
+
+    static String interpolate(String s, Map<String, String> props) {
+        for (int i = 0; s != null && i < MAX_INTERPOLATION_DEPTH && s.contains("${"); i++) {
+            Matcher m = PROPERTY.matcher(s);
+            StringBuffer sb = new StringBuffer();
+            boolean changed = false;
+            while (m.find()) {
+                String value = props.get(m.group(1));
+                changed |= value != null;
+                m.appendReplacement(sb, Matcher.quoteReplacement(value != null ? value : m.group()));
+            }
+            m.appendTail(sb);
+            s = sb.toString();
+            if (!changed)
+                break;
+        }
+        return s;
+    }
+
+    /**
+     * Computes the dependencies of a project, including transitive
+     * ones. Conflicts are resolved as in Maven: the dependency nearest
+     * to the project wins (and, at the same depth, the first declared).
+     * The dependency management of the project applies to all
+     * dependencies: for transitive ones, the managed version and scope
+     * replace the declared ones and the managed exclusions are added.
+     * Transitive dependencies follow the "compile" and "runtime" scopes
+     * (as declared) and skip optional dependencies and exclusions; the
+     * ones that the management moves to the "test" or "system" scope
+     * are skipped and the ones it moves to "provided" are not expanded.
+     * Direct dependencies in the "test" and "system" scopes are skipped;
+     * the ones in the "provided" scope are kept (they are needed to
+     * compile the project) but their own dependencies are not.
+     *
+     * @param pom      the POM of the project
+     * @param threads  the number of threads to use
+     * @return         the dependencies, nearest first
+     */
+    List<Artifact> resolveDependencies(File pom, int threads) {
+        EffectiveModel root = build(pom);
+        if (root == null)
+            return Collections.emptyList();
+
+        List<Artifact> result = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        List<Node> level = new ArrayList<>();
+        for (Dependency d : root.dependencies) {
+            String scope = d.getScope() == null ? "compile" : d.getScope();
+            if (d.getVersion() == null || scope.equals("import") || scope.equals("test") || scope.equals("system"))
+                continue;
+            if (seen.add(d.getManagementKey()))
+                level.add(new Node(d, exclusionsOf(d, Collections.emptySet())));
+        }
+
+        ExecutorService pool = threads > 1 ? newPool(threads) : null;
+        try {
+            for (int depth = 1; !level.isEmpty(); depth++) {
+                // Build the models of a whole level in parallel.
+                List<Future<EffectiveModel>> pending = new ArrayList<>(level.size());
+                for (Node node : level) {
+                    Dependency d = node.dependency;
+                    Callable<EffectiveModel> task = () -> {
+                        // Provided dependencies are not expanded.
+                        if (isProvided(d))
+                            return null;
+                        File depPom = findPom(d.getGroupId(), d.getArtifactId(), d.getVersion());
+                        return depPom == null ? null : build(depPom);
+                    };
+                    if (pool != null)
+                        pending.add(pool.submit(task));
+                    else {
+                        FutureTask<EffectiveModel> f = new FutureTask<>(task);
+                        f.run();
+                        pending.add(f);
+                    }
+                }
+                List<Node> next = new ArrayList<>();
+                for (int i = 0; i < level.size(); i++) {
+                    Node node = level.get(i);
+                    Dependency d = node.dependency;
+                    result.add(new Artifact(d.getGroupId(), d.getArtifactId(), d.getVersion(), d.getType(), depth));
+                    if (isProvided(d))
+                        continue;
+                    EffectiveModel model = get(pending.get(i));
+                    if (model == null) {
+                        if (debug)
+                            System.out.println("No POM found for dependency: " + d.getManagementKey() + ":" + d.getVersion());
+                        continue;
+                    }
+                    for (Dependency child : model.dependencies) {
+                        String scope = child.getScope() == null ? "compile" : child.getScope();
+                        if (child.isOptional() || !(scope.equals("compile") || scope.equals("runtime")))
+                            continue;
+                        if (isExcluded(child, node.exclusions))
+                            continue;
+                        child = manage(child, root.management.get(child.getManagementKey()));
+                        if ("test".equals(child.getScope()) || "system".equals(child.getScope()))
+                            continue;
+                        if (child.getVersion() == null || child.getVersion().contains("${"))
+                            continue;
+                        if (seen.add(child.getManagementKey()))
+                            next.add(new Node(child, exclusionsOf(child, node.exclusions)));
+                    }
+                }
+                level = next;
+            }
+        } finally {
+            if (pool != null)
+                pool.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Finds the modules of a multi-module project (reactor), following
+     * the &lt;modules&gt; of each POM.
+     *
+     * @param pom   the POM of the project
+     * @return      the POMs of the project and of all its modules, the project first
+     */
+    List<File> findModules(File pom) {
+        Map<String, File> modules = new LinkedHashMap<>();
+        Deque<File> todo = new ArrayDeque<>();
+        todo.add(pom);
+        while (!todo.isEmpty()) {
+            File current = todo.removeFirst();
+            Model model = read(current);
+            if (model == null || modules.putIfAbsent(canonicalPath(current), current) != null)
+                continue;
+            for (String module : model.getModules()) {
+                File f = new File(current.getAbsoluteFile().getParentFile(), module);
+                todo.add(f.isDirectory() ? new File(f, "pom.xml") : f);
+            }
+        }
+        return new ArrayList<>(modules.values());
+    }
+
+    /**
+     * Computes the dependencies of the modules of a project, processing
+     * the modules in parallel. A dependency that appears in several
+     * modules is kept once (the first version found, in module order)
+     * and dependencies on the modules themselves are skipped, since they
+     * are part of the project.
+     *
+     * @param poms     the POMs of the modules
+     * @param threads  the number of threads to use
+     * @return         the dependencies
+     */
+    List<Artifact> resolveDependencies(List<File> poms, int threads) {
+        if (poms.size() == 1)
+            return resolveDependencies(poms.get(0), threads);
+        Set<String> reactor = new HashSet<>();
+        for (File pom : poms) {
+            EffectiveModel model = build(pom);
+            if (model != null)
+                reactor.add(model.groupId + ":" + model.artifactId);
+        }
+        // Each module is resolved on a single thread, the modules run in parallel.
+        ExecutorService pool = newPool(Math.min(threads, poms.size()));
+        try {
+            List<Future<List<Artifact>>> pending = new ArrayList<>();
+            for (File pom : poms)
+                pending.add(pool.submit(() -> resolveDependencies(pom, 1)));
+            Map<String, Artifact> merged = new LinkedHashMap<>();
+            for (int i = 0; i < poms.size(); i++) {
+                try {
+                    for (Artifact a : pending.get(i).get()) {
+                        String key = a.groupId + ":" + a.artifactId;
+                        if (!reactor.contains(key))
+                            merged.putIfAbsent(key, a);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException ex) {
+                    System.out.println("WARNING: could not resolve dependencies of " + poms.get(i) + ": " + ex.getCause());
+                }
+            }
+            return new ArrayList<>(merged.values());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static EffectiveModel get(Future<EffectiveModel> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException ex) {
+            ex.getCause().printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Applies the dependency management of the project to a transitive
+     * dependency, as Maven does.
+     *
+     * @param d        the dependency, as declared by its parent in the tree
+     * @param managed  the managed dependency with the same key (may be null)
+     * @return         the managed dependency
+     */
+    private static Dependency manage(Dependency d, Dependency managed) {
+        if (managed == null)
+            return d;
+        Dependency dep = d.clone();
+        if (managed.getVersion() != null)
+            dep.setVersion(managed.getVersion());
+        if (managed.getScope() != null)
+            dep.setScope(managed.getScope());
+        for (Exclusion e : managed.getExclusions())
+            dep.addExclusion(e.clone());
+        return dep;
+    }
+
+    private static Set<String> exclusionsOf(Dependency d, Set<String> inherited) {
+        if (d.getExclusions().isEmpty())
+            return inherited;
+        Set<String> ret = new HashSet<>(inherited);
+        for (Exclusion e : d.getExclusions())
+            ret.add(e.getGroupId() + ":" + e.getArtifactId());
+        return ret;
+    }
+
+    private static boolean isExcluded(Dependency d, Set<String> exclusions) {
+        return !exclusions.isEmpty() &&
+                (exclusions.contains(d.getGroupId() + ":" + d.getArtifactId()) ||
+                 exclusions.contains(d.getGroupId() + ":*") ||
+                 exclusions.contains("*:" + d.getArtifactId()) ||
+                 exclusions.contains("*:*"));
+    }
+
+    private static ExecutorService newPool(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "clyze-pom-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
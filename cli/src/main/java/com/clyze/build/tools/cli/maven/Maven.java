@@ -3,27 +3,26 @@ package com.clyze.build.tools.cli.maven;
 import com.clyze.build.tools.Settings;
 import com.clyze.build.tools.cli.BuildTool;
 import com.clyze.build.tools.cli.Config;
+import com.clyze.build.tools.cli.ResolutionCache;
 import com.clyze.client.web.PostState;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Paths;
-import java.util.Properties;
-import java.util.function.Consumer;
-import org.apache.maven.model.Dependency;
-import org.apache.maven.model.Model;
-import org.apache.maven.model.io.xpp3.MavenXpp3Reader;
-import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
 
 /**
  * Integration with the Maven build system.
  */
 public class Maven extends BuildTool {
     private final MavenDependencyResolver mavenDependencyResolver;
+    private final boolean includesDepSources;
 
     public Maven(File currentDir, Config config) {
         super(currentDir, config);
         this.mavenDependencyResolver = new MavenDependencyResolver(config);
+        this.includesDepSources = config.includesDepSources();
     }
 
     @Override
@@ -33,93 +32,88 @@ public class Maven extends BuildTool {
 
     @Override
     public void populatePostState(PostState ps, Config config) throws IOException {
-        if (debug)
-            System.out.println("Looking for code...");
-        String currentDirPath = currentDir.getCanonicalPath();
-        gatherCodeFromTargetDir(ps, currentDirPath, false);
+        EffectiveModelBuilder builder = new EffectiveModelBuilder(mavenDependencyResolver, debug);
+        List<File> modulePoms = builder.findModules(new File(currentDir, "pom.xml"));
+        List<File> moduleDirs = new ArrayList<>();
+        for (File pom : modulePoms)
+            moduleDirs.add(pom.getAbsoluteFile().getParentFile());
+        if (moduleDirs.size() > 1)
+            System.out.println("Found " + moduleDirs.size() + " Maven modules.");
 
         if (debug)
-            System.out.println("Gathering dependencies...");
-        resolveDependencies(ps);
+            System.out.println("Looking for code and sources...");
+        gatherModules(ps, moduleDirs, (File moduleDir, BiConsumer<String, String> inputs) -> {
+            String moduleDirPath = moduleDir.getCanonicalPath();
+            gatherCodeFromTargetDir(inputs, moduleDirPath, false);
+            gatherSourcesFromSrcDir(inputs, moduleDir);
+            gatherGeneratedSourcesFromTarget(inputs, moduleDirPath);
+        });
 
         if (debug)
-            System.out.println("Looking for sources...");
-        gatherSourcesFromSrcDir(ps);
-        gatherGeneratedSourcesFromTarget(ps, currentDirPath);
+            System.out.println("Gathering dependencies...");
+        resolveDependencies(ps, builder, modulePoms);
     }
 
-    private void processPom(String tag, File pom, Consumer<Model> proc) throws IOException {
-        if (!pom.exists())
-            return;
-        String pomPath = pom.getCanonicalPath();
-        if (debug)
-            System.out.println(tag + " Reading " + pomPath);
-        MavenXpp3Reader reader = new MavenXpp3Reader();
-        try (FileReader fr = new FileReader(pom)) {
-            Model model = reader.read(fr);
-            proc.accept(model);
-            // Go up if there is a parent pom.xml.
-            if (model.getParent() != null) {
-                int lastSep = pomPath.lastIndexOf(File.separator);
-                if (lastSep >= 0) {
-                    String thisDir = pomPath.substring(0, lastSep);
-                    int secondToLastSep = thisDir.lastIndexOf(File.separator);
-                    if (secondToLastSep >= 0) {
-                        String parent = thisDir.substring(0, secondToLastSep);
-                        if (debug)
-                            System.out.println("Checking parent=" + parent);
-                        processPom(tag, new File(parent, "pom.xml"), proc);
-                    }
-                }
-            }
-        } catch (XmlPullParserException e) {
-            e.printStackTrace();
+    private void gatherMavenDependencies(PostState ps, EffectiveModelBuilder builder, List<File> modulePoms) {
+        // Build the effective model of each module (parents, managed
+        // versions, imported BOMs) and compute its transitive closure.
+        int threads = archiveOptions.getThreadCount();
+        for (EffectiveModelBuilder.Artifact artifact : builder.resolveDependencies(modulePoms, threads)) {
+            if (debug)
+                System.out.println("Detected Maven dependency: " + artifact + (artifact.depth > 1 ? " (transitive)" : ""));
+            if ("pom".equals(artifact.type))
+                continue;
+            mavenDependencyResolver.resolveDependency(ps, artifact.groupId, artifact.artifactId, artifact.version);
         }
     }
 
-    private void gatherMavenDependencies(PostState ps, File pom) throws IOException {
-        // Step 1: gather all (parent-)project properties, in order
-        // to resolve dependencies with symbolic versions.
-        Properties allProperties = new Properties();
-        processPom("DEPENDENCIES/PROPERTIES: ", pom, (m -> allProperties.putAll(m.getProperties())));
-        if (debug)
-            allProperties.forEach((k, v) -> System.out.println(k + " -> " + v));
-
-        // Step 2: gather artifacts and use properties (from above)
-        // to make symbolic dependencies concrete.
-        processPom("DEPENDENCIES/ARTIFACTS: ", pom, (m -> {
-            for (Dependency dep : m.getDependencies()) {
-                String groupId = dep.getGroupId();
-                String artifactId = dep.getArtifactId();
-                String version = dep.getVersion();
-                if (version != null && version.startsWith("${")) {
-                    String versionLookup = (String) allProperties.get(version.substring(2, version.length()-1));
-                    if (versionLookup != null)
-                        version = versionLookup;
-                }
-                if (groupId != null && artifactId != null && version != null) {
-                    String id = groupId + ":" + artifactId + ":" + version;
-                    if (debug)
-                        System.out.println("Detected Maven dependency: " + id);
-                    mavenDependencyResolver.resolveDependency(ps, groupId, artifactId, version);
-                }
-            }
-        }));
+    private void gatherGeneratedSourcesFromTarget(BiConsumer<String, String> inputs, String moduleDirPath) throws IOException {
+        File generatedSourcesDir = Paths.get(moduleDirPath, "target", "generated-sources").toFile();
+        gatherSources(inputs, generatedSourcesDir, getTmpJarFile("generated-sources"));
     }
 
-    private void gatherGeneratedSourcesFromTarget(PostState ps, String currentDirPath) throws IOException {
-        File generatedSourcesDir = Paths.get(currentDirPath, "target", "generated-sources").toFile();
-        gatherSources(ps, generatedSourcesDir, getTmpJarFile("generated-sources"));
-    }
-
-    private void resolveDependencies(PostState ps) throws IOException {
+    private void resolveDependencies(PostState ps, EffectiveModelBuilder builder, List<File> modulePoms) throws IOException {
         String userHomeDir = Settings.getUserHomeDir();
         if (userHomeDir == null) {
             System.out.println("WARNING: no user home directory found, cannot resolve dependencies.");
             return;
         }
 
+        ResolutionCache cache = openResolutionCache(Maven::isBuildFile, userHomeDir, String.valueOf(includesDepSources));
+        ResolutionCache.Resolution resolution = cache == null ? null : cache.load();
+        if (resolution != null) {
+            System.out.println("Build files unchanged, using cached dependencies: " + cache.getFile());
+            addResolution(ps, resolution);
+            return;
+        }
+
         mavenDependencyResolver.indexMavenLocal(userHomeDir);
-        gatherMavenDependencies(ps, new File("pom.xml"));
+        gatherMavenDependencies(ps, builder, modulePoms);
+        addLibraries(ps, mavenDependencyResolver.getLibraries());
+        // Missing dependencies may be installed later, so incomplete
+        // results are not cached.
+        if (cache != null && mavenDependencyResolver.getUnresolvedCount() == 0) {
+            resolution = new ResolutionCache.Resolution();
+            resolution.libraries.addAll(mavenDependencyResolver.getLibraries());
+            resolution.sources.addAll(mavenDependencyResolver.getSources());
+            // The POMs of the project are part of the fingerprint, the
+            // ones of the repositories (parents, BOMs, dependencies) are not.
+            String projectPrefix = currentDir.getCanonicalPath() + File.separator;
+            for (String pom : builder.getPomFiles())
+                if (!pom.startsWith(projectPrefix))
+                    resolution.inputs.add(pom);
+            cache.save(resolution);
+        }
+    }
+
+    /**
+     * Recognizes the files that control dependency resolution: POMs and
+     * the Maven configuration of the project (in the .mvn directory).
+     *
+     * @param name   the file name
+     * @return       true if the file is a build file
+     */
+    private static boolean isBuildFile(String name) {
+        return name.equals("pom.xml") || name.equals("maven.config") || name.equals("extensions.xml");
     }
 }
@@ -4,19 +4,30 @@ import com.clyze.build.tools.Conventions;
 import com.clyze.build.tools.cli.Config;
 import com.clyze.client.web.PostState;
 import java.io.File;
-import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
-import org.clyze.utils.JHelper;
+import java.util.*;
 
 /**
  * A local-filesystem resolver for Maven-style dependencies ("group:artifact:version").
+ * Artifacts are first looked up directly at the location that their
+ * coordinates give in each repository layout (Maven local repository
+ * or Gradle module cache). Only when this fails are the registered
+ * repositories indexed and searched by file name.
  */
 public class MavenDependencyResolver {
     private final Map<String, String> dependencyPaths = new HashMap<>();
+    private final Set<String> libraries = new LinkedHashSet<>();
+    private final Set<String> sources = new LinkedHashSet<>();
+    /** The number of dependencies that could not be resolved. */
+    private int unresolved = 0;
+    /** Repositories with the Maven layout (group/path/artifact/version/). */
+    private final List<Path> mavenRepositories = new ArrayList<>();
+    /** Gradle module caches (group/artifact/version/hash/). */
+    private final List<Path> gradleCaches = new ArrayList<>();
+    /** Repositories to index when direct lookup fails. */
+    private final List<Path> indexedRepositories = new ArrayList<>();
+    private boolean indexed = false;
     private final boolean debug;
     private final Config config;
 
@@ -26,15 +37,32 @@ public class MavenDependencyResolver {
     }
 
     /**
-     * Index the local Maven repository.
+     * Register the local Maven repository.
      * @param userHomeDir    the home directory of the user
      */
     public void indexMavenLocal(String userHomeDir) {
-        indexLocalRepository(Paths.get(userHomeDir, ".m2", "repository"));
+        Path repo = Paths.get(userHomeDir, ".m2", "repository");
+        mavenRepositories.add(repo);
+        indexLocalRepository(repo);
     }
 
     /**
-     * Index a repository from the local filesystem.
+     * Register the module cache of Gradle.
+     * @param userHomeDir    the home directory of the user
+     */
+    public void indexGradleCache(String userHomeDir) {
+        Path caches = Paths.get(userHomeDir, ".gradle", "caches");
+        gradleCaches.add(caches.resolve("modules-2").resolve("files-2.1"));
+        indexLocalRepository(caches);
+    }
+
+    /**
+     * Register a repository from the local filesystem, to be searched
+     * when an artifact cannot be found by its coordinates. The
+     * repository is only indexed on the first such miss. The index is
+     * kept in the user cache directory and only the parts of the
+     * repository that have changed since the last run are scanned again.
+     * The index is shared with the other resolvers of the process.
      * @param dir    the directory containing the Maven-style repository
      */
     public void indexLocalRepository(Path dir) {
@@ -43,40 +71,115 @@ public class MavenDependencyResolver {
                 System.out.println("Ignoring non-existent path: " + dir);
             return;
         }
+        indexedRepositories.add(dir);
+        indexed = false;
+    }
 
-        String[] cmd = new String[]{"find", dir.toString()};
-        if (debug)
-            System.out.println(Arrays.toString(cmd));
-        try {
-            JHelper.runWithOutput(cmd, null, ((String line) -> {
-                int lastSep = line.lastIndexOf(File.separator);
-                if ((line.endsWith(".jar") || line.endsWith(".pom")) && lastSep >= 0) {
-                    String depFile = line.substring(lastSep + 1);
-                    if (debug)
-                        System.out.println("Registering: " + depFile + " -> " + line);
-                    dependencyPaths.put(depFile, line);
-                }
-                else if (debug)
-                    System.out.println("Ignoring: " + line);
-
-            }));
-        } catch (IOException ex) {
-            if (debug)
-                ex.printStackTrace();
-        }
+    private void ensureIndexed() {
+        if (indexed)
+            return;
+        indexed = true;
+        dependencyPaths.clear();
+        for (Path dir : indexedRepositories)
+            RepositoryIndex.get(dir, debug).forEachArtifact((String depFile, String path) -> {
+                if (debug)
+                    System.out.println("Registering: " + depFile + " -> " + path);
+                dependencyPaths.put(depFile, path);
+            });
     }
 
     /**
-     * Returns the computed dependency path mapping.
+     * Returns the computed dependency path mapping. This indexes all
+     * registered repositories (if not already done).
      *
      * @return a map from JAR artifacts to file paths
      */
     public Map<String, String> getDependencyPaths() {
+        ensureIndexed();
         return dependencyPaths;
     }
 
     /**
-     * Resolves a dependency and adds it as a library to the snapshot.
+     * Finds an artifact file. The locations given by the coordinates
+     * are probed first; the repository index is only used on a miss.
+     *
+     * @param groupId       the dependency group id
+     * @param artifactId    the dependency artifact id
+     * @param version       the dependency version
+     * @param fileName      the artifact file name (such as "artifact-version.jar")
+     * @param useIndex      if true, search the repository index on a miss
+     * @return              the path of the artifact, or null if it was not found
+     */
+    private String findArtifact(String groupId, String artifactId, String version, String fileName, boolean useIndex) {
+        for (Path repo : mavenRepositories) {
+            File f = repo.resolve(groupId.replace('.', File.separatorChar)).resolve(artifactId).resolve(version).resolve(fileName).toFile();
+            if (f.isFile())
+                return f.getPath();
+        }
+        for (Path cache : gradleCaches) {
+            // Each artifact file is stored in a directory named after its hash.
+            File[] hashDirs = cache.resolve(groupId).resolve(artifactId).resolve(version).toFile().listFiles(File::isDirectory);
+            if (hashDirs != null)
+                for (File hashDir : hashDirs) {
+                    File f = new File(hashDir, fileName);
+                    if (f.isFile())
+                        return f.getPath();
+                }
+        }
+        if (!useIndex)
+            return null;
+        if (debug)
+            System.out.println("Not found in repository layout, using index: " + groupId + ":" + artifactId + ":" + version + " (" + fileName + ")");
+        ensureIndexed();
+        return dependencyPaths.get(fileName);
+    }
+
+    /**
+     * Finds the POM of an artifact at the location given by its
+     * coordinates. The repository index is not used, so this method
+     * may be called from many threads.
+     *
+     * @param groupId       the dependency group id
+     * @param artifactId    the dependency artifact id
+     * @param version       the dependency version
+     * @return              the path of the POM, or null if it was not found
+     */
+    public String findPom(String groupId, String artifactId, String version) {
+        return findArtifact(groupId, artifactId, version, artifactId + "-" + version + ".pom", false);
+    }
+
+    /**
+     * Returns the libraries resolved so far. These are not added to the
+     * snapshot by {@link #resolveDependency(PostState, String, String, String)},
+     * so that they can be bundled.
+     *
+     * @return the paths of the library archives
+     */
+    public Set<String> getLibraries() {
+        return libraries;
+    }
+
+    /**
+     * Returns the dependency sources added to the snapshot so far.
+     *
+     * @return the paths of the source archives
+     */
+    public Set<String> getSources() {
+        return sources;
+    }
+
+    /**
+     * Returns the number of dependencies that could not be resolved so far.
+     *
+     * @return the number of unresolved dependencies
+     */
+    public int getUnresolvedCount() {
+        return unresolved;
+    }
+
+    /**
+     * Resolves a dependency and registers it as a library (see
+     * {@link #getLibraries()}); its sources are added to the snapshot.
      * @param ps            the snapshot state to update
      * @param groupId       the dependency group id
      * @param artifactId    the dependency artifact id
@@ -87,22 +190,56 @@ public class MavenDependencyResolver {
         String jarKey = prefix + ".jar";
         if (debug)
             System.out.println("Searching for: " + jarKey);
-        String depPath = dependencyPaths.get(jarKey);
+        String pomKey = prefix + ".pom";
+        String depPath = findArtifact(groupId, artifactId, version, jarKey, false);
+        // Only search the index if the coordinates do not point to a
+        // .pom-only dependency either.
+        if (depPath == null && findArtifact(groupId, artifactId, version, pomKey, false) == null)
+            depPath = findArtifact(groupId, artifactId, version, jarKey, true);
         if (depPath != null) {
             if (debug)
                 System.out.println("Adding dependency: " + depPath);
-            ps.addFileInput(Conventions.LIBRARY_INPUT_TAG, depPath);
-            if (config.includesDepSources()) {
-                String depSources = dependencyPaths.get(prefix + "-sources.jar");
-                if (debug)
-                    System.out.println("Adding dependency source: " + depSources);
-                ps.addFileInput(Conventions.SOURCE_INPUT_TAG, depSources);
-            }
-        } else if (dependencyPaths.get(prefix + ".pom") != null) {
+            libraries.add(depPath);
+            addSources(ps, groupId, artifactId, version);
+        } else if (findArtifact(groupId, artifactId, version, pomKey, true) != null) {
             if (debug)
                 // Ignore .pom-only dependencies (e.g. Bill-Of-Materials dependencies).
                 System.out.println("Ignoring dependency without code but with .pom: " + groupId + ":" + artifactId + ":" + version);
-        } else
+        } else {
             System.out.println("WARNING: cannot resolve dependency: " + groupId + ":" + artifactId + ":" + version);
+            unresolved++;
+        }
+    }
+
+    /**
+     * Registers a dependency that has already been resolved (for
+     * example, by the build tool) as a library (see {@link #getLibraries()}).
+     * Its sources are looked up by its coordinates and added to the snapshot.
+     * @param ps            the snapshot state to update
+     * @param groupId       the dependency group id
+     * @param artifactId    the dependency artifact id
+     * @param version       the dependency version
+     * @param path          the path of the dependency archive
+     */
+    public void addResolvedDependency(PostState ps, String groupId, String artifactId, String version, String path) {
+        if (debug)
+            System.out.println("Adding resolved dependency: " + path);
+        if (libraries.add(path))
+            addSources(ps, groupId, artifactId, version);
+    }
+
+    private void addSources(PostState ps, String groupId, String artifactId, String version) {
+        if (!config.includesDepSources())
+            return;
+        // Sources are stored next to the artifact, so the index is not needed.
+        String depSources = findArtifact(groupId, artifactId, version, artifactId + "-" + version + "-sources.jar", false);
+        if (depSources != null) {
+            if (!sources.add(depSources))
+                return;
+            if (debug)
+                System.out.println("Adding dependency source: " + depSources);
+            ps.addFileInput(Conventions.SOURCE_INPUT_TAG, depSources);
+        } else if (debug)
+            System.out.println("No sources found for dependency: " + groupId + ":" + artifactId + ":" + version);
     }
 }
@@ -0,0 +1,246 @@
+package com.clyze.build.tools.cli.maven;
+
+import com.clyze.build.tools.IndexFile;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+import static com.clyze.build.tools.IndexFile.readString;
+import static com.clyze.build.tools.IndexFile.readVarInt;
+import static com.clyze.build.tools.IndexFile.writeString;
+import static com.clyze.build.tools.IndexFile.writeVarInt;
+import static com.clyze.build.tools.cli.Util.logError;
+
+/**
+ * A persistent index of the artifacts (.jar and .pom files) of a local
+ * repository, such as ~/.m2/repository or ~/.gradle/caches. The index
+ * is kept in the user cache directory and is refreshed incrementally:
+ * the listing of a directory is reused as long as the directory has
+ * the same modification time, so an unchanged repository only costs
+ * one timestamp check per directory.
+ *
+ * The index file stores the directories in sorted order with
+ * front-coded paths (each path only stores the suffix that differs
+ * from the previous path), so it is small and is read with a single
+ * bulk read. It is replaced atomically, so concurrent processes can
+ * share it safely. (It is not memory-mapped, since a mapped file
+ * cannot be replaced on Windows.)
+ */
+class RepositoryIndex {
+    private static final int MAGIC = 0x435A5249;
+    private static final int VERSION = 1;
+    /**
+     * The time (in ms) after which an index shared by the process is
+     * refreshed again on use, so that long-running processes (such as
+     * the daemon) see the artifacts downloaded in the meantime.
+     */
+    private static final long REFRESH_INTERVAL = 60_000;
+    /** The indexes opened by this process, by repository. */
+    private static final Map<Path, RepositoryIndex> opened = new HashMap<>();
+
+    private final Path root;
+    /** The indexed directories (relative paths, '/'-separated), sorted. */
+    private final SortedMap<String, Dir> dirs;
+    /** The time (in ms) when the index was last refreshed. */
+    private final long refreshed;
+
+    private RepositoryIndex(Path root, SortedMap<String, Dir> dirs) {
+        this.root = root;
+        this.dirs = dirs;
+        this.refreshed = System.currentTimeMillis();
+    }
+
+    /** A directory of the repository. */
+    private static final class Dir {
+        final long modified;
+        /** The artifacts in the directory, sorted. */
+        final List<String> files;
+
+        Dir(long modified, List<String> files) {
+            this.modified = modified;
+            this.files = files;
+        }
+    }
+
+    /**
+     * Returns the up-to-date index of a repository. The index is read
+     * from the cache (if it exists), refreshed and saved back if any
+     * directory has changed.
+     *
+     * @param root   the repository directory
+     * @param debug  if true, print debugging messages
+     * @return       the index
+     */
+    static RepositoryIndex open(Path root, boolean debug) {
+        File indexFile = getIndexFile(root);
+        SortedMap<String, Dir> cached = load(indexFile, root);
+        if (debug)
+            System.out.println("Repository index " + indexFile + ": " + (cached == null ? "not found" : cached.size() + " directories"));
+        return refresh(root, indexFile, cached, debug);
+    }
+
+    /**
+     * Refreshes the directories of an index and saves the index if any
+     * directory has changed.
+     */
+    private static RepositoryIndex refresh(Path root, File indexFile, SortedMap<String, Dir> cached, boolean debug) {
+        SortedMap<String, Dir> dirs = new TreeMap<>();
+        boolean changed = refresh(root.toFile(), "", cached == null ? Collections.emptySortedMap() : cached, dirs);
+        if (changed || cached == null || cached.size() != dirs.size()) {
+            if (debug)
+                System.out.println("Saving repository index: " + indexFile);
+            try {
+                save(indexFile, root, dirs);
+            } catch (IOException ex) {
+                logError("WARNING: could not save repository index " + indexFile + ": " + ex.getMessage());
+            }
+        }
+        return new RepositoryIndex(root, dirs);
+    }
+
+    /**
+     * Returns the index of a repository, opening it (see {@link #open(Path, boolean)})
+     * on first use. The index is shared by all resolvers of the process,
+     * so that processing many projects (as in batch mode) only refreshes
+     * each repository once. Artifacts added to a repository later are
+     * still found at the location given by their coordinates, as the
+     * index is only searched when that lookup fails. An index older
+     * than a minute is refreshed again (starting from its listings in
+     * memory, so this is as cheap as refreshing an index file).
+     *
+     * @param root   the repository directory
+     * @param debug  if true, print debugging messages
+     * @return       the index
+     */
+    static synchronized RepositoryIndex get(Path root, boolean debug) {
+        Path key = root.toAbsolutePath().normalize();
+        RepositoryIndex index = opened.get(key);
+        if (index == null) {
+            index = open(root, debug);
+            opened.put(key, index);
+        } else if (System.currentTimeMillis() - index.refreshed > REFRESH_INTERVAL) {
+            index = refresh(root, getIndexFile(root), index.dirs, debug);
+            opened.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Visits the artifacts of the repository, in path order.
+     *
+     * @param visitor  a function that receives the file name and the full path of each artifact
+     */
+    void forEachArtifact(BiConsumer<String, String> visitor) {
+        String prefix = root.toString() + File.separator;
+        for (Map.Entry<String, Dir> entry : dirs.entrySet()) {
+            String rel = entry.getKey();
+            String dirPath = rel.isEmpty() ? prefix : prefix + rel.replace('/', File.separatorChar) + File.separator;
+            for (String file : entry.getValue().files)
+                visitor.accept(file, dirPath + file);
+        }
+    }
+
+    private static File getIndexFile(Path root) {
+        return IndexFile.inCacheDir("repository-index", root.getFileName().toString(), root.toAbsolutePath().normalize().toString());
+    }
+
+    /**
+     * Walks a directory, reusing the listings of unchanged directories.
+     *
+     * @return true if some directory was listed again
+     */
+    private static boolean refresh(File dir, String rel, SortedMap<String, Dir> cached, SortedMap<String, Dir> dirs) {
+        long modified = dir.lastModified();
+        Dir old = cached.get(rel);
+        List<String> subdirs = new ArrayList<>();
+        boolean changed = false;
+        if (old != null && old.modified == modified) {
+            dirs.put(rel, old);
+            // The subdirectories are the cached directories right below this one.
+            String prefix = rel.isEmpty() ? "" : rel + "/";
+            for (String d : cached.tailMap(prefix).keySet()) {
+                if (!d.startsWith(prefix))
+                    break;
+                if (!d.isEmpty() && d.indexOf('/', prefix.length()) < 0)
+                    subdirs.add(d.substring(prefix.length()));
+            }
+        } else {
+            changed = true;
+            List<String> files = new ArrayList<>();
+            File[] children = dir.listFiles();
+            if (children != null)
+                for (File child : children) {
+                    String name = child.getName();
+                    if (Files.isDirectory(child.toPath(), LinkOption.NOFOLLOW_LINKS))
+                        subdirs.add(name);
+                    else if (name.endsWith(".jar") || name.endsWith(".pom"))
+                        files.add(name);
+                }
+            Collections.sort(files);
+            dirs.put(rel, new Dir(modified, files));
+        }
+        for (String sub : subdirs) {
+            File subDir = new File(dir, sub);
+            if (subDir.isDirectory())
+                changed |= refresh(subDir, rel.isEmpty() ? sub : rel + "/" + sub, cached, dirs);
+            else
+                changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Reads an index file.
+     *
+     * @return the directories of the index, or null if there is no usable index
+     */
+    private static SortedMap<String, Dir> load(File indexFile, Path root) {
+        try {
+            ByteBuffer buf = IndexFile.load(indexFile, MAGIC, VERSION);
+            if (buf == null || !root.toString().equals(readString(buf, "")))
+                return null;
+            int count = readVarInt(buf);
+            SortedMap<String, Dir> dirs = new TreeMap<>();
+            String path = "";
+            for (int i = 0; i < count; i++) {
+                path = readString(buf, path);
+                long modified = buf.getLong();
+                int fileCount = readVarInt(buf);
+                List<String> files = new ArrayList<>(fileCount);
+                String file = "";
+                for (int j = 0; j < fileCount; j++) {
+                    file = readString(buf, file);
+                    files.add(file);
+                }
+                dirs.put(path, new Dir(modified, files));
+            }
+            return dirs;
+        } catch (IOException | RuntimeException ex) {
+            // A damaged or truncated index is rebuilt.
+            return null;
+        }
+    }
+
+    /** Writes an index file. */
+    private static void save(File indexFile, Path root, SortedMap<String, Dir> dirs) throws IOException {
+        IndexFile.save(indexFile, MAGIC, VERSION, out -> {
+            writeString(out, "", root.toString());
+            writeVarInt(out, dirs.size());
+            String path = "";
+            for (Map.Entry<String, Dir> entry : dirs.entrySet()) {
+                writeString(out, path, entry.getKey());
+                path = entry.getKey();
+                Dir dir = entry.getValue();
+                out.writeLong(dir.modified);
+                writeVarInt(out, dir.files.size());
+                String file = "";
+                for (String f : dir.files) {
+                    writeString(out, file, f);
+                    file = f;
+                }
+            }
+        });
+    }
+}
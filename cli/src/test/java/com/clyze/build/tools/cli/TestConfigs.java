@@ -0,0 +1,21 @@
+package com.clyze.build.tools.cli;
+
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Creates configurations for the tests of the other packages of the CLI.
+ */
+public final class TestConfigs {
+    private TestConfigs() {}
+
+    /**
+     * Parses a command line.
+     *
+     * @param args            the command-line arguments
+     * @return                the configuration
+     * @throws ParseException on invalid arguments
+     */
+    public static Config parse(String... args) throws ParseException {
+        return new Config(args);
+    }
+}
@@ -0,0 +1,143 @@
+package com.clyze.build.tools.cli.maven;
+
+import com.clyze.build.tools.cli.TestConfigs;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.cli.ParseException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the effective models and the transitive dependencies computed
+ * from POMs in a local repository.
+ */
+public class EffectiveModelBuilderTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File home;
+    private MavenDependencyResolver resolver;
+
+    @Before
+    public void setUp() throws IOException, ParseException {
+        home = tmp.newFolder("home");
+        Files.createDirectories(new File(home, ".m2/repository").toPath());
+        resolver = new MavenDependencyResolver(TestConfigs.parse());
+        resolver.indexMavenLocal(home.getPath());
+    }
+
+    @Test
+    public void resolvesTransitiveDependencies() throws IOException {
+        repoPom("org", "parent", "1",
+                "<packaging>pom</packaging>" +
+                "<properties><lib.version>2</lib.version></properties>" +
+                "<dependencyManagement><dependencies>" +
+                dependency("org", "bom", "1", "<type>pom</type><scope>import</scope>") +
+                "</dependencies></dependencyManagement>");
+        repoPom("org", "bom", "1",
+                "<packaging>pom</packaging>" +
+                "<dependencyManagement><dependencies>" +
+                dependency("org", "c", "3", "<exclusions><exclusion><groupId>org</groupId><artifactId>e</artifactId></exclusion></exclusions>") +
+                dependency("org", "d", "4", "<scope>test</scope>") +
+                dependency("org", "f", "5", "<scope>provided</scope>") +
+                "</dependencies></dependencyManagement>");
+        repoPom("org", "a", "2", dependencies(
+                dependency("org", "c", "1", "") +
+                dependency("org", "d", "1", "") +
+                dependency("org", "f", "1", "") +
+                dependency("org", "g", "1", "<optional>true</optional>") +
+                dependency("org", "h", "1", "<scope>test</scope>")));
+        repoPom("org", "c", "1", dependencies(dependency("org", "j", "1", "")));
+        repoPom("org", "c", "3", dependencies(dependency("org", "e", "1", "") + dependency("org", "i", "1", "")));
+        repoPom("org", "f", "5", dependencies(dependency("org", "k", "1", "")));
+        File project = projectPom(tmp.newFolder("project"), "app",
+                "<parent><groupId>org</groupId><artifactId>parent</artifactId><version>1</version><relativePath/></parent>" +
+                dependencies(
+                        dependency("org", "a", "${lib.version}", "") +
+                        dependency("org", "t", "1", "<scope>test</scope>")));
+
+        // The managed version, scope and exclusions of the project apply
+        // to the transitive dependencies.
+        List<String> expected = Arrays.asList("org:a:2", "org:c:3", "org:f:5", "org:i:1");
+        for (int threads : new int[] { 1, 4 })
+            assertEquals(expected, coordinates(new EffectiveModelBuilder(resolver, false).resolveDependencies(project, threads)));
+    }
+
+    @Test(timeout = 60_000)
+    public void cyclicPomsAcrossThreads() throws IOException {
+        // p imports q, whose parent is p. With a and q built on different
+        // threads, each thread needs the model that the other is building.
+        repoPom("org", "p", "1",
+                "<packaging>pom</packaging>" +
+                "<dependencyManagement><dependencies>" +
+                dependency("org", "q", "1", "<type>pom</type><scope>import</scope>") +
+                "</dependencies></dependencyManagement>");
+        repoPom("org", "q", "1", "<parent><groupId>org</groupId><artifactId>p</artifactId><version>1</version><relativePath/></parent>");
+        repoPom("org", "a", "1", "<parent><groupId>org</groupId><artifactId>p</artifactId><version>1</version><relativePath/></parent>");
+        File project = projectPom(tmp.newFolder("project"), "app",
+                dependencies(dependency("org", "a", "1", "") + dependency("org", "q", "1", "")));
+
+        for (int i = 0; i < 200; i++)
+            assertEquals(Arrays.asList("org:a:1", "org:q:1"),
+                    coordinates(new EffectiveModelBuilder(resolver, false).resolveDependencies(project, 2)));
+    }
+
+    @Test
+    public void parsedPomsAreReusedUntilTheFileChanges() throws IOException {
+        File dir = tmp.newFolder("project");
+        File pom = projectPom(dir, "app", "<properties><v>1.0</v></properties>");
+        assertEquals("1.0", new EffectiveModelBuilder(resolver, false).build(pom).properties.get("v"));
+
+        // Same size and timestamp: the POM parsed by the first builder is reused.
+        long modified = pom.lastModified();
+        projectPom(dir, "app", "<properties><v>2.0</v></properties>");
+        assertTrue(pom.setLastModified(modified));
+        assertEquals("1.0", new EffectiveModelBuilder(resolver, false).build(pom).properties.get("v"));
+
+        projectPom(dir, "app", "<properties><v>10.0</v></properties>");
+        assertEquals("10.0", new EffectiveModelBuilder(resolver, false).build(pom).properties.get("v"));
+    }
+
+    private static String dependency(String groupId, String artifactId, String version, String extra) {
+        return "<dependency><groupId>" + groupId + "</groupId><artifactId>" + artifactId +
+                "</artifactId><version>" + version + "</version>" + extra + "</dependency>";
+    }
+
+    private static String dependencies(String dependencies) {
+        return "<dependencies>" + dependencies + "</dependencies>";
+    }
+
+    private void repoPom(String groupId, String artifactId, String version, String body) throws IOException {
+        File dir = new File(home, ".m2/repository/" + groupId.replace('.', '/') + "/" + artifactId + "/" + version);
+        writePom(new File(dir, artifactId + "-" + version + ".pom"), groupId, artifactId, version, body);
+    }
+
+    private static File projectPom(File dir, String artifactId, String body) throws IOException {
+        File pom = new File(dir, "pom.xml");
+        writePom(pom, "com.example", artifactId, "1.0", body);
+        return pom;
+    }
+
+    private static void writePom(File pom, String groupId, String artifactId, String version, String body) throws IOException {
+        Files.createDirectories(pom.getParentFile().toPath());
+        String xml = "<project><modelVersion>4.0.0</modelVersion><groupId>" + groupId + "</groupId><artifactId>" +
+                artifactId + "</artifactId><version>" + version + "</version>" + body + "</project>";
+        Files.write(pom.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> coordinates(List<EffectiveModelBuilder.Artifact> artifacts) {
+        List<String> ret = new ArrayList<>();
+        for (EffectiveModelBuilder.Artifact a : artifacts)
+            ret.add(a.toString());
+        return ret;
+    }
+}
@@ -1,5 +1,7 @@
 package com.clyze.build.tools.gradle
 
+import com.clyze.build.tools.ArchiveOptions
+import com.clyze.build.tools.CompressionPolicy
 import com.clyze.client.web.AuthToken
 import groovy.transform.CompileStatic
 import com.clyze.client.web.PostOptions
@@ -84,6 +86,42 @@ class Extension {
     boolean debug = false
     /** The path to the CodeQL database directory. */
     String codeqlDatabase = null
+    /**
+     * The number of threads to use for creating archives (0 = one
+     * thread per available processor).
+     */
+    int archiveThreads = 0
+    /**
+     * If true, the test code archives of the test repackaging task, which
+     * are re-created in place on every run, reuse their unchanged entries.
+     */
+    boolean incrementalArchives = true
+    /**
+     * The archive compression policy: 'default', 'fast' (for CI
+     * machines) or 'small' (for slow uplinks).
+     */
+    String compression = CompressionPolicy.DEFAULT.name
+    /**
+     * If true, create reproducible archives (sorted entries, fixed
+     * timestamps and permissions), so that identical inputs give
+     * identical archives.
+     */
+    boolean reproducibleArchives = false
+    /**
+     * If true, merge all libraries into a single archive, which is
+     * posted instead of the individual library archives.
+     */
+    boolean bundleLibraries = false
+    /**
+     * If true, post a single merged configuration (without duplicate
+     * rules) instead of the individual configuration files.
+     */
+    boolean mergeConfigurations = false
+    /**
+     * If true, post the JSON metadata of the javac plugin in a compact
+     * binary form (see MetadataCodec) instead of a ZIP archive.
+     */
+    boolean compactMetadata = false
 
     Platform platform
 
@@ -162,4 +200,18 @@ class Extension {
         opts.autoRepackaging = autoRepack
         return opts
     }
+
+    /**
+     * Creates an ArchiveOptions object from the setup in this extension.
+     *
+     * @return the options object for creating archives
+     */
+    ArchiveOptions createArchiveOptions() {
+        ArchiveOptions opts = new ArchiveOptions()
+        opts.threads = this.archiveThreads
+        opts.compression = CompressionPolicy.forName(this.compression)
+        opts.reproducible = this.reproducibleArchives
+        opts.mergeConfigurations = this.mergeConfigurations
+        return opts
+    }
 }
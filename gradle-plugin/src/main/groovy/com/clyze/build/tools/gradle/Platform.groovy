@@ -8,6 +8,7 @@ import com.clyze.build.tools.JcPlugin
 import com.clyze.build.tools.Settings
 import org.gradle.api.Project
 import org.gradle.api.Task
+import org.gradle.api.tasks.bundling.AbstractArchiveTask
 import org.gradle.api.tasks.bundling.Jar
 import org.gradle.api.tasks.bundling.Zip
 import org.gradle.api.tasks.compile.JavaCompile
@@ -170,10 +171,26 @@ abstract class Platform {
         task.description = 'Generates the sources JAR'
         task.group = Conventions.TOOL_NAME
         task.archiveClassifier.set('sources')
+        configureReproducible(task)
 
         gatherSources(task)
     }
 
+    /**
+     * Makes the output of an archive task reproducible, if this is
+     * requested in the plugin extension.
+     *
+     * @param task the archive task
+     */
+    protected void configureReproducible(AbstractArchiveTask task) {
+        if (repackageExt.reproducibleArchives) {
+            task.preserveFileTimestamps = false
+            task.reproducibleFileOrder = true
+            task.fileMode = 0644
+            task.dirMode = 0755
+        }
+    }
+
     /**
      * Configures the metadata scavenging task.
      */
@@ -195,6 +212,7 @@ abstract class Platform {
         task.destinationDirectory.set(scavengeDir)
         File jsonOutput = new File(scavengeDir, "json")
         task.from jsonOutput
+        configureReproducible(task)
     }
 
     private void configureCreateSnapshotTask_step2() {
@@ -329,7 +347,7 @@ abstract class Platform {
         Extension ext = getRepackageExt()
         File confZip = new File(ext.getSnapshotDir(project), Conventions.CONFIGURATIONS_FILE)
         List<File> files = ext.configurationFiles?.collect { project.file(it) } ?: []
-        Archiver.zipConfigurations(files, confZip, printer, project.rootDir.canonicalPath, sc?.file?.canonicalPath, sc?.outputRulesPath)
+        Archiver.zipConfigurations(files, confZip, printer, project.rootDir.canonicalPath, sc?.file?.canonicalPath, sc?.outputRulesPath, ext.createArchiveOptions())
         project.logger.info msg("Configurations written to: ${confZip.canonicalPath}")
     }
 
@@ -2,6 +2,7 @@ package com.clyze.build.tools.gradle
 
 import groovy.io.FileType
 import groovy.transform.CompileStatic
+import com.clyze.build.tools.Archiver
 import com.clyze.build.tools.Conventions
 import com.clyze.client.web.Helper
 import com.clyze.client.web.PostState
@@ -43,7 +44,8 @@ class PostSnapshotTask extends PostTask {
         boolean submitInputs = false
         ext.getSnapshotDir(project).eachFile(FileType.FILES) { File f ->
             String n = f.name
-            if (p.isCodeArtifact(n) && !n.endsWith(Conventions.SOURCES_FILE)) {
+            // The library bundle (of this or an earlier run) is not application code.
+            if (p.isCodeArtifact(n) && !n.endsWith(Conventions.SOURCES_FILE) && n != Conventions.LIBRARY_BUNDLE_FILE) {
                 addFileInput(project, ps, Conventions.BINARY_INPUT_TAG, n)
                 submitInputs = true
             }
@@ -64,9 +66,18 @@ class PostSnapshotTask extends PostTask {
         // Filter out empty libraries.
         def projectLibs = p.libraryFiles
         if (projectLibs) {
-            projectLibs.findAll(Helper.checkFileEmpty).each {
-                ps.addFileInput(Conventions.LIBRARY_INPUT_TAG, it)
-                project.logger.info msg("Added library: ${it}")
+            Collection<String> libs = projectLibs.findAll(Helper.checkFileEmpty)
+            if (ext.bundleLibraries && libs.size() > 1) {
+                File bundle = new File(ext.getSnapshotDir(project), Conventions.LIBRARY_BUNDLE_FILE)
+                List<File> libFiles = libs.collect { new File(it) }
+                Archiver.mergeArchives(libFiles, bundle, Archiver.DuplicatePolicy.FIRST_WINS, ext.createArchiveOptions())
+                ps.addFileInput(Conventions.LIBRARY_INPUT_TAG, bundle.canonicalPath)
+                project.logger.info msg("Added library bundle: ${bundle} (${libFiles.size()} libraries)")
+            } else {
+                libs.each {
+                    ps.addFileInput(Conventions.LIBRARY_INPUT_TAG, it)
+                    project.logger.info msg("Added library: ${it}")
+                }
             }
         }
 
@@ -8,6 +8,7 @@ import org.apache.http.HttpEntity
 import org.apache.http.client.ClientProtocolException
 import org.apache.http.conn.HttpHostConnectException
 import com.clyze.build.tools.Conventions
+import com.clyze.build.tools.MetadataCodec
 import com.clyze.build.tools.Poster
 import com.clyze.client.web.PostOptions
 import com.clyze.client.web.PostState
@@ -74,6 +75,35 @@ abstract class PostTask extends DefaultTask {
         addDeepOptions(ext, ps)
     }
 
+    /**
+     * Encodes the JSON metadata of the javac plugin in compact form and
+     * adds them to the snapshot.
+     *
+     * @param ext   the plugin extension data structure
+     * @param ps    the snapshot representation
+     * @return      true if the metadata were added, false if the archive
+     *              of the metadata should be used instead
+     */
+    protected boolean addCompactMetadata(Extension ext, PostState ps) {
+        File snapshotDir = ext.getSnapshotDir(project)
+        File jsonDir = new File(snapshotDir, 'json')
+        if (!jsonDir.exists())
+            return false
+        Map<String, File> entries = new TreeMap<>()
+        jsonDir.eachFileRecurse(FileType.FILES) { File f ->
+            entries.put(jsonDir.toPath().relativize(f.toPath()).toString().replace(File.separatorChar, '/' as char), f)
+        }
+        File compactFile = new File(snapshotDir, Conventions.COMPACT_METADATA_FILE)
+        try {
+            MetadataCodec.encode(entries, compactFile, ext.createArchiveOptions())
+        } catch (IOException ex) {
+            project.logger.warn msg("WARNING: could not create compact metadata, using an archive instead: ${ex.message}")
+            return false
+        }
+        addFileInput(project, ps, 'JCPLUGIN_METADATA', Conventions.COMPACT_METADATA_FILE)
+        return true
+    }
+
     /**
      * Adds the source (sources, metadata) and configurations inputs.
      *
@@ -103,14 +133,15 @@ abstract class PostTask extends DefaultTask {
                 }
             }
             // Upload source metadata.
-            addFileInput(project, ps, 'JCPLUGIN_METADATA', Conventions.METADATA_FILE)
+            if (!ext.compactMetadata || !addCompactMetadata(ext, ps))
+                addFileInput(project, ps, 'JCPLUGIN_METADATA', Conventions.METADATA_FILE)
         }
 
         if (ext.codeqlDatabase) {
             File codeqlDB_dir = new File(ext.codeqlDatabase)
             if (codeqlDB_dir.exists()) {
                 project.logger.info msg("Using CodeQL database in: ${ext.codeqlDatabase}")
-                Archiver.zipTree(codeqlDB_dir, new File(ext.scavengeOutputDir, Conventions.CODEQL_DB_FILE))
+                Archiver.zipTree(codeqlDB_dir, new File(ext.scavengeOutputDir, Conventions.CODEQL_DB_FILE), ext.createArchiveOptions())
                 addFileInput(project, ps, 'CODEQL_DB', Conventions.CODEQL_DB_FILE)
             } else
                 project.logger.error msg("ERROR: CodeQL database not found: ${ext.codeqlDatabase}")
@@ -5,7 +5,6 @@ import java.nio.file.Files
 import java.nio.file.StandardCopyOption
 import com.clyze.build.tools.Archiver
 import org.gradle.api.tasks.TaskAction
-import org.zeroturnaround.zip.ZipUtil
 
 import static com.clyze.build.tools.Conventions.msg
 
@@ -25,14 +24,16 @@ class RepackageTask extends PostTask {
                 try {
                     if (ext.platform instanceof AndroidPlatform) {
                         File tmpDir = Files.createTempDirectory("repackaged-signing").toFile()
-                        ZipUtil.unpack(out, tmpDir)
+                        if (Archiver.unzip(out, tmpDir, ext.createArchiveOptions())) {
+                            project.logger.warn msg("WARNING: some entries could not be extracted from ${out}")
+                        }
                         for (File f : tmpDir.listFiles()) {
                             if (AUtils.isAppCodeArtifact(f.name)) {
                                 project.logger.info msg("Signing: ${f.name}")
                                 AndroidAPI.signWithConfig(project, ext.signingConfig, f)
                             }
                         }
-                        Archiver.zipTree(tmpDir, out)
+                        Archiver.zipTree(tmpDir, out, ext.createArchiveOptions())
                     }
                     else
                         project.logger.warn msg("WARNING: signing not yet supported for JAR inputs.")
@@ -2,10 +2,10 @@ package com.clyze.build.tools.gradle
 
 import groovy.transform.CompileStatic
 import org.apache.commons.io.FileUtils
+import com.clyze.build.tools.ArchiveOptions
 import com.clyze.build.tools.Archiver
 import com.clyze.build.tools.Conventions
 import org.gradle.api.tasks.TaskAction
-import org.zeroturnaround.zip.ZipUtil
 
 import static com.clyze.build.tools.Conventions.msg
 
@@ -48,7 +48,11 @@ class TestRepackageTask extends PostTask {
             if (!testCodeBuildDir.exists()) {
                 testCodeBuildDir.mkdirs()
             }
-            Map<File, File> testCodeArchives = Archiver.zipTrees(existingTestCodeDirs, testCodeBuildDir)
+            // The archives have fixed names in the snapshot directory, so
+            // they can be updated from the previous run.
+            ArchiveOptions testCodeOptions = ext.createArchiveOptions()
+            testCodeOptions.incremental = ext.incrementalArchives
+            Map<File, File> testCodeArchives = Archiver.zipTrees(existingTestCodeDirs, testCodeBuildDir, testCodeOptions)
             Map<File, File> codeJars = testCodeArchives.findAll {dir, jar -> codeDirs.contains(dir)}
             if (codeJars.size() == 0) {
                 project.logger.error msg("ERROR: no code JARs found.")
@@ -74,7 +78,9 @@ class TestRepackageTask extends PostTask {
             if (!originalCodeDir.mkdirs()) {
                 project.logger.warn msg("WARNING: directory may not have been deleted properly: ${originalCodeDir}")
             }
-            ZipUtil.unpack(repackagedCode, originalCodeDir)
+            if (Archiver.unzip(repackagedCode, originalCodeDir, ext.createArchiveOptions())) {
+                project.logger.warn msg("WARNING: some entries could not be extracted from ${repackagedCode}")
+            }
         }
     }
 }